@@ -1,29 +1,94 @@
 package com.example.smartrestaurant;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.DependsOn;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.springframework.data.domain.Persistable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.http.ResponseEntity;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import jakarta.annotation.PreDestroy;
 import jakarta.persistence.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Instant;
-import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 @SpringBootApplication
+@EnableJpaRepositories(considerNestedRepositories = true) // the repositories are nested in this class
 public class RestaurantApplication {
 
     public static void main(String[] args) {
@@ -31,7 +96,7 @@ public class RestaurantApplication {
     }
 
     @Bean
-    CommandLineRunner initData(MenuItemRepository menuRepo) {
+    CommandLineRunner initData(MenuItemRepository menuRepo, MenuCatalog menuCatalog) {
         return args -> {
             if (menuRepo.count() == 0) {
                 menuRepo.saveAll(List.of(
@@ -43,9 +108,74 @@ public class RestaurantApplication {
                     new MenuItem("Caesar Salad", "Crisp romaine & Caesar dressing", 4.99, "salad")
                 ));
             }
+            menuCatalog.refresh();
         };
     }
 
+    @Bean
+    RoutingProvider routingProvider(@Value("${location.routing.provider:local}") String provider,
+                                    @Value("${google.maps.key:}") String gmapsKey,
+                                    WebClient.Builder builder) {
+        if ("google".equalsIgnoreCase(provider) && gmapsKey != null && !gmapsKey.isBlank()) {
+            return new GoogleRoutingProvider(builder.build(), gmapsKey);
+        }
+        return new LocalRoutingProvider();
+    }
+
+    @Bean
+    WebMvcConfigurer endpointTiming(Metrics metrics) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(new EndpointTimer(metrics));
+            }
+        };
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    KitchenStations kitchenStations(MenuCatalog menuCatalog,
+                                    @Value("${kitchen.stations:pizza:3:4,burger:2:3,sides:2:6,salad:1:2}") String stations,
+                                    @Value("${kitchen.prep-seconds:pizza:12,burger:8,sides:5,salad:4}") String prepSeconds,
+                                    @Value("${kitchen.item-prep-seconds:}") String itemPrepSeconds,
+                                    @Value("${kitchen.batch-window-ms:2000}") long batchWindowMillis) {
+        LongFunction<String> categoryOf = id -> {
+            MenuItem mi = menuCatalog.current().item(id);
+            return mi == null ? null : mi.getCategory();
+        };
+        return new KitchenStations(stations, prepSeconds, itemPrepSeconds, batchWindowMillis, true, true,
+                categoryOf, KitchenStations.realClock());
+    }
+
+    // A lone member has nobody to talk to, so it never opens a listening socket.
+    @Bean(destroyMethod = "close")
+    StatusEventBus statusEventBus(@Value("${cluster.enabled:false}") boolean enabled,
+                                  @Value("${cluster.transport:loopback}") String transport,
+                                  @Value("${cluster.name:restaurant}") String name,
+                                  @Value("${cluster.members:}") String members,
+                                  @Value("${cluster.outbox-capacity:65536}") int outboxCapacity) {
+        Map<Integer, String> parsed = OrderCluster.parseMembers(members);
+        if (!enabled || parsed.size() <= 1 || "in-process".equalsIgnoreCase(transport)) return new InProcessStatusEventBus(name);
+        return new LoopbackStatusEventBus(parsed, outboxCapacity);
+    }
+
+    @Bean(destroyMethod = "close")
+    PreparationQueue preparationQueue(@Value("${kitchen.queue.type:memory}") String type,
+                                      @Value("${kitchen.queue.capacity:5000}") int capacity,
+                                      @Value("${kitchen.queue.dir:data/prep-journal}") String dir,
+                                      @Value("${kitchen.queue.segment-bytes:8388608}") int segmentBytes,
+                                      @Value("${kitchen.queue.max-segments:4}") int maxSegments,
+                                      @Value("${spring.datasource.url:}") String datasourceUrl) {
+        if ("journal".equalsIgnoreCase(type)) {
+            // Replayed ids would point at rows that did not survive the restart.
+            if (datasourceUrl.startsWith("jdbc:h2:mem:")) {
+                LoggerFactory.getLogger(JournalPreparationQueue.class)
+                        .warn("kitchen.queue.type=journal with an in-memory datasource: orders are lost on restart anyway");
+            }
+            return new JournalPreparationQueue(Paths.get(dir), capacity, segmentBytes, maxSegments);
+        }
+        return new InMemoryPreparationQueue(capacity);
+    }
+
     // -------------------------
     // Entities
     // -------------------------
@@ -53,7 +183,8 @@ public class RestaurantApplication {
     @Table(name = "menu_items")
     public static class MenuItem {
         @Id
-        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "menu_items_seq")
+        @SequenceGenerator(name = "menu_items_seq", sequenceName = "menu_items_seq", allocationSize = 50)
         private Long id;
         private String name;
         private String description;
@@ -71,28 +202,42 @@ public class RestaurantApplication {
     }
 
     @Entity
-    @Table(name = "orders")
-    public static class FoodOrder {
+    @Table(name = "orders", indexes = @Index(name = "idx_orders_status_created", columnList = "status, createdAt, id"))
+    public static class FoodOrder implements Persistable<String> {
         @Id
         private String id;
         private Instant createdAt;
         private String customerName;
         private String customerPhone;
         private double totalAmount;
+        // Already taken off totalAmount. The default lets ddl-auto add the column to an existing table.
+        @Column(columnDefinition = "double precision default 0")
+        private double discountAmount;
         @Enumerated(EnumType.STRING)
         private Status status;
         private Double deliveryLat;
         private Double deliveryLng;
         private Long etaSeconds;
+        // When the order entered each later stage; written by OrderWriteBehind, read by the archive.
+        private Instant preparingAt;
+        private Instant readyAt;
+        private Instant outForDeliveryAt;
+        private Instant finishedAt; // DELIVERED or CANCELLED
 
         @OneToMany(cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.EAGER)
-        @JoinColumn(name = "order_id")
+        @JoinColumn(name = "order_id", nullable = false, updatable = false)
         private List<OrderItem> items = new ArrayList<>();
 
+        // Ids are assigned up front, so tell Spring Data a fresh order is new instead of letting save() merge (SELECT + INSERT).
+        @Transient
+        private boolean isNew = true;
+
         protected FoodOrder() {}
-        public FoodOrder(String id, String customerName, String customerPhone, List<OrderItem> items, double totalAmount) {
+        public FoodOrder(String id, String customerName, String customerPhone, List<OrderItem> items, double totalAmount,
+                         double discountAmount) {
             this.id = id; this.customerName = customerName; this.customerPhone = customerPhone;
-            this.items = items; this.totalAmount = totalAmount; this.createdAt = Instant.now(); this.status = Status.RECEIVED;
+            this.items = items; this.totalAmount = totalAmount; this.discountAmount = discountAmount;
+            this.createdAt = Instant.now(); this.status = Status.RECEIVED;
         }
         public enum Status { RECEIVED, PREPARING, READY, OUT_FOR_DELIVERY, DELIVERED, CANCELLED }
         public String getId() { return id; }
@@ -101,6 +246,7 @@ public class RestaurantApplication {
         public String getCustomerPhone() { return customerPhone; }
         public List<OrderItem> getItems() { return items; }
         public double getTotalAmount() { return totalAmount; }
+        public double getDiscountAmount() { return discountAmount; }
         public Status getStatus() { return status; }
         public void setStatus(Status s) { this.status = s; }
         public Double getDeliveryLat() { return deliveryLat; }
@@ -109,13 +255,24 @@ public class RestaurantApplication {
         public void setDeliveryLng(Double deliveryLng) { this.deliveryLng = deliveryLng; }
         public Long getEtaSeconds() { return etaSeconds; }
         public void setEtaSeconds(Long etaSeconds) { this.etaSeconds = etaSeconds; }
+        public Instant getPreparingAt() { return preparingAt; }
+        public Instant getReadyAt() { return readyAt; }
+        public Instant getOutForDeliveryAt() { return outForDeliveryAt; }
+        public Instant getFinishedAt() { return finishedAt; }
+        @JsonIgnore
+        @Override
+        public boolean isNew() { return isNew; }
+        @PostLoad
+        @PostPersist
+        void markNotNew() { this.isNew = false; }
     }
 
     @Entity
     @Table(name = "order_items")
     public static class OrderItem {
         @Id
-        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "order_items_seq")
+        @SequenceGenerator(name = "order_items_seq", sequenceName = "order_items_seq", allocationSize = 100)
         private Long id;
         private Long menuItemId;
         private String name;
@@ -135,12 +292,10 @@ public class RestaurantApplication {
     // -------------------------
     // Repos
     // -------------------------
-    public interface MenuItemRepository extends JpaRepository<MenuItem, Long> {
-        List<MenuItem> findByCategory(String category);
-    }
+    public interface MenuItemRepository extends JpaRepository<MenuItem, Long> {}
     public interface OrderRepository extends JpaRepository<FoodOrder, String> {
-        @Query("select o from RestaurantApplication$FoodOrder o where o.status = ?1")
-        List<FoodOrder> findByStatus(FoodOrder.Status status);
+        @Query("select o.id from RestaurantApplication$FoodOrder o where o.status in ?1 and o.createdAt < ?2")
+        List<String> findIdsByStatusIn(Collection<FoodOrder.Status> statuses, Instant createdBefore);
     }
 
     // -------------------------
@@ -149,71 +304,175 @@ public class RestaurantApplication {
     @RestController
     @RequestMapping("/api")
     public static class ApiController {
-        private final MenuItemRepository menuRepo;
+        private final MenuCatalog menuCatalog;
         private final OrderService orderService;
         private final PaymentService paymentService;
+        private final CourierTracker courierTracker;
         private final LocationService locationService;
-        public ApiController(MenuItemRepository menuRepo, OrderService orderService, PaymentService paymentService, LocationService locationService) {
-            this.menuRepo = menuRepo; this.orderService = orderService; this.paymentService = paymentService; this.locationService = locationService;
+        private final OrderAdmission admission;
+        private final OrderReadModel readModel;
+        private final OrderArchive archive;
+        public ApiController(MenuCatalog menuCatalog, OrderService orderService, PaymentService paymentService,
+                             CourierTracker courierTracker, LocationService locationService, OrderAdmission admission,
+                             OrderReadModel readModel, OrderArchive archive) {
+            this.menuCatalog = menuCatalog; this.orderService = orderService; this.paymentService = paymentService;
+            this.courierTracker = courierTracker; this.locationService = locationService; this.admission = admission;
+            this.readModel = readModel; this.archive = archive;
         }
 
+        // Served from the pre-rendered snapshot: no DB query, and both responses are built once per menu version.
         @GetMapping("/menu")
-        public List<MenuItem> getMenu(@RequestParam(required = false) String category) {
-            if (category == null || category.isBlank()) return menuRepo.findAll();
-            return menuRepo.findByCategory(category);
+        public ResponseEntity<byte[]> getMenu(@RequestParam(required = false) String category,
+                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+            MenuSnapshot.Rendered r = menuCatalog.current().rendered(category);
+            return r.matches(ifNoneMatch) ? r.notModified : r.ok;
         }
 
+        // A malformed order is a 400 that costs no rate-limit tokens. Admission then runs before the
+        // insert, so an order the kitchen cannot cook in time is never persisted or charged.
         @PostMapping("/orders")
-        public ResponseEntity<Map<String,Object>> placeOrder(@RequestBody PlaceOrderRequest req) {
+        public ResponseEntity<Map<String,Object>> placeOrder(@RequestBody PlaceOrderRequest req, HttpServletRequest http) {
+            Quote quote;
+            try {
+                quote = orderService.validate(req);
+            } catch (IllegalArgumentException ex) {
+                return ResponseEntity.badRequest().body(Map.of("error", ex.getMessage()));
+            }
+            OrderAdmission.Decision decision = admission.admit(req, http);
+            if (!decision.admitted()) {
+                Map<String,Object> body = new HashMap<>();
+                body.put("error", decision.reason());
+                body.put("retryAfterSeconds", decision.retryAfterSeconds());
+                if (decision.quotedWaitSeconds() >= 0) body.put("quotedWaitSeconds", decision.quotedWaitSeconds());
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                        .header(HttpHeaders.RETRY_AFTER, Long.toString(decision.retryAfterSeconds())).body(body);
+            }
             try {
-                FoodOrder order = orderService.placeOrder(req);
+                FoodOrder order = orderService.placeOrder(req, quote);
                 Map<String,Object> resp = new HashMap<>();
                 resp.put("orderId", order.getId());
                 resp.put("status", order.getStatus());
                 resp.put("total", order.getTotalAmount());
+                resp.put("discount", order.getDiscountAmount());
+                resp.put("quotedWaitSeconds", decision.quotedWaitSeconds());
                 resp.put("paymentToken", paymentService.createPaymentIntent(order)); // simulated token
                 return ResponseEntity.ok(resp);
+            } catch (IllegalStateException ex) {
+                return ResponseEntity.status(503).body(Map.of("error", ex.getMessage()));
+            }
+        }
+
+        // Prices a cart exactly as placeOrder would, without persisting anything.
+        @PostMapping("/orders/quote")
+        public ResponseEntity<Map<String,Object>> quote(@RequestBody PlaceOrderRequest req) {
+            try {
+                return ResponseEntity.ok(orderService.quote(req).toResponse());
             } catch (IllegalArgumentException ex) {
                 return ResponseEntity.badRequest().body(Map.of("error", ex.getMessage()));
             }
         }
 
+        // Served from the in-memory projection; only orders older than its retention reach the database,
+        // and archived ones the archive segments.
         @GetMapping("/orders/{id}")
-        public ResponseEntity<FoodOrder> getOrder(@PathVariable String id) {
-            return orderService.findById(id).map(ResponseEntity::ok).orElse(ResponseEntity.notFound().build());
+        public ResponseEntity<OrderView> getOrder(@PathVariable String id) {
+            OrderView view = readModel.get(id);
+            if (view != null) return ResponseEntity.ok(view);
+            Optional<OrderView> row = orderService.findById(id).map(OrderView::of);
+            if (row.isEmpty() && archive.enabled()) row = Optional.ofNullable(archive.find(id));
+            return row.map(ResponseEntity::ok).orElse(ResponseEntity.notFound().build());
+        }
+
+        // Kitchen display / dashboard listing, oldest first. Pass the returned nextCursor as "after" for the next page.
+        @GetMapping("/orders")
+        public ResponseEntity<Map<String,Object>> ordersByStatus(@RequestParam FoodOrder.Status status,
+                                                                 @RequestParam(required = false) String after,
+                                                                 @RequestParam(defaultValue = "50") int limit) {
+            if (limit < 1 || limit > 500) return ResponseEntity.badRequest().body(Map.of("error","limit must be between 1 and 500"));
+            OrderReadModel.Page page;
+            try {
+                page = readModel.byStatus(status, after, limit);
+            } catch (IllegalArgumentException ex) {
+                return ResponseEntity.badRequest().body(Map.of("error", ex.getMessage()));
+            }
+            Map<String,Object> body = new HashMap<>();
+            body.put("orders", page.orders());
+            body.put("nextCursor", page.nextCursor());
+            return ResponseEntity.ok(body);
         }
 
+        // Async: the servlet thread is released while the gateway works; retries with the same key share one outcome.
         @PostMapping("/orders/{id}/pay")
-        public ResponseEntity<Map<String,Object>> payOrder(@PathVariable String id, @RequestBody Map<String,String> body) {
+        public CompletableFuture<ResponseEntity<Map<String,Object>>> payOrder(@PathVariable String id, @RequestBody Map<String,String> body,
+                                                                            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
             Optional<FoodOrder> maybe = orderService.findById(id);
-            if (maybe.isEmpty()) return ResponseEntity.notFound().build();
+            if (maybe.isEmpty()) return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
             FoodOrder order = maybe.get();
-            boolean paid = paymentService.capturePayment(order, body.getOrDefault("paymentToken",""));
-            if (paid) {
-                orderService.markPaid(order.getId());
-                return ResponseEntity.ok(Map.of("status","PAID"));
-            } else {
-                return ResponseEntity.badRequest().body(Map.of("error","Payment failed"));
+            return paymentService.capturePayment(order, body.getOrDefault("paymentToken",""), idempotencyKey)
+                    .thenApply(ApiController::paymentResponse);
+        }
+
+        private static ResponseEntity<Map<String,Object>> paymentResponse(PaymentResult r) {
+            switch (r.getStatus()) {
+                case PAID:
+                    return ResponseEntity.ok(Map.of("status","PAID"));
+                case BUSY:
+                    return ResponseEntity.status(503).header(HttpHeaders.RETRY_AFTER, "1").body(Map.of("error","Payment gateway busy"));
+                case TIMEOUT:
+                    return ResponseEntity.status(504).body(Map.of("error","Payment gateway timeout"));
+                default:
+                    return ResponseEntity.badRequest().body(Map.of("error","Payment failed"));
             }
         }
 
         @PostMapping("/orders/{id}/track")
         public ResponseEntity<Map<String,Object>> setDeliveryLocation(@PathVariable String id, @RequestBody Map<String, Double> coords) {
-            Optional<FoodOrder> maybe = orderService.findById(id);
-            if (maybe.isEmpty()) return ResponseEntity.notFound().build();
-            FoodOrder order = maybe.get();
             Double lat = coords.get("lat"); Double lng = coords.get("lng");
             if (lat == null || lng == null) return ResponseEntity.badRequest().body(Map.of("error","Missing lat/lng"));
-            order.setDeliveryLat(lat); order.setDeliveryLng(lng);
-            long eta = locationService.estimateEtaSeconds(lat,lng);
-            order.setEtaSeconds(eta);
-            orderService.save(order);
+            if (!CourierTracker.validCoordinates(lat, lng)) return ResponseEntity.badRequest().body(Map.of("error","Invalid lat/lng"));
+            long eta = courierTracker.ping(id, lat, lng);
+            if (eta == CourierTracker.UNKNOWN_ORDER) return ResponseEntity.notFound().build();
+            if (eta == CourierTracker.NO_CAPACITY) return ResponseEntity.status(503).body(Map.of("error","Tracking is at capacity"));
             return ResponseEntity.ok(Map.of("etaSeconds", eta));
         }
 
+        // Many courier pings in one request; invalid or unknown entries are reported back, not fatal.
+        @PostMapping("/track/batch")
+        public ResponseEntity<Map<String,Object>> trackBatch(@RequestBody List<LocationPing> pings) {
+            if (pings == null) return ResponseEntity.badRequest().body(Map.of("error","Missing pings"));
+            int accepted = 0;
+            List<String> rejected = new ArrayList<>();
+            for (LocationPing p : pings) {
+                if (p == null || p.orderId == null || p.lat == null || p.lng == null || !CourierTracker.validCoordinates(p.lat, p.lng)
+                        || courierTracker.ping(p.orderId, p.lat, p.lng) < 0) {
+                    rejected.add(p == null ? null : p.orderId);
+                } else {
+                    accepted++;
+                }
+            }
+            return ResponseEntity.ok(Map.of("accepted", accepted, "rejected", rejected));
+        }
+
+        @GetMapping("/location/stats")
+        public Map<String,Object> locationStats() {
+            return locationService.stats();
+        }
+
+        // Delivery estimate for an address before ordering. Unlike a track ping, which takes the cached or
+        // local figure at once, this waits for the routing provider; misses for one grid cell share a call.
+        @GetMapping("/eta")
+        public CompletableFuture<ResponseEntity<Map<String,Object>>> estimateEta(@RequestParam double lat, @RequestParam double lng) {
+            if (!CourierTracker.validCoordinates(lat, lng)) {
+                return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(Map.of("error","Invalid lat/lng")));
+            }
+            return locationService.estimateEtaSecondsAsync(lat, lng).thenApply(s -> ResponseEntity.ok(Map.of("etaSeconds", s)));
+        }
+
         @GetMapping(path="/orders/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-        public SseEmitter streamOrderEvents(@PathVariable String id) {
-            return orderService.createEmitterForOrder(id);
+        public ResponseEntity<SseEmitter> streamOrderEvents(@PathVariable String id,
+                                                            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+            SseEmitter emitter = orderService.createEmitterForOrder(id, lastEventId);
+            return emitter == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(emitter);
         }
     }
 
@@ -225,208 +484,4834 @@ public class RestaurantApplication {
         public static class ItemRequest { public Long menuItemId; public int quantity; }
     }
 
+    public static class LocationPing {
+        public String orderId;
+        public Double lat;
+        public Double lng;
+    }
+
     // -------------------------
-    // OrderService with Kitchen Worker
+    // Menu snapshot cache
     // -------------------------
-    @org.springframework.stereotype.Service
-    public static class OrderService {
+    // Immutable view of the menu, swapped atomically on refresh(). Call refresh() after any change
+    // to menu_items; readers never touch the database.
+    @org.springframework.stereotype.Component
+    public static class MenuCatalog {
         private final MenuItemRepository menuRepo;
+        private final ObjectMapper mapper;
+        private final AtomicReference<MenuSnapshot> current;
+        private final AtomicLong versions = new AtomicLong();
+        private final List<PriceBook.Rule> rules;
+
+        public MenuCatalog(MenuItemRepository menuRepo, ObjectMapper mapper, @Value("${pricing.rules:}") String rules) {
+            this.menuRepo = menuRepo; this.mapper = mapper;
+            this.rules = PriceBook.parseRules(rules);
+            this.current = new AtomicReference<>(MenuSnapshot.build(0, List.of(), mapper, this.rules));
+        }
+
+        public MenuSnapshot current() { return current.get(); }
+
+        public synchronized MenuSnapshot refresh() {
+            MenuSnapshot next = MenuSnapshot.build(versions.incrementAndGet(), menuRepo.findAll(), mapper, rules);
+            current.set(next);
+            return next;
+        }
+    }
+
+    public static final class MenuSnapshot {
+        private final long version;
+        private final Map<Long, MenuItem> byId;
+        private final Map<String, List<MenuItem>> byCategory;
+        private final Rendered all;
+        private final Map<String, Rendered> renderedByCategory;
+        private final Rendered none;
+        private final PriceBook prices;
+
+        private MenuSnapshot(long version, Map<Long, MenuItem> byId, Map<String, List<MenuItem>> byCategory,
+                             Rendered all, Map<String, Rendered> renderedByCategory, Rendered none, PriceBook prices) {
+            this.version = version; this.byId = byId; this.byCategory = byCategory;
+            this.all = all; this.renderedByCategory = renderedByCategory; this.none = none; this.prices = prices;
+        }
+
+        static MenuSnapshot build(long version, List<MenuItem> items, ObjectMapper mapper, List<PriceBook.Rule> rules) {
+            Map<Long, MenuItem> byId = new HashMap<>();
+            Map<String, List<MenuItem>> byCategory = new LinkedHashMap<>();
+            for (MenuItem mi : items) {
+                byId.put(mi.getId(), mi);
+                byCategory.computeIfAbsent(mi.getCategory(), c -> new ArrayList<>()).add(mi);
+            }
+            Map<String, Rendered> rendered = new HashMap<>();
+            byCategory.forEach((c, list) -> rendered.put(c, Rendered.of(list, mapper)));
+            Map<String, List<MenuItem>> frozen = new LinkedHashMap<>();
+            byCategory.forEach((c, list) -> frozen.put(c, List.copyOf(list)));
+            return new MenuSnapshot(version, Map.copyOf(byId), Collections.unmodifiableMap(frozen),
+                    Rendered.of(items, mapper), Map.copyOf(rendered), Rendered.of(List.of(), mapper),
+                    PriceBook.build(version, items, rules));
+        }
+
+        public long version() { return version; }
+        public PriceBook prices() { return prices; }
+        public MenuItem item(Long id) { return id == null ? null : byId.get(id); }
+        public Collection<MenuItem> items() { return byId.values(); }
+        public List<MenuItem> category(String category) { return byCategory.getOrDefault(category, List.of()); }
+
+        Rendered rendered(String category) {
+            if (category == null || category.isBlank()) return all;
+            return renderedByCategory.getOrDefault(category, none);
+        }
+
+        // JSON bytes plus ready-made 200/304 responses carrying a strong, content-derived ETag.
+        static final class Rendered {
+            final String etag;
+            final ResponseEntity<byte[]> ok;
+            final ResponseEntity<byte[]> notModified;
+
+            private Rendered(byte[] json, String etag) {
+                this.etag = etag;
+                this.ok = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).eTag(etag)
+                        .cacheControl(CacheControl.noCache()).body(json);
+                this.notModified = ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag)
+                        .cacheControl(CacheControl.noCache()).build();
+            }
+
+            static Rendered of(List<MenuItem> items, ObjectMapper mapper) {
+                try {
+                    byte[] json = mapper.writeValueAsBytes(items);
+                    byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+                    return new Rendered(json, "\"" + HexFormat.of().formatHex(digest, 0, 12) + "\"");
+                } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("Cannot render menu", e);
+                }
+            }
+
+            boolean matches(String ifNoneMatch) {
+                if (ifNoneMatch == null) return false;
+                return ifNoneMatch.equals(etag) || ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+            }
+        }
+    }
+
+    // Prices and validates carts for one menu version. Prices are integer cents in arrays indexed by
+    // menu slot. Slots come from the item id directly when ids are dense, and from a binary search
+    // over the sorted ids otherwise. Rules are compiled against the snapshot's categories once, at
+    // build time. A quote reuses per-thread scratch arrays, so apart from the returned Quote it does
+    // not allocate. Rules apply in the order configured:
+    //   combo:burger+sides:100   100 cents off per set of one burger and one sides unit; a unit joins at most one combo
+    //   percent:salad:10         10% off the salad subtotal
+    //   bulk:pizza:3:15          15% off the pizza subtotal once the cart has 3 or more pizza units
+    // The total discount never exceeds the subtotal.
+    public static final class PriceBook {
+        private static final int COMBO = 0, PERCENT = 1, BULK = 2;
+        private static final long[] NO_DISCOUNTS = new long[0];
+        private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+        private final long version;
+        private final long minId;
+        private final long[] sortedIds; // null when slots are id - minId
+        private final MenuItem[] items;  // by slot, null for gaps
+        private final long[] cents;
+        private final int[] category;
+        private final int categories;
+        private final List<Rule> rules;
+        private final int[] ruleKind;
+        private final int[][] ruleCategories; // null when a category is not on this menu
+        private final long[] ruleValue;
+        private final int[] ruleMinUnits;
+
+        private PriceBook(long version, List<MenuItem> menu, List<Rule> rules) {
+            this.version = version;
+            this.rules = rules;
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (MenuItem mi : menu) {
+                min = Math.min(min, mi.getId());
+                max = Math.max(max, mi.getId());
+            }
+            boolean dense = menu.isEmpty() || max - min < 4L * menu.size() + 1024;
+            this.minId = menu.isEmpty() ? 0 : min;
+            this.sortedIds = dense ? null : menu.stream().mapToLong(MenuItem::getId).sorted().toArray();
+            int slots = menu.isEmpty() ? 0 : dense ? (int) (max - min + 1) : menu.size();
+            this.items = new MenuItem[slots];
+            this.cents = new long[slots];
+            this.category = new int[slots];
+            Map<String, Integer> categoryIndex = new HashMap<>();
+            for (MenuItem mi : menu) {
+                int slot = dense ? (int) (mi.getId() - min) : Arrays.binarySearch(sortedIds, mi.getId());
+                items[slot] = mi;
+                cents[slot] = Math.round(mi.getPrice() * 100);
+                category[slot] = mi.getCategory() == null ? -1 : categoryIndex.computeIfAbsent(mi.getCategory(), c -> categoryIndex.size());
+            }
+            this.categories = categoryIndex.size();
+            this.ruleKind = new int[rules.size()];
+            this.ruleCategories = new int[rules.size()][];
+            this.ruleValue = new long[rules.size()];
+            this.ruleMinUnits = new int[rules.size()];
+            for (int r = 0; r < rules.size(); r++) {
+                Rule rule = rules.get(r);
+                ruleKind[r] = rule.kind;
+                ruleValue[r] = rule.value;
+                ruleMinUnits[r] = rule.minUnits;
+                int[] cats = new int[rule.categories.length];
+                for (int i = 0; i < cats.length; i++) {
+                    Integer c = categoryIndex.get(rule.categories[i]);
+                    if (c == null) {
+                        cats = null;
+                        break;
+                    }
+                    cats[i] = c;
+                }
+                ruleCategories[r] = cats;
+            }
+        }
+
+        static PriceBook build(long version, List<MenuItem> menu, List<Rule> rules) { return new PriceBook(version, menu, rules); }
+
+        public long version() { return version; }
+
+        // Same validation and the same numbers for POST /orders/quote and placeOrder.
+        public Quote quote(List<PlaceOrderRequest.ItemRequest> request) {
+            if (request == null || request.isEmpty()) throw new IllegalArgumentException("Empty order");
+            Scratch s = SCRATCH.get().ensure(items.length, categories, request.size());
+            int lines = 0;
+            try {
+                for (PlaceOrderRequest.ItemRequest it : request) {
+                    if (it == null) throw new IllegalArgumentException("Invalid menu item id included");
+                    if (it.quantity <= 0) throw new IllegalArgumentException("Quantity must be > 0");
+                    int slot = it.menuItemId == null ? -1 : slot(it.menuItemId);
+                    if (slot < 0) throw new IllegalArgumentException("Invalid menu item id included");
+                    if (s.qty[slot] == 0) s.touched[lines++] = slot;
+                    s.qty[slot] = Math.addExact(s.qty[slot], it.quantity);
+                }
+                int[] slots = Arrays.copyOf(s.touched, lines);
+                int[] quantities = new int[lines];
+                long subtotal = 0;
+                for (int i = 0; i < lines; i++) {
+                    int slot = slots[i];
+                    int q = s.qty[slot];
+                    quantities[i] = q;
+                    long line = Math.multiplyExact(cents[slot], q);
+                    subtotal = Math.addExact(subtotal, line);
+                    int c = category[slot];
+                    if (c >= 0) {
+                        s.units[c] += q;
+                        s.unitsLeft[c] += q;
+                        s.subtotals[c] += line;
+                    }
+                }
+                long[] discounts = ruleKind.length == 0 ? NO_DISCOUNTS : new long[ruleKind.length];
+                long discount = 0;
+                for (int r = 0; r < ruleKind.length; r++) {
+                    int[] cats = ruleCategories[r];
+                    if (cats == null) continue;
+                    long d = 0;
+                    long room = subtotal - discount;
+                    switch (ruleKind[r]) {
+                        case COMBO: {
+                            long sets = Long.MAX_VALUE;
+                            for (int c : cats) sets = Math.min(sets, s.unitsLeft[c]);
+                            // Only sets that still earn a discount use up units; the rest stay for later combos.
+                            long value = ruleValue[r];
+                            sets = value == 0 ? 0 : Math.min(sets, (room + value - 1) / value);
+                            if (sets > 0) {
+                                for (int c : cats) s.unitsLeft[c] -= sets;
+                                d = Math.multiplyExact(sets, value);
+                            }
+                            break;
+                        }
+                        case BULK:
+                            if (s.units[cats[0]] >= ruleMinUnits[r]) d = percentOf(s.subtotals[cats[0]], ruleValue[r]);
+                            break;
+                        case PERCENT:
+                            d = percentOf(s.subtotals[cats[0]], ruleValue[r]);
+                            break;
+                        default:
+                            break;
+                    }
+                    d = Math.min(d, room);
+                    discounts[r] = d;
+                    discount += d;
+                }
+                return new Quote(this, slots, quantities, subtotal, discount, discounts);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Order is too large");
+            } finally {
+                for (int i = 0; i < lines; i++) s.qty[s.touched[i]] = 0;
+                Arrays.fill(s.units, 0, categories, 0);
+                Arrays.fill(s.unitsLeft, 0, categories, 0);
+                Arrays.fill(s.subtotals, 0, categories, 0);
+            }
+        }
+
+        private static long percentOf(long cents, long percent) { return (Math.multiplyExact(cents, percent) + 50) / 100; }
+
+        private int slot(long id) {
+            if (sortedIds != null) return Math.max(-1, Arrays.binarySearch(sortedIds, id));
+            long ix = id - minId;
+            return ix < 0 || ix >= items.length || items[(int) ix] == null ? -1 : (int) ix;
+        }
+
+        static double amount(long cents) { return cents / 100.0; }
+
+        // "combo:burger+sides:100,percent:salad:10,bulk:pizza:3:15"; checked once at startup.
+        static List<Rule> parseRules(String spec) {
+            List<Rule> out = new ArrayList<>();
+            if (spec == null || spec.isBlank()) return out;
+            for (String raw : spec.split(",")) {
+                String text = raw.trim();
+                if (text.isEmpty()) continue;
+                String[] p = text.split(":");
+                try {
+                    switch (p[0]) {
+                        case "combo":
+                            if (p.length != 3 || !p[1].contains("+")) break;
+                            out.add(new Rule(text, COMBO, p[1].split("\\+"), 0, Long.parseLong(p[2])));
+                            continue;
+                        case "percent":
+                            if (p.length != 3) break;
+                            out.add(new Rule(text, PERCENT, new String[]{p[1]}, 0, Long.parseLong(p[2])));
+                            continue;
+                        case "bulk":
+                            if (p.length != 4) break;
+                            out.add(new Rule(text, BULK, new String[]{p[1]}, Integer.parseInt(p[2]), Long.parseLong(p[3])));
+                            continue;
+                        default:
+                            break;
+                    }
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+                throw new IllegalArgumentException("Bad pricing rule: " + text);
+            }
+            return List.copyOf(out);
+        }
+
+        static final class Rule {
+            final String text;
+            final int kind;
+            final String[] categories;
+            final int minUnits;
+            final long value; // cents off per combo, or percent
+            Rule(String text, int kind, String[] categories, int minUnits, long value) {
+                if (value < 0 || (kind != COMBO && value > 100)) throw new IllegalArgumentException("Bad pricing rule: " + text);
+                this.text = text; this.kind = kind; this.categories = categories; this.minUnits = minUnits; this.value = value;
+            }
+        }
+
+        // Per-thread working arrays; every quote leaves them zeroed.
+        private static final class Scratch {
+            int[] qty = new int[0];
+            int[] touched = new int[0];
+            long[] units = new long[0];
+            long[] unitsLeft = new long[0];
+            long[] subtotals = new long[0];
+
+            Scratch ensure(int slots, int categories, int lines) {
+                if (qty.length < slots) qty = new int[slots];
+                if (touched.length < lines) touched = new int[Math.max(lines, 16)];
+                if (units.length < categories) {
+                    units = new long[categories];
+                    unitsLeft = new long[categories];
+                    subtotals = new long[categories];
+                }
+                return this;
+            }
+        }
+    }
+
+    // A priced cart: merged lines in first-seen order, plus the discount of every rule.
+    public static final class Quote {
+        private final PriceBook book;
+        private final int[] slots;
+        private final int[] quantities;
+        private final long subtotalCents;
+        private final long discountCents;
+        private final long[] ruleDiscountCents;
+
+        Quote(PriceBook book, int[] slots, int[] quantities, long subtotalCents, long discountCents, long[] ruleDiscountCents) {
+            this.book = book; this.slots = slots; this.quantities = quantities;
+            this.subtotalCents = subtotalCents; this.discountCents = discountCents; this.ruleDiscountCents = ruleDiscountCents;
+        }
+
+        public long menuVersion() { return book.version; }
+        public int lines() { return slots.length; }
+        public MenuItem item(int line) { return book.items[slots[line]]; }
+        public int quantity(int line) { return quantities[line]; }
+        public long unitCents(int line) { return book.cents[slots[line]]; }
+        public long subtotalCents() { return subtotalCents; }
+        public long discountCents() { return discountCents; }
+        public long totalCents() { return subtotalCents - discountCents; }
+
+        public List<OrderItem> toOrderItems() {
+            List<OrderItem> out = new ArrayList<>(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                MenuItem mi = item(i);
+                out.add(new OrderItem(mi.getId(), mi.getName(), quantities[i], PriceBook.amount(unitCents(i))));
+            }
+            return out;
+        }
+
+        public Map<String, Object> toResponse() {
+            List<Map<String, Object>> lines = new ArrayList<>(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                MenuItem mi = item(i);
+                Map<String, Object> line = new LinkedHashMap<>();
+                line.put("menuItemId", mi.getId());
+                line.put("name", mi.getName());
+                line.put("quantity", quantities[i]);
+                line.put("unitPrice", PriceBook.amount(unitCents(i)));
+                line.put("lineTotal", PriceBook.amount(unitCents(i) * quantities[i]));
+                lines.add(line);
+            }
+            List<Map<String, Object>> discounts = new ArrayList<>();
+            for (int r = 0; r < ruleDiscountCents.length; r++) {
+                if (ruleDiscountCents[r] > 0) {
+                    Map<String, Object> d = new LinkedHashMap<>();
+                    d.put("rule", book.rules.get(r).text);
+                    d.put("amount", PriceBook.amount(ruleDiscountCents[r]));
+                    discounts.add(d);
+                }
+            }
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("menuVersion", book.version);
+            body.put("items", lines);
+            body.put("subtotal", PriceBook.amount(subtotalCents));
+            body.put("discounts", discounts);
+            body.put("discount", PriceBook.amount(discountCents));
+            body.put("total", PriceBook.amount(totalCents()));
+            return body;
+        }
+    }
+
+    // -------------------------
+    // OrderService with Kitchen Lifecycle
+    // -------------------------
+    @org.springframework.stereotype.Service
+    public static class OrderService implements OrderCluster.Lifecycle {
+        private static final Logger log = LoggerFactory.getLogger(OrderService.class);
+        private final MenuCatalog menuCatalog;
         private final OrderRepository orderRepo;
-        private final ExecutorService kitchenPool;
-        private final BlockingQueue<String> preparationQueue;
-        private final Map<String,SseEmitter> emitters = new ConcurrentHashMap<>();
-        private final AtomicLong seq = new AtomicLong();
+        private final KitchenScheduler kitchen;
+        private final KitchenStations stations;
+        private final PreparationQueue preparationQueue;
+        private final OrderEventHub eventHub;
+        private final OrderWriteBehind writeBehind;
+        private final Map<String, LiveOrder> live = new ConcurrentHashMap<>();
+        private final OrderIdGenerator idGenerator;
+        private final OrderReadModel readModel;
+        private final OrderCluster cluster;
+        private final LatencyHistogram placeTimer;
+        private final LatencyHistogram fulfilmentTimer;
+        private final LatencyHistogram[] stageTimers; // [from * statuses + to], null for transitions that never happen
+        private final LongAdder rejectedOrders = new LongAdder();
+
+        public OrderService(MenuCatalog menuCatalog, OrderRepository orderRepo, OrderEventHub eventHub,
+                            OrderWriteBehind writeBehind, OrderIdGenerator idGenerator, PreparationQueue preparationQueue,
+                            KitchenStations stations, Metrics metrics, OrderReadModel readModel, OrderCluster cluster,
+                            @Value("${kitchen.scheduler.threads:2}") int schedulerThreads) {
+            this.menuCatalog = menuCatalog; this.orderRepo = orderRepo; this.eventHub = eventHub; this.writeBehind = writeBehind;
+            this.idGenerator = idGenerator;
+            this.readModel = readModel;
+            this.cluster = cluster;
+            this.preparationQueue = preparationQueue;
+            this.stations = stations;
+            this.kitchen = new KitchenScheduler(schedulerThreads, this::advanceLifecycle);
+            this.placeTimer = metrics.histogram("restaurant_place_order_seconds", "OrderService.placeOrder duration", "");
+            this.fulfilmentTimer = metrics.histogram("restaurant_order_fulfilment_seconds", "Time from order placement to delivery", "");
+            FoodOrder.Status[] st = FoodOrder.Status.values();
+            this.stageTimers = new LatencyHistogram[st.length * st.length];
+            for (int i = 0; i + 1 <= FoodOrder.Status.DELIVERED.ordinal(); i++) {
+                stageTimers[i * st.length + i + 1] = metrics.histogram("restaurant_order_stage_seconds",
+                        "Time an order spent in a lifecycle stage", Metrics.labels("from", st[i].name(), "to", st[i + 1].name()));
+            }
+            registerGauges(metrics);
+            kitchen.scheduleWithFixedDelay(this::dispatchQueued, 50);
+            cluster.bind(this);
+        }
+
+        private void registerGauges(Metrics metrics) {
+            metrics.gauge("restaurant_orders_in_flight", "Orders between placement and a terminal status", "", live::size);
+            metrics.gauge("restaurant_preparation_queue_depth", "Order ids waiting for the kitchen", "", preparationQueue::size);
+            metrics.gauge("restaurant_preparation_queue_capacity", "Preparation queue capacity", "", preparationQueue::capacity);
+            metrics.counter("restaurant_orders_rejected_total", "Orders refused because the preparation queue was full", "", rejectedOrders::sum);
+            metrics.gauge("restaurant_kitchen_queued_units", "Units waiting for a station slot", "", stations::queuedUnits);
+            for (String station : stations.utilization().keySet()) {
+                metrics.gauge("restaurant_kitchen_station_utilization", "Share of station slot time spent cooking since startup",
+                        Metrics.labels("station", station), () -> stations.utilization().getOrDefault(station, 0.0));
+            }
+            metrics.gauge("restaurant_kitchen_scheduled_steps", "Lifecycle steps waiting on the kitchen timer", "", kitchen::scheduledSteps);
+            metrics.counter("restaurant_kitchen_failed_steps_total", "Lifecycle steps that threw", "", kitchen::failedSteps);
+            metrics.gauge("restaurant_sse_subscribers", "Open SSE subscriptions", "", eventHub::subscriberCount);
+            metrics.gauge("restaurant_sse_topics", "Orders with an open SSE topic", "", eventHub::topicCount);
+            metrics.counter("restaurant_sse_dropped_events_total", "Events dropped for slow SSE consumers", "", eventHub::droppedEvents);
+            metrics.counter("restaurant_sse_failed_sends_total", "SSE writes that failed", "", eventHub::failedSends);
+            metrics.gauge("restaurant_write_behind_pending_orders", "Orders with unflushed status or location updates", "", writeBehind::pendingOrders);
+            metrics.counter("restaurant_write_behind_flushed_rows_total", "Rows written by write-behind flushes", "", writeBehind::flushedRows);
+        }
+
+        // Not @Transactional: save() commits before the id is queued, so the lifecycle never sees an uncommitted order.
+        public FoodOrder placeOrder(PlaceOrderRequest req) { return placeOrder(req, validate(req)); }
 
-        public OrderService(MenuItemRepository menuRepo, OrderRepository orderRepo) {
-            this.menuRepo = menuRepo; this.orderRepo = orderRepo;
-            this.preparationQueue = new LinkedBlockingQueue<>(5000);
-            this.kitchenPool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()/2));
-            for (int i=0; i<Math.max(1, Runtime.getRuntime().availableProcessors()/2); i++) {
-                kitchenPool.submit(this::kitchenWorker);
+        // quote is validate(req) from the caller, which may have checked admission in between.
+        public FoodOrder placeOrder(PlaceOrderRequest req, Quote quote) {
+            long start = System.nanoTime();
+            try {
+                return doPlaceOrder(req, quote);
+            } finally {
+                placeTimer.recordNanos(System.nanoTime() - start);
             }
         }
 
-        @Transactional
-        public FoodOrder placeOrder(PlaceOrderRequest req) {
+        // Everything that makes an order a 400, and its price.
+        public Quote validate(PlaceOrderRequest req) {
             if (req == null || req.items == null || req.items.isEmpty()) throw new IllegalArgumentException("Empty order");
             if (req.customerName == null || req.customerName.isBlank()) throw new IllegalArgumentException("Missing customerName");
-            Map<Long,Integer> counts = new HashMap<>();
-            for (var it: req.items) {
-                if (it.quantity <= 0) throw new IllegalArgumentException("Quantity must be > 0");
-                counts.merge(it.menuItemId, it.quantity, Integer::sum);
-            }
-            List<MenuItem> menuItems = menuRepo.findAllById(counts.keySet());
-            if (menuItems.size() != counts.size()) throw new IllegalArgumentException("Invalid menu item id included");
-            List<OrderItem> orderItems = new ArrayList<>(counts.size());
-            double total = 0.0;
-            for (MenuItem mi : menuItems) {
-                int q = counts.get(mi.getId());
-                orderItems.add(new OrderItem(mi.getId(), mi.getName(), q, mi.getPrice()));
-                total += mi.getPrice() * q;
-            }
-            String id = generateOrderId();
-            FoodOrder order = new FoodOrder(id, req.customerName, req.customerPhone, orderItems, round2(total));
+            return quote(req);
+        }
+
+        private FoodOrder doPlaceOrder(PlaceOrderRequest req, Quote quote) {
+            if (preparationQueue.size() >= preparationQueue.capacity()) {
+                rejectedOrders.increment();
+                throw new IllegalStateException("Kitchen is at capacity, please retry shortly");
+            }
+            String id = idGenerator.nextOrderId();
+            FoodOrder order = new FoodOrder(id, req.customerName, req.customerPhone, quote.toOrderItems(),
+                    PriceBook.amount(quote.totalCents()), PriceBook.amount(quote.discountCents()));
             orderRepo.save(order);
-            preparationQueue.offer(order.getId());
+            LiveOrder lo = LiveOrder.of(order);
+            // Another member owns this id: the row is committed, so it can pick the order up from there.
+            if (!cluster.owns(id) && cluster.handOff(id, lo.status, false, null)) return order;
+            live.put(id, lo);
+            readModel.put(order);
+            if (!preparationQueue.offer(id)) {
+                // Lost the race for the last slot: never leave a RECEIVED order that nobody will cook.
+                live.remove(id);
+                writeBehind.status(id, FoodOrder.Status.CANCELLED);
+                readModel.status(id, FoodOrder.Status.CANCELLED);
+                rejectedOrders.increment();
+                throw new IllegalStateException("Kitchen is at capacity, please retry shortly");
+            }
             return order;
         }
 
-        public Optional<FoodOrder> findById(String id) { return orderRepo.findById(id); }
-        public void save(FoodOrder o) { orderRepo.save(o); }
+        // Backs POST /orders/quote and placeOrder alike, so a quote is exactly what the order would cost.
+        public Quote quote(PlaceOrderRequest req) {
+            if (req == null) throw new IllegalArgumentException("Empty order");
+            return menuCatalog.current().prices().quote(req.items);
+        }
 
-        private String generateOrderId() {
-            long s = seq.incrementAndGet();
-            long ts = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
-            return "ORD" + ts + "-" + s;
+        // The row may lag the live state by one flush interval, so overlay what the lifecycle already knows.
+        public Optional<FoodOrder> findById(String id) {
+            Optional<FoodOrder> maybe = orderRepo.findById(id);
+            LiveOrder lo = live.get(id);
+            if (lo != null) maybe.ifPresent(order -> {
+                order.setStatus(lo.status);
+                if (lo.etaSeconds != null) order.setEtaSeconds(lo.etaSeconds);
+            });
+            return maybe;
         }
 
-        private void kitchenWorker() {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    String id = preparationQueue.poll(1, TimeUnit.SECONDS);
-                    if (id == null) continue;
-                    Optional<FoodOrder> maybe = orderRepo.findById(id);
-                    if (maybe.isEmpty()) continue;
-                    FoodOrder order = maybe.get();
-                    if (order.getStatus() != FoodOrder.Status.RECEIVED) continue;
+        public boolean isLive(String id) { return live.containsKey(id); }
+
+        // Courier ETA for the delivery step; the location row itself is persisted by CourierTracker.
+        public void updateEta(String id, long etaSeconds) {
+            LiveOrder lo = live.get(id);
+            if (lo != null) lo.etaSeconds = etaSeconds;
+            readModel.eta(id, etaSeconds);
+        }
+
+        private void dispatchQueued() {
+            List<String> batch = new ArrayList<>();
+            preparationQueue.drainTo(batch, 4096);
+            for (String id : batch) kitchen.start(id);
+        }
+
+        // One step of the order state machine; returns the delay until the next step, or -1 when the order is done.
+        private long advanceLifecycle(String id) {
+            if (!cluster.owns(id)) {
+                LiveOrder moved = live.get(id);
+                // Not live: already handed over, or a replayed id that the owner's reconcile will pick up.
+                if (moved == null) return -1;
+                if (handOff(moved)) return -1;
+            }
+            LiveOrder order = live.get(id);
+            if (order == null) order = orderRepo.findById(id).map(LiveOrder::of).orElse(null);
+            if (order == null) {
+                log.warn("Dropping queued order {}: not found", id);
+                preparationQueue.complete(id);
+                return -1;
+            }
+            live.putIfAbsent(id, order);
+            switch (order.status) {
+                case RECEIVED:
                     updateStatus(order, FoodOrder.Status.PREPARING);
-                    int totalUnits = order.getItems().stream().mapToInt(OrderItem::getQuantity).sum();
-                    long millis = Math.min(60000, Math.max(4000, totalUnits * 3000L));
-                    Thread.sleep(millis);
+                    cook(order);
+                    return -1;
+                case PREPARING:
+                    // Not cooked yet means it was recovered mid-preparation: put its lines back on the stations.
+                    if (!order.cooked) {
+                        cook(order);
+                        return -1;
+                    }
                     updateStatus(order, FoodOrder.Status.READY);
-                    updateStatus(order, FoodOrder.Status.OUT_FOR_DELIVERY);
-                    long deliveryMillis = (order.getEtaSeconds() != null ? order.getEtaSeconds()*1000L : 15000L);
-                    Thread.sleep(Math.min(45000, Math.max(10000, deliveryMillis)));
+                    // READY hands straight over to the courier
+                    return sendOut(order);
+                case READY:
+                    return sendOut(order);
+                case OUT_FOR_DELIVERY:
                     updateStatus(order, FoodOrder.Status.DELIVERED);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                    return -1;
+                default:
+                    live.remove(id);
+                    preparationQueue.complete(id);
+                    return -1;
             }
         }
 
-        private void updateStatus(FoodOrder order, FoodOrder.Status newStatus) {
-            order.setStatus(newStatus);
-            orderRepo.save(order);
-            notifyClients(order);
+        private long sendOut(LiveOrder order) {
+            updateStatus(order, FoodOrder.Status.OUT_FOR_DELIVERY);
+            return deliveryDelayMillis(order);
         }
 
-        public void markPaid(String id) {
-            findById(id).ifPresent(order -> orderRepo.save(order));
+        private static long deliveryDelayMillis(LiveOrder order) {
+            long deliveryMillis = (order.etaSeconds != null ? order.etaSeconds*1000L : 15000L);
+            return Math.min(45000, Math.max(10000, deliveryMillis));
         }
 
-        public SseEmitter createEmitterForOrder(String orderId) {
-            SseEmitter emitter = new SseEmitter(0L);
-            emitters.put(orderId, emitter);
-            Optional<FoodOrder> maybe = orderRepo.findById(orderId);
-            maybe.ifPresent(order -> {
-                try { emitter.send(SseEmitter.event().name("init").data(order.getStatus().name())); } catch (Exception ignored) {}
+        // The stations call back once the last line is done; the next lifecycle step then marks it READY.
+        private void cook(LiveOrder order) {
+            stations.submit(order.id, order.itemIds, order.quantities, () -> {
+                order.cooked = true;
+                kitchen.start(order.id);
             });
-            emitter.onCompletion(() -> emitters.remove(orderId));
-            emitter.onTimeout(() -> emitters.remove(orderId));
-            return emitter;
         }
 
-        private void notifyClients(FoodOrder order) {
-            SseEmitter emitter = emitters.get(order.getId());
-            if (emitter != null) {
-                try {
-                    emitter.send(SseEmitter.event().name("status").data(Map.of(
-                            "status", order.getStatus().name(),
-                            "orderId", order.getId(),
-                            "timestamp", Instant.now().toString()
-                    )));
-                    if (order.getStatus() == FoodOrder.Status.READY) {
-                        emitter.send(SseEmitter.event().name("notification").data("Your order is ready!"));
-                    }
-                    if (order.getStatus() == FoodOrder.Status.DELIVERED) emitter.complete();
-                } catch (Exception e) {
-                    emitter.completeWithError(e);
-                    emitters.remove(order.getId());
-                }
+        @Override
+        public void adopt(String id, FoodOrder.Status status, boolean cooked, Long etaSeconds, long lastEventId) {
+            LiveOrder current = live.get(id);
+            if (current != null) {
+                // Adopted from a stale row first; the handoff knows better.
+                if (status != null && status.ordinal() > current.status.ordinal()) current.status = status;
+                return;
+            }
+            FoodOrder row = orderRepo.findById(id).orElse(null);
+            if (row == null) {
+                log.warn("Cannot adopt order {}: not found", id);
+                return;
+            }
+            LiveOrder order = LiveOrder.of(row);
+            if (status != null) order.status = status;
+            if (isTerminal(order.status)) return;
+            order.cooked = cooked;
+            if (etaSeconds != null) order.etaSeconds = etaSeconds;
+            if (live.putIfAbsent(id, order) != null) return;
+            eventHub.resumeAt(id, lastEventId);
+            row.setStatus(order.status);
+            if (order.etaSeconds != null) row.setEtaSeconds(order.etaSeconds);
+            readModel.put(row);
+            if (order.status == FoodOrder.Status.OUT_FOR_DELIVERY) {
+                kitchen.startAfter(id, deliveryDelayMillis(order));
+            } else {
+                kitchen.start(id);
             }
         }
 
-        private static double round2(double v) { return Math.round(v * 100.0) / 100.0; }
-    }
+        // Orders still on our stations move once cooked, from their next lifecycle step; the others go now.
+        @Override
+        public void releaseMoved(boolean leaving) {
+            for (LiveOrder order : live.values()) {
+                if (cluster.owns(order.id)) continue;
+                if (!leaving && order.status == FoodOrder.Status.PREPARING && !order.cooked) continue;
+                handOff(order);
+            }
+        }
 
-    // -------------------------
-    // PaymentService with WebClient placeholders
-    // -------------------------
-    @org.springframework.stereotype.Service
-    public static class PaymentService {
-        private final WebClient webClient;
-        @Value("${stripe.api.key:}")
-        private String stripeKey;
-        @Value("${razorpay.key:}")
-        private String razorKey;
-        @Value("${razorpay.secret:}")
-        private String razorSecret;
+        private static final List<FoodOrder.Status> IN_FLIGHT = List.of(FoodOrder.Status.RECEIVED, FoodOrder.Status.PREPARING,
+                FoodOrder.Status.READY, FoodOrder.Status.OUT_FOR_DELIVERY);
 
-        public PaymentService(WebClient.Builder builder) {
-            this.webClient = builder.build();
+        @Override
+        public void reconcile(Instant createdBefore) {
+            int adopted = 0;
+            for (String id : orderRepo.findIdsByStatusIn(IN_FLIGHT, createdBefore)) {
+                if (!cluster.owns(id) || live.containsKey(id)) continue;
+                adopt(id, null, false, null, 0);
+                adopted++;
+            }
+            if (adopted > 0) log.info("Adopted {} in-flight orders nobody was driving", adopted);
         }
 
-        public String createPaymentIntent(FoodOrder order) {
-            // Here we return a simulated token. Replace with Stripe/Razorpay API calls:
-            // Example (Stripe): create PaymentIntent via Stripe API using secret key
-            return "SIMULATED_PAYMENT_TOKEN_" + order.getId();
+        private boolean handOff(LiveOrder order) {
+            if (!cluster.handOff(order.id, order.status, order.cooked, order.etaSeconds)) return false;
+            live.remove(order.id, order);
+            preparationQueue.complete(order.id);
+            return true;
+        }
+
+        @PreDestroy
+        public void shutdown() {
+            kitchen.shutdown();
+            cluster.leave();
+        }
+
+        // Applied in memory and pushed to subscribers immediately; the row catches up on the next write-behind flush.
+        private void updateStatus(LiveOrder order, FoodOrder.Status newStatus) {
+            long now = System.nanoTime();
+            LatencyHistogram stage = stageTimers[order.status.ordinal() * FoodOrder.Status.values().length + newStatus.ordinal()];
+            if (stage != null) stage.recordNanos(now - order.stageStartedNanos);
+            if (newStatus == FoodOrder.Status.DELIVERED) {
+                fulfilmentTimer.recordNanos(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - order.createdAtMillis));
+            }
+            order.stageStartedNanos = now;
+            order.status = newStatus;
+            writeBehind.status(order.id, newStatus);
+            readModel.status(order.id, newStatus);
+            notifyClients(order.id, newStatus);
+            if (isTerminal(newStatus)) {
+                live.remove(order.id);
+                preparationQueue.complete(order.id);
+            }
+        }
+
+        // null for an unknown order, so made-up ids never open a topic on the hub.
+        public SseEmitter createEmitterForOrder(String orderId, String lastEventId) {
+            LiveOrder lo = live.get(orderId);
+            OrderView view = lo == null ? readModel.get(orderId) : null;
+            Optional<FoodOrder.Status> status = lo != null ? Optional.of(lo.status)
+                    : view != null ? Optional.of(view.getStatus()) : orderRepo.findById(orderId).map(FoodOrder::getStatus);
+            if (status.isEmpty()) return null;
+            return eventHub.subscribe(orderId, lastEventId, status.map(Enum::name).orElse(null),
+                    status.filter(OrderService::isTerminal).isPresent());
+        }
+
+        // Publishing only enqueues; network writes happen on the hub's sender threads.
+        private void notifyClients(String orderId, FoodOrder.Status status) {
+            eventHub.publish(orderId, "status", Map.of(
+                    "status", status.name(),
+                    "orderId", orderId,
+                    "timestamp", Instant.now().toString()
+            ));
+            if (status == FoodOrder.Status.READY) {
+                eventHub.publish(orderId, "notification", "Your order is ready!");
+            }
+            if (isTerminal(status)) eventHub.close(orderId);
         }
 
-        public boolean capturePayment(FoodOrder order, String token) {
-            if (token == null || token.isBlank()) return false;
-            return Math.random() > 0.02;
+        private static boolean isTerminal(FoodOrder.Status s) {
+            return s == FoodOrder.Status.DELIVERED || s == FoodOrder.Status.CANCELLED;
+        }
+
+        // Hot copy of the fields the lifecycle needs, so a step never reads the database.
+        static final class LiveOrder {
+            final String id;
+            final long[] itemIds;
+            final int[] quantities;
+            final long createdAtMillis;
+            volatile FoodOrder.Status status;
+            volatile Long etaSeconds;
+            volatile boolean cooked;
+            volatile long stageStartedNanos = System.nanoTime();
+
+            LiveOrder(String id, long[] itemIds, int[] quantities, long createdAtMillis, FoodOrder.Status status, Long etaSeconds) {
+                this.id = id; this.itemIds = itemIds; this.quantities = quantities; this.createdAtMillis = createdAtMillis;
+                this.status = status; this.etaSeconds = etaSeconds;
+            }
+
+            static LiveOrder of(FoodOrder o) {
+                List<OrderItem> items = o.getItems();
+                long[] ids = new long[items.size()];
+                int[] qty = new int[items.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = items.get(i).getMenuItemId();
+                    qty[i] = items.get(i).getQuantity();
+                }
+                long created = o.getCreatedAt() != null ? o.getCreatedAt().toEpochMilli() : System.currentTimeMillis();
+                return new LiveOrder(o.getId(), ids, qty, created, o.getStatus(), o.getEtaSeconds());
+            }
         }
     }
 
     // -------------------------
-    // LocationService using Haversine + WebClient example
+    // Order read model
     // -------------------------
-    @org.springframework.stereotype.Service
-    public static class LocationService {
-        private final WebClient webClient;
-        @Value("${google.maps.key:}")
-        private String gmapsKey;
-        private static final double REST_LAT = 12.9719;
-        private static final double REST_LNG = 77.5946;
+    // Query side of the order data. Every order placed or changed by this instance is mirrored
+    // here as an immutable OrderView, and indexed per status in (createdAt, id) order for keyset
+    // paging. Status and order polls never touch the database. The model is rebuilt from the
+    // tables on startup. Terminal orders are also indexed by finish time, and dropped once they
+    // finished longer ago than the retention; lookups for those fall back to JPA. In a cluster, changes are mirrored to the other members
+    // through the Replica hook (ETA-only updates stay local; location flushes carry the ETA).
+    @org.springframework.stereotype.Component
+    @DependsOn("entityManagerFactory") // rebuild needs the schema
+    public static class OrderReadModel {
+        private static final Logger log = LoggerFactory.getLogger(OrderReadModel.class);
+        private final Map<String, OrderView> byId = new ConcurrentHashMap<>();
+        private final Map<FoodOrder.Status, ConcurrentSkipListSet<Key>> byStatus = new EnumMap<>(FoodOrder.Status.class);
+        private final ConcurrentSkipListSet<Key> byFinish = new ConcurrentSkipListSet<>();
+        private final long retentionMillis;
+        private final ScheduledExecutorService sweeper;
+        private volatile Replica replica;
 
-        public LocationService(WebClient.Builder builder) {
-            this.webClient = builder.build();
+        public interface Replica {
+            void put(OrderView view);
+            void status(String id, FoodOrder.Status status);
+            void location(String id, double lat, double lng, long etaSeconds);
         }
 
-        public long estimateEtaSeconds(double destLat, double destLng) {
-            double km = haversineKm(REST_LAT, REST_LNG, destLat, destLng);
-            double secs = Math.max(300, Math.min(3600, km * 120));
-            return (long) Math.round(secs);
+        public OrderReadModel(JdbcTemplate jdbc, Metrics metrics,
+                              @Value("${orders.read-model.retention-hours:24}") long retentionHours) {
+            for (FoodOrder.Status s : FoodOrder.Status.values()) byStatus.put(s, new ConcurrentSkipListSet<>());
+            this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+            rebuild(jdbc);
+            metrics.gauge("restaurant_read_model_orders", "Orders held in the read model", "", byId::size);
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "read-model-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(this::evictExpired, 1, 1, TimeUnit.MINUTES);
         }
 
-        // Example of how you'd call Google Maps Directions API (synchronous example using WebClient):
-        public Optional<Long> estimateEtaFromGoogle(double destLat, double destLng) {
-            if (gmapsKey == null || gmapsKey.isBlank()) return Optional.empty();
-            try {
-                // Build directions API URL (replace with proper encoded parameters)
-                String url = "https://maps.googleapis.com/maps/api/directions/json?origin="
-                        + REST_LAT + "," + REST_LNG + "&destination=" + destLat + "," + destLng + "&key=" + gmapsKey;
-                Map result = webClient.get().uri(url).retrieve().bodyToMono(Map.class).block();
-                if (result == null) return Optional.empty();
-                // Parsing is left as an exercise: extract duration.value in seconds from routes[0].legs[0].duration.value
-                return Optional.empty();
-            } catch (Exception e) {
-                return Optional.empty();
+        public OrderView get(String id) { return byId.get(id); }
+
+        public void put(FoodOrder order) {
+            OrderView view = OrderView.of(order);
+            upsert(view, System.currentTimeMillis());
+            Replica r = replica;
+            if (r != null) r.put(view);
+        }
+
+        public void status(String id, FoodOrder.Status status) {
+            applyStatus(id, status);
+            Replica r = replica;
+            if (r != null) r.status(id, status);
+        }
+
+        public void eta(String id, long etaSeconds) {
+            byId.computeIfPresent(id, (k, v) -> v.withEta(etaSeconds));
+        }
+
+        public void location(String id, double lat, double lng, long etaSeconds) {
+            applyLocation(id, lat, lng, etaSeconds);
+            Replica r = replica;
+            if (r != null) r.location(id, lat, lng, etaSeconds);
+        }
+
+        public void setReplica(Replica replica) { this.replica = replica; }
+
+        // Changes made on another member; applied without being mirrored again.
+        void applyPut(OrderView view) { upsert(view, System.currentTimeMillis()); }
+
+        void applyStatus(String id, FoodOrder.Status status) {
+            byId.computeIfPresent(id, (k, v) -> {
+                if (v.getStatus() == status) return v;
+                OrderView next = v.withStatus(status);
+                reindex(v, next, System.currentTimeMillis());
+                return next;
+            });
+        }
+
+        void applyLocation(String id, double lat, double lng, long etaSeconds) {
+            byId.computeIfPresent(id, (k, v) -> v.withLocation(lat, lng, etaSeconds));
+        }
+
+        // Orders in one status, oldest first, strictly after the cursor returned by the previous page.
+        public Page byStatus(FoodOrder.Status status, String cursor, int limit) {
+            NavigableSet<Key> keys = byStatus.get(status);
+            if (cursor != null && !cursor.isBlank()) keys = keys.tailSet(Key.parse(cursor), false);
+            List<OrderView> out = new ArrayList<>(Math.min(limit, 64));
+            Key last = null;
+            for (Key k : keys) {
+                OrderView v = byId.get(k.id);
+                if (v == null || v.getStatus() != status) continue; // moved on since the key was read
+                out.add(v);
+                last = k;
+                if (out.size() == limit) break;
             }
+            return new Page(out, out.size() == limit ? last.cursor() : null);
         }
 
-        private static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
-            double R = 6371.0;
-            double dLat = Math.toRadians(lat2 - lat1);
-            double dLon = Math.toRadians(lon2 - lon1);
-            double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-                       Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
-                       Math.sin(dLon/2) * Math.sin(dLon/2);
-            double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-            return R * c;
+        public int size() { return byId.size(); }
+
+        // finishedAtMillis is used when the view enters a terminal status.
+        private void upsert(OrderView view, long finishedAtMillis) {
+            byId.compute(view.getId(), (k, old) -> {
+                reindex(old, view, finishedAtMillis);
+                return view;
+            });
+        }
+
+        // Called under the map's per-key lock. The new key goes in before the old one leaves,
+        // so a concurrent page may briefly see an order twice but never miss it.
+        private void reindex(OrderView old, OrderView next, long finishedAtMillis) {
+            Key key = new Key(next.createdAtMillis, next.getId());
+            byStatus.get(next.getStatus()).add(key);
+            if (old != null && old.getStatus() != next.getStatus()) byStatus.get(old.getStatus()).remove(key);
+            if (finished(next.getStatus()) && (old == null || !finished(old.getStatus()))) {
+                byFinish.add(new Key(finishedAtMillis, next.getId()));
+            }
+        }
+
+        private static boolean finished(FoodOrder.Status s) {
+            return s == FoodOrder.Status.DELIVERED || s == FoodOrder.Status.CANCELLED;
+        }
+
+        void evictExpired() {
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            int evicted = 0;
+            Key k;
+            while ((k = byFinish.pollFirst()) != null) {
+                if (k.millis >= cutoff) {
+                    byFinish.add(k);
+                    break;
+                }
+                byId.computeIfPresent(k.id, (id, v) -> {
+                    if (!finished(v.getStatus())) return v;
+                    byStatus.get(v.getStatus()).remove(new Key(v.createdAtMillis, id));
+                    return null;
+                });
+                evicted++;
+            }
+            if (evicted > 0) log.debug("Evicted {} finished orders from the read model", evicted);
+        }
+
+        // Two queries (orders, then their items in id order) instead of one entity graph per order.
+        private void rebuild(JdbcTemplate jdbc) {
+            long start = System.currentTimeMillis();
+            Timestamp since = new Timestamp(start - retentionMillis);
+            String filter = " where o.status not in ('DELIVERED','CANCELLED') or coalesce(o.finished_at, o.created_at) >= ?";
+            Map<String, List<LineView>> lines = new HashMap<>();
+            jdbc.query("select i.order_id, i.id, i.menu_item_id, i.name, i.quantity, i.unit_price from order_items i"
+                    + " join orders o on o.id = i.order_id" + filter + " order by i.id", rs -> {
+                lines.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(new LineView(
+                        rs.getLong(2), rs.getLong(3), rs.getString(4), rs.getInt(5), rs.getDouble(6)));
+            }, since);
+            jdbc.query("select o.id, o.created_at, o.customer_name, o.customer_phone, o.total_amount, o.discount_amount, o.status,"
+                    + " o.delivery_lat, o.delivery_lng, o.eta_seconds, coalesce(o.finished_at, o.created_at) from orders o" + filter, rs -> {
+                String id = rs.getString(1);
+                upsert(new OrderView(id, rs.getTimestamp(2).toInstant(), rs.getString(3), rs.getString(4),
+                        List.copyOf(lines.getOrDefault(id, List.of())), rs.getDouble(5), rs.getDouble(6),
+                        FoodOrder.Status.valueOf(rs.getString(7)), nullableDouble(rs, 8), nullableDouble(rs, 9), nullableLong(rs, 10)),
+                        rs.getTimestamp(11).getTime());
+            }, since);
+            log.info("Order read model rebuilt with {} orders in {} ms", byId.size(), System.currentTimeMillis() - start);
+        }
+
+        private static Double nullableDouble(ResultSet rs, int col) throws SQLException {
+            double v = rs.getDouble(col);
+            return rs.wasNull() ? null : v;
+        }
+
+        private static Long nullableLong(ResultSet rs, int col) throws SQLException {
+            long v = rs.getLong(col);
+            return rs.wasNull() ? null : v;
+        }
+
+        @PreDestroy
+        public void shutdown() { sweeper.shutdownNow(); }
+
+        public static final class Page {
+            private final List<OrderView> orders;
+            private final String nextCursor;
+            Page(List<OrderView> orders, String nextCursor) { this.orders = orders; this.nextCursor = nextCursor; }
+            public List<OrderView> orders() { return orders; }
+            public String nextCursor() { return nextCursor; }
+        }
+
+        // createdAt in the status indexes, finish time in byFinish.
+        private static final class Key implements Comparable<Key> {
+            final long millis;
+            final String id;
+            Key(long millis, String id) { this.millis = millis; this.id = id; }
+
+            String cursor() { return millis + "_" + id; }
+
+            static Key parse(String cursor) {
+                int sep = cursor.indexOf('_');
+                try {
+                    if (sep > 0) return new Key(Long.parseLong(cursor.substring(0, sep)), cursor.substring(sep + 1));
+                } catch (NumberFormatException ignored) {
+                    // reported below
+                }
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+
+            @Override
+            public int compareTo(Key o) {
+                int c = Long.compare(millis, o.millis);
+                return c != 0 ? c : id.compareTo(o.id);
+            }
+
+            @Override public boolean equals(Object o) { return o instanceof Key && compareTo((Key) o) == 0; }
+            @Override public int hashCode() { return Long.hashCode(millis) * 31 + id.hashCode(); }
+        }
+    }
+
+    // Immutable order snapshot served by the read model; serializes like FoodOrder.
+    public static final class OrderView {
+        private final String id;
+        private final Instant createdAt;
+        final long createdAtMillis;
+        private final String customerName;
+        private final String customerPhone;
+        private final List<LineView> items;
+        private final double totalAmount;
+        private final double discountAmount;
+        private final FoodOrder.Status status;
+        private final Double deliveryLat;
+        private final Double deliveryLng;
+        private final Long etaSeconds;
+
+        OrderView(String id, Instant createdAt, String customerName, String customerPhone, List<LineView> items,
+                  double totalAmount, double discountAmount, FoodOrder.Status status, Double deliveryLat, Double deliveryLng,
+                  Long etaSeconds) {
+            this.id = id; this.createdAt = createdAt; this.createdAtMillis = createdAt.toEpochMilli();
+            this.customerName = customerName; this.customerPhone = customerPhone; this.items = items;
+            this.totalAmount = totalAmount; this.discountAmount = discountAmount; this.status = status;
+            this.deliveryLat = deliveryLat; this.deliveryLng = deliveryLng; this.etaSeconds = etaSeconds;
+        }
+
+        static OrderView of(FoodOrder o) {
+            List<LineView> lines = new ArrayList<>(o.getItems().size());
+            for (OrderItem it : o.getItems()) {
+                lines.add(new LineView(it.getId(), it.getMenuItemId(), it.getName(), it.getQuantity(), it.getUnitPrice()));
+            }
+            return new OrderView(o.getId(), o.getCreatedAt(), o.getCustomerName(), o.getCustomerPhone(), List.copyOf(lines),
+                    o.getTotalAmount(), o.getDiscountAmount(), o.getStatus(), o.getDeliveryLat(), o.getDeliveryLng(), o.getEtaSeconds());
+        }
+
+        OrderView withStatus(FoodOrder.Status s) {
+            return new OrderView(id, createdAt, customerName, customerPhone, items, totalAmount, discountAmount, s,
+                    deliveryLat, deliveryLng, etaSeconds);
+        }
+
+        OrderView withEta(long eta) {
+            return new OrderView(id, createdAt, customerName, customerPhone, items, totalAmount, discountAmount, status,
+                    deliveryLat, deliveryLng, eta);
+        }
+
+        OrderView withLocation(double lat, double lng, long eta) {
+            return new OrderView(id, createdAt, customerName, customerPhone, items, totalAmount, discountAmount, status,
+                    lat, lng, eta);
+        }
+
+        public String getId() { return id; }
+        public Instant getCreatedAt() { return createdAt; }
+        public String getCustomerName() { return customerName; }
+        public String getCustomerPhone() { return customerPhone; }
+        public List<LineView> getItems() { return items; }
+        public double getTotalAmount() { return totalAmount; }
+        public double getDiscountAmount() { return discountAmount; }
+        public FoodOrder.Status getStatus() { return status; }
+        public Double getDeliveryLat() { return deliveryLat; }
+        public Double getDeliveryLng() { return deliveryLng; }
+        public Long getEtaSeconds() { return etaSeconds; }
+    }
+
+    public static final class LineView {
+        private final Long id;
+        private final Long menuItemId;
+        private final String name;
+        private final int quantity;
+        private final double unitPrice;
+        LineView(Long id, Long menuItemId, String name, int quantity, double unitPrice) {
+            this.id = id; this.menuItemId = menuItemId; this.name = name; this.quantity = quantity; this.unitPrice = unitPrice;
+        }
+        public Long getId() { return id; }
+        public Long getMenuItemId() { return menuItemId; }
+        public String getName() { return name; }
+        public int getQuantity() { return quantity; }
+        public double getUnitPrice() { return unitPrice; }
+    }
+
+    // -------------------------
+    // Preparation queue
+    // -------------------------
+    // Hand-off between placeOrder and the kitchen lifecycle. An id stays owned by the queue
+    // from offer() until complete(), so a durable implementation can replay unfinished orders.
+    public interface PreparationQueue {
+        // false when the queue is full; a true return means the id will reach the kitchen
+        boolean offer(String orderId);
+        int drainTo(Collection<String> sink, int max);
+        void complete(String orderId);
+        // ids offered but not yet drained
+        int size();
+        int capacity();
+        default void close() {}
+    }
+
+    public static class InMemoryPreparationQueue implements PreparationQueue {
+        private final BlockingQueue<String> queue;
+        private final int capacity;
+
+        public InMemoryPreparationQueue(int capacity) {
+            this.capacity = capacity;
+            this.queue = new LinkedBlockingQueue<>(capacity);
+        }
+
+        @Override public boolean offer(String orderId) { return queue.offer(orderId); }
+        @Override public int drainTo(Collection<String> sink, int max) { return queue.drainTo(sink, max); }
+        @Override public void complete(String orderId) {}
+        @Override public int size() { return queue.size(); }
+        @Override public int capacity() { return capacity; }
+    }
+
+    // Append-only journal of ENQUEUE/COMPLETE records in memory-mapped, fixed-size segments.
+    // offer() returns once its record is fsynced; concurrent offers share one force (group commit).
+    // On open, every enqueued-but-not-completed id is queued again. Segments are deleted from the
+    // head once all of their orders completed; when too many pile up, the oldest segment's live
+    // ids are re-appended to the head so it can be dropped. Forcing, compaction and file deletes
+    // run on the flusher thread, so offer() and complete() only copy a record under the lock.
+    public static class JournalPreparationQueue implements PreparationQueue {
+        private static final Logger log = LoggerFactory.getLogger(JournalPreparationQueue.class);
+        private static final byte ENQUEUE = 1;
+        private static final byte COMPLETE = 2;
+        private static final int HEADER = 3;  // short payload length + byte type
+        private static final int TRAILER = 4; // crc32 of type + payload
+        private static final String OFFSET_FILE = "consumer.offset";
+
+        private final Path dir;
+        private final int capacity;
+        private final int segmentBytes;
+        private final int maxSegments;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition needsForce = lock.newCondition();
+        private final Condition forced = lock.newCondition();
+        // all guarded by lock
+        private final TreeMap<Long, Segment> segments = new TreeMap<>();
+        private final Map<String, Long> liveSegment = new LinkedHashMap<>();
+        private final ArrayDeque<Entry> ready = new ArrayDeque<>();
+        // rolled-over segments whose tail the flusher has not forced yet
+        private final List<Segment> unforced = new ArrayList<>();
+        private Segment active;
+        private long appended;
+        private long forcedUpTo;
+        private boolean compactionDue;
+        private boolean closed;
+        private final MappedByteBuffer consumerOffset;
+        private final Thread flusher;
+
+        public JournalPreparationQueue(Path dir, int capacity, int segmentBytes, int maxSegments) {
+            this.dir = dir;
+            this.capacity = capacity;
+            this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+            this.maxSegments = Math.max(2, maxSegments);
+            try {
+                Files.createDirectories(dir);
+                try (FileChannel ch = FileChannel.open(dir.resolve(OFFSET_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    this.consumerOffset = ch.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+                }
+                recover();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open preparation journal in " + dir, e);
+            }
+            this.flusher = new Thread(this::flushLoop, "prep-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        @Override
+        public boolean offer(String orderId) {
+            long mine;
+            lock.lock();
+            try {
+                if (closed || ready.size() >= capacity) return false;
+                Entry e = append(ENQUEUE, orderId);
+                ready.addLast(e);
+                mine = appended;
+                while (forcedUpTo < mine && !closed) forced.awaitUninterruptibly();
+                return forcedUpTo >= mine;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int drainTo(Collection<String> sink, int max) {
+            lock.lock();
+            try {
+                int n = 0;
+                Entry last = null;
+                while (n < max && !ready.isEmpty()) {
+                    last = ready.pollFirst();
+                    sink.add(last.orderId);
+                    n++;
+                }
+                if (last != null) {
+                    consumerOffset.putLong(0, last.segment);
+                    consumerOffset.putInt(8, last.position);
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Not waited on: losing a COMPLETE in a crash only replays an order the lifecycle will skip.
+        @Override
+        public void complete(String orderId) {
+            lock.lock();
+            try {
+                if (closed) return;
+                Long segNo = liveSegment.remove(orderId);
+                if (segNo == null) return;
+                segments.get(segNo).live--;
+                append(COMPLETE, orderId);
+                Segment head = segments.firstEntry().getValue();
+                if (head != active && (head.live == 0 || segments.size() > maxSegments)) compactionDue = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try { return ready.size(); } finally { lock.unlock(); }
+        }
+
+        @Override public int capacity() { return capacity; }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                for (Segment seg : unforced) seg.buffer.force();
+                active.buffer.force();
+                consumerOffset.force();
+                forced.signalAll();
+                needsForce.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            flusher.interrupt();
+        }
+
+        private Entry append(byte type, String orderId) {
+            byte[] payload = orderId.getBytes(StandardCharsets.UTF_8);
+            int size = HEADER + payload.length + TRAILER;
+            if (active.writePos + size + 2 > segmentBytes) roll();
+            MappedByteBuffer buf = active.buffer;
+            int pos = active.writePos;
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            buf.put(pos + HEADER, payload);
+            buf.putInt(pos + HEADER + payload.length, (int) crc.getValue());
+            buf.putShort(pos + size, (short) 0);
+            buf.put(pos + 2, type);
+            buf.putShort(pos, (short) payload.length);
+            active.writePos = pos + size;
+            if (type == ENQUEUE) {
+                liveSegment.put(orderId, active.number);
+                active.live++;
+            }
+            appended++;
+            needsForce.signal();
+            return new Entry(orderId, active.number, pos);
+        }
+
+        private void roll() {
+            unforced.add(active);
+            try {
+                active = openSegment(active.number + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot roll preparation journal", e);
+            }
+            segments.put(active.number, active);
+        }
+
+        // Called under the lock. Unlinks droppable head segments and returns them; the caller deletes
+        // their files only after forcing the active segment, which holds any ids carried over.
+        private List<Segment> compact() {
+            compactionDue = false;
+            List<Segment> dropped = new ArrayList<>();
+            while (segments.size() > 1) {
+                Segment head = segments.firstEntry().getValue();
+                if (head == active) break;
+                if (head.live > 0) {
+                    if (segments.size() <= maxSegments) break;
+                    List<String> carried = new ArrayList<>();
+                    liveSegment.forEach((id, seg) -> { if (seg == head.number) carried.add(id); });
+                    for (String id : carried) append(ENQUEUE, id);
+                    head.live = 0;
+                }
+                segments.remove(head.number);
+                dropped.add(head);
+            }
+            return dropped;
+        }
+
+        private void delete(List<Segment> dropped) {
+            for (Segment seg : dropped) {
+                try {
+                    Files.deleteIfExists(seg.path);
+                } catch (IOException e) {
+                    log.warn("Could not delete journal segment {}", seg.path, e);
+                }
+            }
+        }
+
+        private void flushLoop() {
+            while (true) {
+                Segment target;
+                long upTo;
+                List<Segment> rolled;
+                List<Segment> dropped;
+                lock.lock();
+                try {
+                    while (forcedUpTo == appended && !compactionDue && !closed) needsForce.awaitUninterruptibly();
+                    if (closed) return;
+                    dropped = compactionDue ? compact() : List.of();
+                    rolled = new ArrayList<>(unforced);
+                    unforced.clear();
+                    target = active;
+                    upTo = appended;
+                } finally {
+                    lock.unlock();
+                }
+                // Forced outside the lock so appends keep landing while the disk syncs.
+                for (Segment seg : rolled) seg.buffer.force();
+                target.buffer.force();
+                consumerOffset.force();
+                delete(dropped);
+                lock.lock();
+                try {
+                    forcedUpTo = Math.max(forcedUpTo, upTo);
+                    forced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void recover() throws IOException {
+            List<Path> files;
+            try (Stream<Path> list = Files.list(dir)) {
+                files = list.filter(p -> p.getFileName().toString().matches("seg-\\d+\\.log")).sorted().toList();
+            }
+            Map<String, Entry> positions = new HashMap<>();
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                Segment seg = openSegment(Long.parseLong(name.substring(4, name.length() - 4)));
+                segments.put(seg.number, seg);
+                scan(seg, positions);
+            }
+            if (segments.isEmpty()) segments.put(1L, openSegment(1));
+            active = segments.lastEntry().getValue();
+            long offSeg = consumerOffset.getLong(0);
+            int offPos = consumerOffset.getInt(8);
+            int inFlight = 0;
+            for (String id : liveSegment.keySet()) {
+                Entry e = positions.get(id);
+                if (e.segment < offSeg || (e.segment == offSeg && e.position <= offPos)) inFlight++;
+                ready.addLast(e);
+            }
+            List<Segment> dropped = compact();
+            for (Segment seg : unforced) seg.buffer.force();
+            unforced.clear();
+            active.buffer.force();
+            delete(dropped);
+            if (!ready.isEmpty()) {
+                log.info("Preparation journal recovered {} orders ({} were in the kitchen, {} never dispatched)",
+                        ready.size(), inFlight, ready.size() - inFlight);
+            }
+        }
+
+        // Reads records until the zero terminator or the first torn/corrupt record, which becomes the write position.
+        private void scan(Segment seg, Map<String, Entry> positions) {
+            MappedByteBuffer buf = seg.buffer;
+            int pos = 0;
+            CRC32 crc = new CRC32();
+            while (pos + HEADER + TRAILER <= segmentBytes) {
+                int len = buf.getShort(pos);
+                if (len <= 0 || pos + HEADER + len + TRAILER > segmentBytes) break;
+                byte type = buf.get(pos + 2);
+                byte[] payload = new byte[len];
+                buf.get(pos + HEADER, payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != buf.getInt(pos + HEADER + len)) break;
+                String id = new String(payload, StandardCharsets.UTF_8);
+                if (type == ENQUEUE) {
+                    Long previous = liveSegment.put(id, seg.number);
+                    if (previous != null) segments.get(previous).live--;
+                    seg.live++;
+                    positions.put(id, new Entry(id, seg.number, pos));
+                } else if (type == COMPLETE) {
+                    Long segNo = liveSegment.remove(id);
+                    if (segNo != null) segments.get(segNo).live--;
+                }
+                pos += HEADER + len + TRAILER;
+            }
+            seg.writePos = pos;
+            if (pos + 2 <= segmentBytes) buf.putShort(pos, (short) 0);
+        }
+
+        private Segment openSegment(long number) throws IOException {
+            Path path = dir.resolve(String.format("seg-%012d.log", number));
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(number, path, ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+            }
+        }
+
+        private static final class Segment {
+            final long number;
+            final Path path;
+            final MappedByteBuffer buffer;
+            int writePos;
+            int live;
+            Segment(long number, Path path, MappedByteBuffer buffer) { this.number = number; this.path = path; this.buffer = buffer; }
+        }
+
+        private static final class Entry {
+            final String orderId;
+            final long segment;
+            final int position;
+            Entry(String orderId, long segment, int position) { this.orderId = orderId; this.segment = segment; this.position = position; }
+        }
+    }
+
+    // -------------------------
+    // Order id generation
+    // -------------------------
+    // 64-bit time-ordered ids: 41 bits of milliseconds since EPOCH, 10 bits of node id, 12 bits of
+    // sequence. Distinct orders.node-id values never collide, and ids sort by creation time.
+    @org.springframework.stereotype.Component
+    public static class OrderIdGenerator {
+        static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+        static final int NODE_BITS = 10;
+        static final int SEQ_BITS = 12;
+        static final long MAX_NODE = (1L << NODE_BITS) - 1;
+        static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+        private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+        static final int ENCODED_LENGTH = 13; // 36^13 > 2^63, and fixed width keeps string order == numeric order
+
+        private final long node;
+        // (millis - EPOCH) << SEQ_BITS | sequence of the last id handed out
+        private final AtomicLong last = new AtomicLong();
+
+        // A lone instance may leave the node id unset (0). Cluster members sharing a database would
+        // all default to 0 and hand out the same ids, so there it must be set explicitly.
+        public OrderIdGenerator(@Value("${orders.node-id:#{null}}") Long node,
+                                @Value("${cluster.enabled:false}") boolean clusterEnabled,
+                                @Value("${cluster.members:}") String clusterMembers) {
+            if (node == null) {
+                if (clusterEnabled && OrderCluster.parseMembers(clusterMembers).size() > 1) {
+                    throw new IllegalStateException("orders.node-id must be set on every member when cluster.members lists more than one");
+                }
+                node = 0L;
+            }
+            if (node < 0 || node > MAX_NODE) throw new IllegalArgumentException("orders.node-id must be in [0, " + MAX_NODE + "]");
+            this.node = node;
+        }
+
+        public long nextId() {
+            long now = (System.currentTimeMillis() - EPOCH) << SEQ_BITS;
+            long prev, next;
+            do {
+                prev = last.get();
+                // Same millisecond (or clock stepped back): bump the sequence; overflow borrows the next millisecond.
+                next = now > prev ? now : prev + 1;
+            } while (!last.compareAndSet(prev, next));
+            long millis = next >>> SEQ_BITS;
+            return (millis << (NODE_BITS + SEQ_BITS)) | (node << SEQ_BITS) | (next & SEQ_MASK);
+        }
+
+        public String nextOrderId() { return format(nextId()); }
+
+        static String format(long id) {
+            char[] buf = new char[3 + ENCODED_LENGTH];
+            buf[0] = 'O'; buf[1] = 'R'; buf[2] = 'D';
+            for (int i = buf.length - 1; i >= 3; i--) {
+                buf[i] = DIGITS[(int) Long.remainderUnsigned(id, 36)];
+                id = Long.divideUnsigned(id, 36);
+            }
+            return new String(buf);
+        }
+
+        // Inverse of format(); -1 when the string is not an order id.
+        static long parse(String orderId) {
+            if (orderId == null || orderId.length() != 3 + ENCODED_LENGTH || !orderId.startsWith("ORD")) return -1;
+            long id = 0;
+            for (int i = 3; i < orderId.length(); i++) {
+                char c = orderId.charAt(i);
+                int d = Character.isUpperCase(c) ? -1 : Character.digit(c, 36);
+                if (d < 0) return -1;
+                id = id * 36 + d;
+            }
+            return id;
+        }
+
+        public static long node(long id) { return (id >>> SEQ_BITS) & MAX_NODE; }
+        public static long timestampMillis(long id) { return (id >>> (NODE_BITS + SEQ_BITS)) + EPOCH; }
+    }
+
+    // -------------------------
+    // Courier location ingestion
+    // -------------------------
+    // Latest position and ETA per in-flight order live in fixed slots of primitive arrays. A ping
+    // only overwrites its slot and sets a dirty flag; the flush task persists each dirty slot once
+    // per interval through the write-behind stage, so DB cost is bounded by the flush rate, not
+    // the ping rate. Subscribers only hear about an ETA when it moved by the push threshold.
+    // A slot's stamp changes whenever it is released. A ping pins its slot and checks the stamp it
+    // looked up, and a released slot is only reused once no ping holds it, so a ping racing the
+    // release never writes its coordinates into the next order's slot.
+    @org.springframework.stereotype.Component
+    public static class CourierTracker {
+        private static final Logger log = LoggerFactory.getLogger(CourierTracker.class);
+        public static final long UNKNOWN_ORDER = -1;
+        public static final long NO_CAPACITY = -2;
+        private static final double FIXED_POINT = 1e7;
+
+        private final OrderService orderService;
+        private final LocationService locationService;
+        private final OrderWriteBehind writeBehind;
+        private final OrderReadModel readModel;
+        private final OrderEventHub eventHub;
+        private final long pushThresholdSeconds;
+        private final Map<String, Long> slotOf = new ConcurrentHashMap<>(); // stamp << 32 | slot
+        private final String[] orderOf;
+        private final AtomicIntegerArray stamp;
+        private final AtomicIntegerArray pins;     // pings currently writing to the slot
+        private final AtomicLongArray position;  // lat * 1e7 in the high int, lng * 1e7 in the low int
+        private final AtomicLongArray eta;
+        private final AtomicLongArray pushedEta;
+        private final AtomicIntegerArray dirty;
+        private final int[] free;
+        private int freeTop;                      // guarded by free
+        private final List<Integer> draining = new ArrayList<>(); // released but still pinned; guarded by free
+        private final ScheduledExecutorService flusher;
+
+        public CourierTracker(OrderService orderService, LocationService locationService,
+                              OrderWriteBehind writeBehind, OrderReadModel readModel, OrderEventHub eventHub,
+                              @Value("${tracking.capacity:65536}") int capacity,
+                              @Value("${tracking.flush-interval-ms:1000}") long flushIntervalMillis,
+                              @Value("${tracking.eta-push-threshold-seconds:30}") long pushThresholdSeconds) {
+            this.orderService = orderService; this.locationService = locationService;
+            this.writeBehind = writeBehind; this.readModel = readModel; this.eventHub = eventHub;
+            this.pushThresholdSeconds = pushThresholdSeconds;
+            this.orderOf = new String[capacity];
+            this.position = new AtomicLongArray(capacity);
+            this.eta = new AtomicLongArray(capacity);
+            this.pushedEta = new AtomicLongArray(capacity);
+            this.dirty = new AtomicIntegerArray(capacity);
+            this.stamp = new AtomicIntegerArray(capacity);
+            this.pins = new AtomicIntegerArray(capacity);
+            this.free = new int[capacity];
+            for (int i = 0; i < capacity; i++) free[i] = capacity - 1 - i;
+            this.freeTop = capacity;
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "courier-flush");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public static boolean validCoordinates(double lat, double lng) {
+            return lat >= -90 && lat <= 90 && lng >= -180 && lng <= 180;
+        }
+
+        // Returns the new ETA in seconds, or UNKNOWN_ORDER / NO_CAPACITY.
+        public long ping(String orderId, double lat, double lng) {
+            long seconds = -1;
+            while (true) {
+                Long key = slotOf.get(orderId);
+                if (key == null) {
+                    if (!orderService.isLive(orderId)) return UNKNOWN_ORDER;
+                    key = claimSlot(orderId);
+                    if (key == null) return NO_CAPACITY;
+                }
+                if (seconds < 0) seconds = locationService.estimateEtaSeconds(lat, lng);
+                int i = (int) (long) key;
+                pins.incrementAndGet(i);
+                try {
+                    // Released since the lookup: look again, which finds the order gone or in a new slot.
+                    if (stamp.get(i) != (int) (key >>> 32)) continue;
+                    position.set(i, pack(lat, lng));
+                    eta.set(i, seconds);
+                    dirty.set(i, 1);
+                    orderService.updateEta(orderId, seconds);
+                    long pushed = pushedEta.get(i);
+                    if ((pushed == 0 || Math.abs(seconds - pushed) >= pushThresholdSeconds) && pushedEta.compareAndSet(i, pushed, seconds)) {
+                        eventHub.publish(orderId, "eta", Map.of("orderId", orderId, "etaSeconds", seconds));
+                    }
+                    return seconds;
+                } finally {
+                    pins.decrementAndGet(i);
+                }
+            }
+        }
+
+        private Long claimSlot(String orderId) {
+            synchronized (free) {
+                Long existing = slotOf.get(orderId);
+                if (existing != null) return existing;
+                if (freeTop == 0) return null;
+                int i = free[--freeTop];
+                orderOf[i] = orderId;
+                position.set(i, 0);
+                eta.set(i, 0);
+                pushedEta.set(i, 0);
+                dirty.set(i, 0);
+                long key = (long) stamp.get(i) << 32 | i;
+                slotOf.put(orderId, key);
+                return key;
+            }
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (Exception e) {
+                log.error("Courier location flush failed", e);
+            }
+        }
+
+        // Scans every slot: allocation-free, and cheap next to one DB round trip.
+        void flush() {
+            reclaimDrained();
+            for (int i = 0; i < orderOf.length; i++) {
+                String orderId = orderOf[i];
+                if (orderId == null) continue;
+                if (dirty.getAndSet(i, 0) == 1) {
+                    long p = position.get(i);
+                    double lat = (int) (p >> 32) / FIXED_POINT, lng = (int) p / FIXED_POINT;
+                    writeBehind.location(orderId, lat, lng, eta.get(i));
+                    readModel.location(orderId, lat, lng, eta.get(i));
+                }
+                if (!orderService.isLive(orderId)) release(i, orderId);
+            }
+        }
+
+        // The stamp moves before the pins are read, so a ping either sees the new stamp and backs
+        // off, or is still pinned here and the slot waits for the next flush.
+        private void release(int i, String orderId) {
+            synchronized (free) {
+                if (slotOf.remove(orderId, (long) stamp.get(i) << 32 | i)) {
+                    stamp.incrementAndGet(i);
+                    orderOf[i] = null;
+                    if (pins.get(i) == 0) free[freeTop++] = i;
+                    else draining.add(i);
+                }
+            }
+        }
+
+        private void reclaimDrained() {
+            synchronized (free) {
+                draining.removeIf(i -> {
+                    if (pins.get(i) != 0) return false;
+                    free[freeTop++] = i;
+                    return true;
+                });
+            }
+        }
+
+        private static long pack(double lat, double lng) {
+            long la = Math.round(lat * FIXED_POINT);
+            long ln = Math.round(lng * FIXED_POINT);
+            return (la << 32) | (ln & 0xffffffffL);
+        }
+
+        @PreDestroy
+        public void shutdown() {
+            flusher.shutdownNow();
+            flushQuietly();
+        }
+    }
+
+    // -------------------------
+    // Write-behind order persistence
+    // -------------------------
+    // Status and location changes are coalesced per order (latest value wins) and flushed as
+    // JDBC batches on a short interval, or sooner once the batch threshold is reached. The time each
+    // stage was entered is kept even when several stages coalesce into one flush.
+    @org.springframework.stereotype.Component
+    public static class OrderWriteBehind {
+        private static final Logger log = LoggerFactory.getLogger(OrderWriteBehind.class);
+        private final JdbcTemplate jdbc;
+        private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService flusher;
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        private final int batchSize;
+        private final AtomicLong flushedRows = new AtomicLong();
+
+        public OrderWriteBehind(JdbcTemplate jdbc,
+                                @Value("${orders.write-behind.interval-ms:200}") long intervalMillis,
+                                @Value("${orders.write-behind.batch-size:500}") int batchSize) {
+            this.jdbc = jdbc;
+            this.batchSize = Math.max(1, batchSize);
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "order-write-behind");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public void status(String orderId, FoodOrder.Status status) {
+            pending.compute(orderId, (k, p) -> (p == null ? new Pending() : p).status(status));
+            maybeFlushEarly();
+        }
+
+        public void location(String orderId, double lat, double lng, long etaSeconds) {
+            pending.compute(orderId, (k, p) -> (p == null ? new Pending() : p).location(lat, lng, etaSeconds));
+            maybeFlushEarly();
+        }
+
+        public int pendingOrders() { return pending.size(); }
+        public long flushedRows() { return flushedRows.get(); }
+
+        private void maybeFlushEarly() {
+            if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+                try {
+                    flusher.execute(this::flushQuietly);
+                } catch (RejectedExecutionException e) {
+                    flushRequested.set(false);
+                }
+            }
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (Exception e) {
+                log.error("Write-behind flush failed", e);
+            }
+        }
+
+        // Single flusher thread; removing each entry hands ownership of that snapshot to this flush.
+        synchronized void flush() {
+            flushRequested.set(false);
+            if (pending.isEmpty()) return;
+            Map<String, Pending> taken = new HashMap<>();
+            for (String id : pending.keySet()) {
+                Pending p = pending.remove(id);
+                if (p != null) taken.put(id, p);
+            }
+            List<Object[]> statusRows = new ArrayList<>();
+            List<Object[]> locationRows = new ArrayList<>();
+            taken.forEach((id, p) -> {
+                if (p.status != null) statusRows.add(new Object[]{p.status.name(), p.stageTime(0), p.stageTime(1), p.stageTime(2), p.stageTime(3), id});
+                if (p.hasLocation) locationRows.add(new Object[]{p.lat, p.lng, p.etaSeconds, id});
+            });
+            try {
+                if (!statusRows.isEmpty()) jdbc.batchUpdate("update orders set status = ?, preparing_at = coalesce(?, preparing_at),"
+                        + " ready_at = coalesce(?, ready_at), out_for_delivery_at = coalesce(?, out_for_delivery_at),"
+                        + " finished_at = coalesce(?, finished_at) where id = ?", statusRows);
+                if (!locationRows.isEmpty()) jdbc.batchUpdate("update orders set delivery_lat = ?, delivery_lng = ?, eta_seconds = ? where id = ?", locationRows);
+                flushedRows.addAndGet(statusRows.size() + locationRows.size());
+            } catch (RuntimeException e) {
+                // Put the snapshot back unless a newer change for the same order already arrived.
+                taken.forEach((id, p) -> pending.merge(id, p, (newer, old) -> old.mergeInto(newer)));
+                throw e;
+            }
+        }
+
+        @PreDestroy
+        public void shutdown() {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushQuietly();
+        }
+
+        private static final class Pending {
+            FoodOrder.Status status;
+            long[] stageAt; // epoch millis per column of stage(), 0 when not entered in this batch
+            boolean hasLocation;
+            double lat, lng;
+            long etaSeconds;
+
+            Pending status(FoodOrder.Status s) {
+                this.status = s;
+                int stage = stage(s);
+                if (stage >= 0) {
+                    if (stageAt == null) stageAt = new long[4];
+                    stageAt[stage] = System.currentTimeMillis();
+                }
+                return this;
+            }
+
+            // Column of the stage timestamp a status sets: preparing_at, ready_at, out_for_delivery_at, finished_at.
+            static int stage(FoodOrder.Status s) {
+                switch (s) {
+                    case PREPARING: return 0;
+                    case READY: return 1;
+                    case OUT_FOR_DELIVERY: return 2;
+                    case DELIVERED: case CANCELLED: return 3;
+                    default: return -1;
+                }
+            }
+
+            Timestamp stageTime(int stage) {
+                return stageAt == null || stageAt[stage] == 0 ? null : new Timestamp(stageAt[stage]);
+            }
+
+            Pending location(double lat, double lng, long eta) {
+                this.hasLocation = true; this.lat = lat; this.lng = lng; this.etaSeconds = eta;
+                return this;
+            }
+            // Fills fields the newer entry has not set yet.
+            Pending mergeInto(Pending newer) {
+                if (newer.status == null) newer.status = status;
+                if (stageAt != null) {
+                    if (newer.stageAt == null) newer.stageAt = new long[4];
+                    for (int i = 0; i < stageAt.length; i++) if (newer.stageAt[i] == 0) newer.stageAt[i] = stageAt[i];
+                }
+                if (!newer.hasLocation && hasLocation) newer.location(lat, lng, etaSeconds);
+                return newer;
+            }
+        }
+    }
+
+    // -------------------------
+    // Order archive and sales analytics
+    // -------------------------
+    // Finished orders older than archive.after-minutes leave the hot tables in batches. A batch is
+    // appended as one row group to the day's segment file (orders-yyyyMMdd.seg, append-only). A
+    // group has a header with its row count and createdAt range, then one deflated block per column
+    // (varints, createdAt delta-coded in createdAt order, repeated strings dictionary-coded), then a
+    // CRC. Rows are deleted in the same transaction that appends their group, and the file is forced
+    // before that commit. A group whose commit fails is cut off again. After a crash between force
+    // and commit, the last group's ids are deleted again on startup. In a cluster each member
+    // archives the orders it owns into its own directory, and answers analytics for those.
+    //
+    // Sales aggregates per bucket (orders, revenue, units per menu item and category, time spent in
+    // each stage) are folded in as groups are written, and rebuilt from the segments on startup.
+    // A query takes whole buckets from the aggregates and scans the memory-mapped segments only for
+    // partial buckets at the edges of its range. Orders not archived yet are not counted.
+    @org.springframework.stereotype.Component
+    @DependsOn("entityManagerFactory") // recovery deletes rows
+    public static class OrderArchive {
+        private static final Logger log = LoggerFactory.getLogger(OrderArchive.class);
+        private static final int MAGIC = 0x4f524731; // "ORG1"
+        private static final int GROUP_HEADER = 4 + 4 + 4 + 4 + 8 + 8 + 1; // magic, length, rows, lines, min, max, columns
+        private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+        // Column ids. Order columns have one entry per row, line columns one per order line.
+        private static final byte ID = 1, CREATED = 2, CUSTOMER = 3, PHONE = 4, STATUS = 5, TOTAL = 6, DISCOUNT = 7,
+                STAGES = 8, LINES = 9, ITEM = 10, QUANTITY = 11, UNIT = 12, NAME = 13, CATEGORY = 14;
+
+        private final JdbcTemplate jdbc;
+        private final TransactionTemplate tx;
+        private final MenuCatalog menuCatalog;
+        private final OrderCluster cluster;
+        private final Path dir;
+        private final boolean enabled;
+        private final long afterMillis;
+        private final int batchSize;
+        private final long bucketMillis;
+        private final ConcurrentSkipListMap<Long, SalesBucket> buckets = new ConcurrentSkipListMap<>();
+        private final List<RowGroup> groups = new CopyOnWriteArrayList<>(); // in append order
+        private final Map<Path, MappedByteBuffer> mapped = new ConcurrentHashMap<>();
+        private final AtomicLong archivedOrders = new AtomicLong();
+        private final LatencyHistogram passTimer;
+        private final ScheduledExecutorService archiver;
+
+        public OrderArchive(JdbcTemplate jdbc, PlatformTransactionManager txManager, MenuCatalog menuCatalog,
+                            OrderCluster cluster, Metrics metrics,
+                            @Value("${archive.enabled:false}") boolean enabled,
+                            @Value("${archive.dir:data/archive}") String dir,
+                            @Value("${archive.after-minutes:1440}") long afterMinutes,
+                            @Value("${archive.interval-seconds:60}") long intervalSeconds,
+                            @Value("${archive.batch-size:2000}") int batchSize,
+                            @Value("${archive.bucket-minutes:60}") long bucketMinutes) {
+            this.jdbc = jdbc;
+            this.tx = new TransactionTemplate(txManager);
+            this.menuCatalog = menuCatalog;
+            this.cluster = cluster;
+            this.dir = Paths.get(dir);
+            this.enabled = enabled;
+            this.afterMillis = TimeUnit.MINUTES.toMillis(afterMinutes);
+            this.batchSize = Math.max(1, batchSize);
+            this.bucketMillis = TimeUnit.MINUTES.toMillis(Math.max(1, bucketMinutes));
+            this.passTimer = metrics.histogram("restaurant_archive_pass_seconds", "Duration of one archive pass", "");
+            metrics.counter("restaurant_archive_orders_total", "Orders moved from the hot tables into the archive", "", archivedOrders::get);
+            metrics.gauge("restaurant_archive_row_groups", "Row groups in the archive segments", "", groups::size);
+            metrics.gauge("restaurant_archive_bytes", "Size of the archive segments", "",
+                    () -> groups.stream().mapToLong(g -> g.length).sum());
+            if (enabled) open();
+            this.archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "order-archiver");
+                t.setDaemon(true);
+                return t;
+            });
+            if (enabled) archiver.scheduleWithFixedDelay(this::archiveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        public boolean enabled() { return enabled; }
+        public long bucketMillis() { return bucketMillis; }
+
+        // ---- archiving
+
+        private void archiveQuietly() {
+            long start = System.nanoTime();
+            try {
+                while (archiveBatch() == batchSize) {
+                    // keep going while full batches come back
+                }
+            } catch (Exception e) {
+                log.error("Archive pass failed", e);
+            } finally {
+                passTimer.recordNanos(System.nanoTime() - start);
+            }
+        }
+
+        // Moves up to batchSize finished orders; returns how many were archived.
+        int archiveBatch() throws IOException {
+            List<ArchivedOrder> batch = loadFinished(System.currentTimeMillis() - afterMillis);
+            if (batch.isEmpty()) return 0;
+            RowGroup[] written = new RowGroup[1];
+            List<ArchivedOrder> kept = new ArrayList<>(batch.size());
+            try {
+                tx.executeWithoutResult(status -> {
+                    List<Object[]> ids = new ArrayList<>(batch.size());
+                    for (ArchivedOrder o : batch) ids.add(new Object[]{o.id});
+                    jdbc.batchUpdate("delete from order_items where order_id = ?", ids);
+                    int[] deleted = jdbc.batchUpdate("delete from orders where id = ?", ids);
+                    // 0 rows: another member archived it first (ownership moved during the pass)
+                    for (int i = 0; i < deleted.length; i++) if (deleted[i] != 0) kept.add(batch.get(i));
+                    if (kept.isEmpty()) return;
+                    try {
+                        written[0] = append(kept);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (written[0] != null) truncate(written[0]);
+                throw e;
+            }
+            if (written[0] == null) return batch.size();
+            publish(written[0]);
+            for (ArchivedOrder o : kept) fold(o);
+            archivedOrders.addAndGet(kept.size());
+            log.debug("Archived {} orders into {}", kept.size(), written[0].file.getFileName());
+            return batch.size();
+        }
+
+        // Oldest first in (createdAt, id) order; two queries over the same key range, like the read model rebuild.
+        private static final String FINISHED = " where o.status in ('DELIVERED','CANCELLED') and o.created_at < ?";
+
+        private List<ArchivedOrder> loadFinished(long createdBefore) {
+            Timestamp cutoff = new Timestamp(createdBefore);
+            List<ArchivedOrder> out = new ArrayList<>();
+            Timestamp afterCreated = new Timestamp(0);
+            String afterId = "";
+            Timestamp[] lastCreated = new Timestamp[1]; // exact, unlike createdAtMillis
+            while (out.size() < batchSize) {
+                List<ArchivedOrder> page = jdbc.query("select o.id, o.created_at, o.customer_name, o.customer_phone, o.status,"
+                        + " o.total_amount, o.discount_amount, o.preparing_at, o.ready_at, o.out_for_delivery_at, o.finished_at"
+                        + " from orders o" + FINISHED + " and (o.created_at > ? or (o.created_at = ? and o.id > ?))"
+                        + " order by o.created_at, o.id limit ?", (rs, n) -> {
+                    lastCreated[0] = rs.getTimestamp(2);
+                    long created = lastCreated[0].getTime();
+                    long[] stages = new long[4];
+                    for (int i = 0; i < 4; i++) {
+                        Timestamp t = rs.getTimestamp(8 + i);
+                        stages[i] = t == null ? 0 : t.getTime();
+                    }
+                    return new ArchivedOrder(rs.getString(1), created, rs.getString(3), rs.getString(4),
+                            FoodOrder.Status.valueOf(rs.getString(5)), cents(rs.getDouble(6)), cents(rs.getDouble(7)), stages);
+                }, cutoff, afterCreated, afterCreated, afterId, batchSize);
+                for (ArchivedOrder o : page) {
+                    if (out.size() < batchSize && cluster.owns(o.id)) out.add(o);
+                }
+                if (page.size() < batchSize) break;
+                afterCreated = lastCreated[0];
+                afterId = page.get(page.size() - 1).id;
+            }
+            if (!out.isEmpty()) loadLines(out, cutoff);
+            return out;
+        }
+
+        // Lines of every finished order created in the milliseconds spanned by the batch; orders that
+        // are not in it (other members', or past the page) are skipped.
+        private void loadLines(List<ArchivedOrder> orders, Timestamp cutoff) {
+            Map<String, List<Object[]>> lines = new HashMap<>();
+            for (ArchivedOrder o : orders) lines.put(o.id, new ArrayList<>());
+            Timestamp from = new Timestamp(orders.get(0).createdAtMillis);
+            Timestamp to = new Timestamp(orders.get(orders.size() - 1).createdAtMillis + 1);
+            MenuSnapshot menu = menuCatalog.current();
+            jdbc.query("select i.order_id, i.menu_item_id, i.name, i.quantity, i.unit_price from orders o"
+                    + " join order_items i on i.order_id = o.id" + FINISHED + " and o.created_at >= ? and o.created_at < ?"
+                    + " order by i.id", rs -> {
+                List<Object[]> mine = lines.get(rs.getString(1));
+                if (mine == null) return;
+                long item = rs.getLong(2);
+                MenuItem mi = menu.item(item);
+                mine.add(new Object[]{item, rs.getString(3), rs.getInt(4), cents(rs.getDouble(5)),
+                        mi == null || mi.getCategory() == null ? "" : mi.getCategory()});
+            }, cutoff, from, to);
+            for (ArchivedOrder o : orders) o.setLines(lines.get(o.id));
+        }
+
+        // Writes and forces one row group at the end of today's segment; visible to readers after publish().
+        private RowGroup append(List<ArchivedOrder> orders) throws IOException {
+            orders.sort(Comparator.comparingLong((ArchivedOrder o) -> o.createdAtMillis).thenComparing(o -> o.id));
+            ByteBuffer group = encode(orders);
+            Files.createDirectories(dir);
+            Path file = dir.resolve("orders-" + DAY.format(Instant.now()) + ".seg");
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long offset = ch.size();
+                int length = group.remaining();
+                try {
+                    ch.position(offset);
+                    while (group.hasRemaining()) ch.write(group);
+                    ch.force(false);
+                } catch (IOException e) {
+                    ch.truncate(offset);
+                    throw e;
+                }
+                int lines = orders.stream().mapToInt(o -> o.itemIds.length).sum();
+                return new RowGroup(file, offset, length, orders.size(), lines, orders.get(0).createdAtMillis,
+                        orders.get(orders.size() - 1).createdAtMillis);
+            }
+        }
+
+        private void truncate(RowGroup g) {
+            try (FileChannel ch = FileChannel.open(g.file, StandardOpenOption.WRITE)) {
+                ch.truncate(g.offset);
+            } catch (IOException e) {
+                log.error("Cannot cut uncommitted row group off {}", g.file, e);
+            }
+        }
+
+        private void publish(RowGroup g) throws IOException {
+            try (FileChannel ch = FileChannel.open(g.file, StandardOpenOption.READ)) {
+                mapped.put(g.file, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            }
+            groups.add(g);
+        }
+
+        // ---- startup
+
+        private void open() {
+            long start = System.currentTimeMillis();
+            try {
+                Files.createDirectories(dir);
+                List<Path> files;
+                try (Stream<Path> list = Files.list(dir)) {
+                    files = list.filter(p -> p.getFileName().toString().matches("orders-\\d{8}\\.seg")).sorted().collect(Collectors.toList());
+                }
+                for (Path file : files) openSegment(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open order archive in " + dir, e);
+            }
+            if (!groups.isEmpty()) {
+                // The last group may have been forced without its delete committing.
+                List<Object[]> ids = new ArrayList<>();
+                scan(groups.get(groups.size() - 1), Long.MIN_VALUE, Long.MAX_VALUE, true, o -> ids.add(new Object[]{o.id}));
+                tx.executeWithoutResult(status -> {
+                    jdbc.batchUpdate("delete from order_items where order_id = ?", ids);
+                    jdbc.batchUpdate("delete from orders where id = ?", ids);
+                });
+            }
+            for (RowGroup g : groups) scan(g, Long.MIN_VALUE, Long.MAX_VALUE, false, this::fold);
+            long orders = groups.stream().mapToLong(g -> g.rows).sum();
+            log.info("Order archive opened with {} orders in {} row groups in {} ms", orders, groups.size(), System.currentTimeMillis() - start);
+        }
+
+        // Indexes the file's row groups; a torn or corrupt tail (crash mid-append) is cut off.
+        private void openSegment(Path file) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = ch.size();
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                long pos = 0;
+                List<RowGroup> found = new ArrayList<>();
+                while (pos + GROUP_HEADER <= size) {
+                    if (buf.getInt((int) pos) != MAGIC) break;
+                    int length = buf.getInt((int) pos + 4);
+                    if (length < GROUP_HEADER + 4 || pos + length > size) break;
+                    CRC32 crc = new CRC32();
+                    crc.update(buf.duplicate().position((int) pos + 8).limit((int) (pos + length - 4)));
+                    if ((int) crc.getValue() != buf.getInt((int) (pos + length - 4))) break;
+                    found.add(new RowGroup(file, pos, length, buf.getInt((int) pos + 8), buf.getInt((int) pos + 12),
+                            buf.getLong((int) pos + 16), buf.getLong((int) pos + 24)));
+                    pos += length;
+                }
+                if (pos < size) {
+                    log.warn("Cutting {} bytes of incomplete row group off {}", size - pos, file);
+                    ch.truncate(pos);
+                    buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, pos);
+                }
+                mapped.put(file, buf);
+                groups.addAll(found);
+            }
+        }
+
+        // ---- reading
+
+        // Archived orders created in [from, to), in no particular order across row groups.
+        public void scan(long from, long to, boolean details, Consumer<ArchivedOrder> sink) {
+            for (RowGroup g : groups) {
+                if (g.maxCreated >= from && g.minCreated < to) scan(g, from, to, details, sink);
+            }
+        }
+
+        // Without details, the id and customer columns are not inflated.
+        private void scan(RowGroup g, long from, long to, boolean details, Consumer<ArchivedOrder> sink) {
+            long[] createdAt = createdAt(g);
+            int first = 0;
+            while (first < g.rows && createdAt[first] < from) first++;
+            if (first == g.rows || createdAt[first] >= to) return;
+            Column ids = details ? column(g, ID) : null;
+            Column customers = details ? column(g, CUSTOMER) : null;
+            Column phones = details ? column(g, PHONE) : null;
+            Column status = column(g, STATUS);
+            Column total = column(g, TOTAL);
+            Column discount = column(g, DISCOUNT);
+            Column stages = column(g, STAGES);
+            Column lineCounts = column(g, LINES);
+            Column items = column(g, ITEM);
+            Column quantities = column(g, QUANTITY);
+            Column units = column(g, UNIT);
+            Column nameCodes = column(g, NAME);
+            Column categoryCodes = column(g, CATEGORY);
+            String[] names = nameCodes.dictionary();
+            String[] categories = categoryCodes.dictionary();
+            FoodOrder.Status[] statuses = FoodOrder.Status.values();
+            for (int i = 0; i < g.rows && createdAt[i] < to; i++) {
+                String id = details ? ids.string() : null;
+                String customer = details ? customers.string() : null;
+                String phone = details ? phones.string() : null;
+                FoodOrder.Status s = statuses[(int) status.varLong()];
+                long totalCents = total.varLong(), discountCents = discount.varLong();
+                long[] stageAt = new long[4];
+                for (int k = 0; k < 4; k++) {
+                    long offset = stages.varLong();
+                    stageAt[k] = offset == 0 ? 0 : createdAt[i] + offset - 1;
+                }
+                int n = (int) lineCounts.varLong();
+                long[] itemIds = new long[n];
+                int[] qty = new int[n];
+                long[] unitCents = new long[n];
+                String[] lineNames = new String[n];
+                String[] lineCategories = new String[n];
+                for (int k = 0; k < n; k++) {
+                    itemIds[k] = items.zigZag();
+                    qty[k] = (int) quantities.varLong();
+                    unitCents[k] = units.varLong();
+                    lineNames[k] = names[(int) nameCodes.varLong()];
+                    lineCategories[k] = categories[(int) categoryCodes.varLong()];
+                }
+                if (i < first) continue;
+                ArchivedOrder o = new ArchivedOrder(id, createdAt[i], customer, phone, s, totalCents, discountCents, stageAt);
+                o.itemIds = itemIds; o.quantities = qty; o.unitCents = unitCents; o.names = lineNames; o.categories = lineCategories;
+                sink.accept(o);
+            }
+        }
+
+        // The id carries its creation time, so only row groups around that time are read, and only
+        // their id column until the order turns up.
+        public OrderView find(String orderId) {
+            long id = OrderIdGenerator.parse(orderId);
+            if (id < 0) return null;
+            long at = OrderIdGenerator.timestampMillis(id);
+            ArchivedOrder[] hit = new ArchivedOrder[1];
+            for (RowGroup g : groups) {
+                if (g.maxCreated < at - 60_000 || g.minCreated > at + 60_000) continue;
+                Column ids = column(g, ID);
+                for (int i = 0; i < g.rows; i++) {
+                    if (!ids.string().equals(orderId)) continue;
+                    long created = createdAt(g)[i];
+                    scan(g, created, created + 1, true, o -> {
+                        if (o.id.equals(orderId)) hit[0] = o;
+                    });
+                    return hit[0] == null ? null : hit[0].toView();
+                }
+            }
+            return null;
+        }
+
+        private long[] createdAt(RowGroup g) {
+            Column created = column(g, CREATED);
+            long[] out = new long[g.rows];
+            long prev = g.minCreated;
+            for (int i = 0; i < g.rows; i++) out[i] = prev += created.varLong();
+            return out;
+        }
+
+        // Inflates one column of a row group straight from the mapped segment.
+        private Column column(RowGroup g, byte column) {
+            ByteBuffer group = mapped.get(g.file).duplicate();
+            group.position((int) g.offset).limit((int) (g.offset + g.length));
+            group = group.slice();
+            int columns = group.get(32);
+            int dirPos = GROUP_HEADER, blockPos = GROUP_HEADER + columns * 9;
+            for (int c = 0; c < columns; c++, dirPos += 9) {
+                int raw = group.getInt(dirPos + 1), packed = group.getInt(dirPos + 5);
+                if (group.get(dirPos) == column) return Column.inflate(group.position(blockPos).limit(blockPos + packed).slice(), raw);
+                blockPos += packed;
+            }
+            throw new IllegalStateException("Row group in " + g.file + " has no column " + column);
+        }
+
+        // ---- aggregates
+
+        private void fold(ArchivedOrder o) {
+            long start = Math.floorDiv(o.createdAtMillis, bucketMillis) * bucketMillis;
+            SalesBucket b = buckets.computeIfAbsent(start, k -> new SalesBucket());
+            synchronized (b) {
+                b.add(o);
+            }
+        }
+
+        // Sales for orders created in [from, to): whole buckets from the aggregates, the rest from a segment scan.
+        public SalesBucket sales(long from, long to) {
+            SalesBucket out = new SalesBucket();
+            long first = Math.floorDiv(from + bucketMillis - 1, bucketMillis) * bucketMillis;
+            long last = Math.floorDiv(to, bucketMillis) * bucketMillis;
+            if (first >= last) {
+                scan(from, to, false, out::add);
+                return out;
+            }
+            if (from < first) scan(from, first, false, out::add);
+            for (SalesBucket b : buckets.subMap(first, true, last, false).values()) {
+                synchronized (b) {
+                    out.addAll(b);
+                }
+            }
+            if (last < to) scan(last, to, false, out::add);
+            return out;
+        }
+
+        @PreDestroy
+        public void shutdown() {
+            archiver.shutdown();
+            try {
+                archiver.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // ---- encoding
+
+        private static ByteBuffer encode(List<ArchivedOrder> orders) {
+            Column ids = new Column(), created = new Column(), customers = new Column(), phones = new Column(),
+                    status = new Column(), total = new Column(), discount = new Column(), stages = new Column(),
+                    lineCounts = new Column(), items = new Column(), quantities = new Column(), units = new Column();
+            Map<String, Integer> names = new LinkedHashMap<>(), categories = new LinkedHashMap<>();
+            Column nameCodes = new Column(), categoryCodes = new Column();
+            long prev = orders.get(0).createdAtMillis;
+            int lines = 0;
+            for (ArchivedOrder o : orders) {
+                ids.string(o.id);
+                created.varLong(o.createdAtMillis - prev);
+                prev = o.createdAtMillis;
+                customers.string(o.customerName);
+                phones.string(o.customerPhone);
+                status.varLong(o.status.ordinal());
+                total.varLong(o.totalCents);
+                discount.varLong(o.discountCents);
+                for (long at : o.stageAt) stages.varLong(at == 0 ? 0 : Math.max(0, at - o.createdAtMillis) + 1);
+                lineCounts.varLong(o.itemIds.length);
+                for (int k = 0; k < o.itemIds.length; k++) {
+                    items.zigZag(o.itemIds[k]);
+                    quantities.varLong(o.quantities[k]);
+                    units.varLong(o.unitCents[k]);
+                    nameCodes.varLong(names.computeIfAbsent(o.names[k] == null ? "" : o.names[k], n -> names.size()));
+                    categoryCodes.varLong(categories.computeIfAbsent(o.categories[k], c -> categories.size()));
+                    lines++;
+                }
+            }
+            Map<Byte, byte[]> blocks = new LinkedHashMap<>();
+            Map<Byte, Integer> rawLengths = new HashMap<>();
+            Object[][] columns = {{ID, ids}, {CREATED, created}, {CUSTOMER, customers}, {PHONE, phones}, {STATUS, status},
+                    {TOTAL, total}, {DISCOUNT, discount}, {STAGES, stages}, {LINES, lineCounts}, {ITEM, items},
+                    {QUANTITY, quantities}, {UNIT, units},
+                    {NAME, Column.withDictionary(names.keySet(), nameCodes)}, {CATEGORY, Column.withDictionary(categories.keySet(), categoryCodes)}};
+            for (Object[] c : columns) {
+                Column col = (Column) c[1];
+                rawLengths.put((Byte) c[0], col.length);
+                blocks.put((Byte) c[0], col.deflate());
+            }
+            int length = GROUP_HEADER + blocks.size() * 9 + blocks.values().stream().mapToInt(b -> b.length).sum() + 4;
+            ByteBuffer out = ByteBuffer.allocate(length);
+            out.putInt(MAGIC).putInt(length).putInt(orders.size()).putInt(lines)
+               .putLong(orders.get(0).createdAtMillis).putLong(orders.get(orders.size() - 1).createdAtMillis).put((byte) blocks.size());
+            blocks.forEach((id, b) -> out.put(id).putInt(rawLengths.get(id)).putInt(b.length));
+            blocks.values().forEach(out::put);
+            CRC32 crc = new CRC32();
+            crc.update(out.array(), 8, length - 12);
+            out.putInt((int) crc.getValue());
+            return out.flip();
+        }
+
+        private static long cents(double amount) { return Math.round(amount * 100); }
+
+        private static final class RowGroup {
+            final Path file;
+            final long offset;
+            final int length;
+            final int rows;
+            final int lines;
+            final long minCreated;
+            final long maxCreated;
+            RowGroup(Path file, long offset, int length, int rows, int lines, long minCreated, long maxCreated) {
+                this.file = file; this.offset = offset; this.length = length; this.rows = rows; this.lines = lines;
+                this.minCreated = minCreated; this.maxCreated = maxCreated;
+            }
+        }
+
+        // One column block: written as varints, deflated on disk, read back sequentially.
+        static final class Column {
+            private byte[] bytes;
+            private int length;
+            private int pos;
+
+            Column() { this.bytes = new byte[256]; }
+            private Column(byte[] bytes) { this.bytes = bytes; this.length = bytes.length; }
+
+            void varLong(long v) {
+                ensure(10);
+                while ((v & ~0x7FL) != 0) {
+                    bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+                    v >>>= 7;
+                }
+                bytes[length++] = (byte) v;
+            }
+
+            void zigZag(long v) { varLong((v << 1) ^ (v >> 63)); }
+
+            void string(String s) {
+                byte[] utf8 = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+                varLong(utf8.length);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, bytes, length, utf8.length);
+                length += utf8.length;
+            }
+
+            long varLong() {
+                long v = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = bytes[pos++];
+                    v |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) return v;
+                }
+            }
+
+            long zigZag() {
+                long v = varLong();
+                return (v >>> 1) ^ -(v & 1);
+            }
+
+            String string() {
+                int n = (int) varLong();
+                String s = new String(bytes, pos, n, StandardCharsets.UTF_8);
+                pos += n;
+                return s;
+            }
+
+            // Dictionary columns: entry count, the entries, then one code per value.
+            static Column withDictionary(Collection<String> entries, Column codes) {
+                Column c = new Column();
+                c.varLong(entries.size());
+                for (String e : entries) c.string(e);
+                c.ensure(codes.length);
+                System.arraycopy(codes.bytes, 0, c.bytes, c.length, codes.length);
+                c.length += codes.length;
+                return c;
+            }
+
+            // Reads the entries; the codes follow and are read with varLong().
+            String[] dictionary() {
+                String[] d = new String[(int) varLong()];
+                for (int i = 0; i < d.length; i++) d[i] = string();
+                return d;
+            }
+
+            byte[] deflate() {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setInput(bytes, 0, length);
+                    deflater.finish();
+                    byte[] out = new byte[Math.max(64, length / 2)];
+                    int n = 0;
+                    while (!deflater.finished()) {
+                        if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+                        n += deflater.deflate(out, n, out.length - n);
+                    }
+                    return Arrays.copyOf(out, n);
+                } finally {
+                    deflater.end();
+                }
+            }
+
+            static Column inflate(ByteBuffer block, int rawLength) {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(block);
+                    byte[] out = new byte[rawLength];
+                    int n = 0;
+                    while (n < rawLength && !inflater.finished()) n += inflater.inflate(out, n, rawLength - n);
+                    return new Column(out);
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException("Corrupt archive column", e);
+                } finally {
+                    inflater.end();
+                }
+            }
+
+            private void ensure(int more) {
+                if (length + more > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+            }
+        }
+    }
+
+    // One archived order, as loaded from the tables or read back from a row group. Money is in cents.
+    public static final class ArchivedOrder {
+        final String id; // null when scanned without details
+        final long createdAtMillis;
+        final String customerName;
+        final String customerPhone;
+        final FoodOrder.Status status;
+        final long totalCents;
+        final long discountCents;
+        final long[] stageAt; // entered PREPARING, READY, OUT_FOR_DELIVERY, finished; 0 when unknown
+        long[] itemIds = new long[0];
+        int[] quantities = new int[0];
+        long[] unitCents = new long[0];
+        String[] names = new String[0];
+        String[] categories = new String[0];
+
+        ArchivedOrder(String id, long createdAtMillis, String customerName, String customerPhone, FoodOrder.Status status,
+                      long totalCents, long discountCents, long[] stageAt) {
+            this.id = id; this.createdAtMillis = createdAtMillis; this.customerName = customerName; this.customerPhone = customerPhone;
+            this.status = status; this.totalCents = totalCents; this.discountCents = discountCents; this.stageAt = stageAt;
+        }
+
+        // Rows of (menuItemId, name, quantity, unitCents, category).
+        void setLines(List<Object[]> lines) {
+            int n = lines.size();
+            itemIds = new long[n]; quantities = new int[n]; unitCents = new long[n]; names = new String[n]; categories = new String[n];
+            for (int k = 0; k < n; k++) {
+                Object[] l = lines.get(k);
+                itemIds[k] = (Long) l[0]; names[k] = (String) l[1]; quantities[k] = (Integer) l[2];
+                unitCents[k] = (Long) l[3]; categories[k] = (String) l[4];
+            }
+        }
+
+        OrderView toView() {
+            List<LineView> lines = new ArrayList<>(itemIds.length);
+            for (int k = 0; k < itemIds.length; k++) {
+                lines.add(new LineView(null, itemIds[k], names[k], quantities[k], PriceBook.amount(unitCents[k])));
+            }
+            return new OrderView(id, Instant.ofEpochMilli(createdAtMillis), customerName, customerPhone, List.copyOf(lines),
+                    PriceBook.amount(totalCents), PriceBook.amount(discountCents), status, null, null, null);
+        }
+    }
+
+    // Sales of archived orders over some time range. Revenue and units count delivered orders only,
+    // and line revenue is before order-level discounts. Not thread-safe; OrderArchive locks its buckets.
+    public static final class SalesBucket {
+        private static final String[] STAGES = {"RECEIVED", "PREPARING", "READY", "OUT_FOR_DELIVERY"};
+        long orders, delivered, cancelled, revenueCents, discountCents, units;
+        final long[] stageMillis = new long[STAGES.length];
+        final long[] stageCount = new long[STAGES.length];
+        final Map<Long, ItemSales> items = new HashMap<>();
+        final Map<String, long[]> categories = new HashMap<>(); // units, revenue cents
+
+        void add(ArchivedOrder o) {
+            orders++;
+            if (o.status == FoodOrder.Status.CANCELLED) cancelled++;
+            if (o.status != FoodOrder.Status.DELIVERED) return;
+            delivered++;
+            revenueCents += o.totalCents;
+            discountCents += o.discountCents;
+            // Time in stage k runs from entering it to entering the next one; both ends must be known.
+            long entered = o.createdAtMillis;
+            for (int k = 0; k < STAGES.length; k++) {
+                long next = o.stageAt[k];
+                if (entered != 0 && next != 0) {
+                    stageMillis[k] += Math.max(0, next - entered);
+                    stageCount[k]++;
+                }
+                entered = next;
+            }
+            for (int k = 0; k < o.itemIds.length; k++) {
+                long line = o.unitCents[k] * o.quantities[k];
+                units += o.quantities[k];
+                ItemSales item = items.computeIfAbsent(o.itemIds[k], id -> new ItemSales());
+                item.name = o.names[k];
+                item.category = o.categories[k];
+                item.units += o.quantities[k];
+                item.revenueCents += line;
+                long[] c = categories.computeIfAbsent(o.categories[k], k2 -> new long[2]);
+                c[0] += o.quantities[k];
+                c[1] += line;
+            }
+        }
+
+        void addAll(SalesBucket b) {
+            orders += b.orders; delivered += b.delivered; cancelled += b.cancelled;
+            revenueCents += b.revenueCents; discountCents += b.discountCents; units += b.units;
+            for (int k = 0; k < STAGES.length; k++) {
+                stageMillis[k] += b.stageMillis[k];
+                stageCount[k] += b.stageCount[k];
+            }
+            b.items.forEach((id, s) -> {
+                ItemSales mine = items.computeIfAbsent(id, k -> new ItemSales());
+                mine.name = s.name;
+                mine.category = s.category;
+                mine.units += s.units;
+                mine.revenueCents += s.revenueCents;
+            });
+            b.categories.forEach((name, s) -> {
+                long[] mine = categories.computeIfAbsent(name, k -> new long[2]);
+                mine[0] += s[0];
+                mine[1] += s[1];
+            });
+        }
+
+        Map<String, Object> toResponse(long from, long to) {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("from", Instant.ofEpochMilli(from));
+            body.put("to", Instant.ofEpochMilli(to));
+            body.put("orders", orders);
+            body.put("delivered", delivered);
+            body.put("cancelled", cancelled);
+            body.put("revenue", PriceBook.amount(revenueCents));
+            body.put("discount", PriceBook.amount(discountCents));
+            body.put("units", units);
+            Map<String, Object> stages = new LinkedHashMap<>();
+            for (int k = 0; k < STAGES.length; k++) {
+                stages.put(STAGES[k], stageCount[k] == 0 ? null : stageMillis[k] / 1000.0 / stageCount[k]);
+            }
+            body.put("avgStageSeconds", stages);
+            List<Map<String, Object>> byItem = new ArrayList<>();
+            items.entrySet().stream().sorted((a, b) -> Long.compare(b.getValue().units, a.getValue().units)).forEach(e -> {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("menuItemId", e.getKey());
+                row.put("name", e.getValue().name);
+                row.put("category", e.getValue().category);
+                row.put("units", e.getValue().units);
+                row.put("revenue", PriceBook.amount(e.getValue().revenueCents));
+                byItem.add(row);
+            });
+            body.put("items", byItem);
+            List<Map<String, Object>> byCategory = new ArrayList<>();
+            categories.entrySet().stream().sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0])).forEach(e -> {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("category", e.getKey());
+                row.put("units", e.getValue()[0]);
+                row.put("revenue", PriceBook.amount(e.getValue()[1]));
+                byCategory.add(row);
+            });
+            body.put("categories", byCategory);
+            return body;
+        }
+
+        static final class ItemSales {
+            String name;
+            String category;
+            long units;
+            long revenueCents;
+        }
+    }
+
+    @RestController
+    @RequestMapping("/api/analytics")
+    public static class AnalyticsController {
+        private static final int MAX_BUCKETS = 1000;
+        private final OrderArchive archive;
+        public AnalyticsController(OrderArchive archive) { this.archive = archive; }
+
+        // Sales of archived orders created in [from, to), ISO-8601 instants defaulting to the last 24 hours,
+        // split into buckets of `minutes` (a multiple of archive.bucket-minutes; default one bucket).
+        @GetMapping
+        public ResponseEntity<Map<String,Object>> sales(@RequestParam(required = false) String from,
+                                                        @RequestParam(required = false) String to,
+                                                        @RequestParam(required = false) Long minutes) {
+            if (!archive.enabled()) return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error","Archive is disabled"));
+            long[] range = range(from, to);
+            if (range == null) return ResponseEntity.badRequest().body(Map.of("error","from and to must be ISO-8601 instants, from before to"));
+            long step = minutes == null ? archive.bucketMillis() : TimeUnit.MINUTES.toMillis(minutes);
+            if (step <= 0 || step % archive.bucketMillis() != 0) {
+                return ResponseEntity.badRequest().body(Map.of("error","minutes must be a multiple of " + archive.bucketMillis() / 60000));
+            }
+            long start = Math.floorDiv(range[0], step) * step;
+            if ((range[1] - start) / step >= MAX_BUCKETS) return ResponseEntity.badRequest().body(Map.of("error","Too many buckets"));
+            List<Map<String,Object>> buckets = new ArrayList<>();
+            SalesBucket total = new SalesBucket();
+            for (long b = start; b < range[1]; b += step) {
+                long lo = Math.max(range[0], b), hi = Math.min(range[1], b + step);
+                SalesBucket sales = archive.sales(lo, hi);
+                total.addAll(sales);
+                buckets.add(sales.toResponse(lo, hi));
+            }
+            Map<String,Object> body = new LinkedHashMap<>();
+            body.put("total", total.toResponse(range[0], range[1]));
+            body.put("buckets", buckets);
+            return ResponseEntity.ok(body);
+        }
+
+        // Archived orders created in [from, to), oldest first, read from the mapped segments.
+        @GetMapping("/orders")
+        public ResponseEntity<Map<String,Object>> orders(@RequestParam(required = false) String from,
+                                                         @RequestParam(required = false) String to,
+                                                         @RequestParam(defaultValue = "100") int limit) {
+            if (!archive.enabled()) return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error","Archive is disabled"));
+            if (limit < 1 || limit > 500) return ResponseEntity.badRequest().body(Map.of("error","limit must be between 1 and 500"));
+            long[] range = range(from, to);
+            if (range == null) return ResponseEntity.badRequest().body(Map.of("error","from and to must be ISO-8601 instants, from before to"));
+            // Keeps the `limit` oldest; row groups overlap in time, so every one in range is read.
+            Comparator<ArchivedOrder> oldestFirst = Comparator.comparingLong((ArchivedOrder o) -> o.createdAtMillis).thenComparing(o -> o.id);
+            PriorityQueue<ArchivedOrder> oldest = new PriorityQueue<>(oldestFirst.reversed());
+            boolean[] more = new boolean[1];
+            archive.scan(range[0], range[1], true, o -> {
+                oldest.add(o);
+                if (oldest.size() > limit) {
+                    oldest.poll();
+                    more[0] = true;
+                }
+            });
+            List<ArchivedOrder> sorted = new ArrayList<>(oldest);
+            sorted.sort(oldestFirst);
+            List<OrderView> orders = new ArrayList<>(sorted.size());
+            for (ArchivedOrder o : sorted) orders.add(o.toView());
+            Map<String,Object> body = new LinkedHashMap<>();
+            body.put("orders", orders);
+            body.put("truncated", more[0]);
+            return ResponseEntity.ok(body);
+        }
+
+        private static long[] range(String from, String to) {
+            try {
+                long hi = to == null || to.isBlank() ? System.currentTimeMillis() : Instant.parse(to).toEpochMilli();
+                long lo = from == null || from.isBlank() ? hi - TimeUnit.DAYS.toMillis(1) : Instant.parse(from).toEpochMilli();
+                return lo < hi ? new long[]{lo, hi} : null;
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+
+    // -------------------------
+    // Kitchen stations
+    // -------------------------
+    // Each menu category cooks on a station with a number of slots (ovens, grills...) that each
+    // take up to batchUnits units of one item per run. Waiting units are grouped by menu item, so
+    // with cross-order batching five Margheritas from five orders go into one oven run. A group
+    // starts when it fills a slot or has waited the batch window; among due groups the one holding
+    // the earliest promised ready-time goes first. An order is ready when its last line finishes.
+    public static class KitchenStations {
+        private static final Logger log = LoggerFactory.getLogger(KitchenStations.class);
+        private static final String GENERAL = "general";
+
+        public interface Clock {
+            long now();
+            void schedule(Runnable task, long delayMillis);
+            default void shutdown() {}
+        }
+
+        private final Map<String, Station> stations = new LinkedHashMap<>();
+        private final Map<String, Long> prepByCategory;
+        private final Map<Long, Long> prepByItem = new HashMap<>();
+        private final long windowMillis;
+        private final boolean crossOrderBatching;
+        private final boolean earliestPromiseFirst;
+        private final LongFunction<String> categoryOf;
+        private final Clock clock;
+        private final long startedAt;
+        private final AtomicInteger cookingOrders = new AtomicInteger();
+
+        // stationSpec: "category:slots:batchUnits,..."; prepSpec: "category:seconds,..."; itemPrepSpec: "menuItemId:seconds,..."
+        public KitchenStations(String stationSpec, String prepSpec, String itemPrepSpec, long windowMillis,
+                               boolean crossOrderBatching, boolean earliestPromiseFirst,
+                               LongFunction<String> categoryOf, Clock clock) {
+            for (String[] f : fields(stationSpec, 3)) {
+                stations.put(f[0], new Station(f[0], Integer.parseInt(f[1]), Integer.parseInt(f[2])));
+            }
+            stations.putIfAbsent(GENERAL, new Station(GENERAL, 2, 1));
+            this.prepByCategory = new HashMap<>();
+            for (String[] f : fields(prepSpec, 2)) prepByCategory.put(f[0], Long.parseLong(f[1]) * 1000L);
+            for (String[] f : fields(itemPrepSpec, 2)) prepByItem.put(Long.parseLong(f[0]), Long.parseLong(f[1]) * 1000L);
+            this.windowMillis = Math.max(0, windowMillis);
+            this.crossOrderBatching = crossOrderBatching;
+            this.earliestPromiseFirst = earliestPromiseFirst;
+            this.categoryOf = categoryOf;
+            this.clock = clock;
+            this.startedAt = clock.now();
+        }
+
+        public static Clock realClock() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "kitchen-stations");
+                t.setDaemon(true);
+                return t;
+            });
+            return new Clock() {
+                @Override public long now() { return System.currentTimeMillis(); }
+                @Override public void schedule(Runnable task, long delayMillis) {
+                    if (!timer.isShutdown()) timer.schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+                }
+                @Override public void shutdown() { timer.shutdownNow(); }
+            };
+        }
+
+        public void submit(String orderId, long[] itemIds, int[] quantities, Runnable onReady) {
+            cookingOrders.incrementAndGet();
+            Ticket ticket = new Ticket(orderId, itemIds.length, () -> {
+                cookingOrders.decrementAndGet();
+                onReady.run();
+            });
+            long now = clock.now();
+            long promise = now;
+            if (earliestPromiseFirst) {
+                long longest = 0;
+                for (long id : itemIds) longest = Math.max(longest, prepMillis(id));
+                promise = now + longest;
+            }
+            List<Runnable> ready = new ArrayList<>();
+            if (itemIds.length == 0) ready.add(ticket.onReady);
+            for (int i = 0; i < itemIds.length; i++) {
+                Station st = stationFor(itemIds[i]);
+                Line line = new Line(ticket, quantities[i], promise);
+                Object key = crossOrderBatching ? (Object) itemIds[i] : orderId + "#" + itemIds[i];
+                synchronized (st) {
+                    Group g = st.groups.computeIfAbsent(key, k -> new Group());
+                    if (g.units == 0) g.firstArrival = now;
+                    g.menuItemId = itemIds[i];
+                    g.waiting.add(new Portion(line, quantities[i]));
+                    g.units += quantities[i];
+                    st.queuedUnits += quantities[i];
+                    dispatch(st, ready);
+                }
+            }
+            runAll(ready);
+        }
+
+        public long prepMillis(long menuItemId) {
+            Long item = prepByItem.get(menuItemId);
+            if (item != null) return item;
+            return prepByCategory.getOrDefault(categoryOf.apply(menuItemId), 5000L);
+        }
+
+        public Map<String, Double> utilization() {
+            long elapsed = Math.max(1, clock.now() - startedAt);
+            Map<String, Double> out = new LinkedHashMap<>();
+            for (Station st : stations.values()) {
+                synchronized (st) {
+                    out.put(st.name, Math.min(1.0, (double) st.busyMillis / (elapsed * st.slots)));
+                }
+            }
+            return out;
+        }
+
+        // Expected time until an order for these items would be ready: for each station it needs, the
+        // queued and in-progress work spread over the station's slots, plus the item's own prep time.
+        public long quoteMillis(long[] itemIds) {
+            long now = clock.now();
+            long quote = 0;
+            for (long id : itemIds) {
+                Station st = stationFor(id);
+                long backlog;
+                synchronized (st) { backlog = backlogMillis(st, now); }
+                quote = Math.max(quote, backlog + prepMillis(id));
+            }
+            return quote;
+        }
+
+        // Backlog of the busiest station.
+        public long backlogMillis() {
+            long now = clock.now();
+            long worst = 0;
+            for (Station st : stations.values()) {
+                synchronized (st) { worst = Math.max(worst, backlogMillis(st, now)); }
+            }
+            return worst;
+        }
+
+        private long backlogMillis(Station st, long now) {
+            long work = Math.max(0, st.runningEndSum - st.busy * now);
+            for (Group g : st.groups.values()) {
+                work += (long) ((g.units + st.batchUnits - 1) / st.batchUnits) * prepMillis(g.menuItemId);
+            }
+            return work / st.slots;
+        }
+
+        // Orders submitted and not ready yet.
+        public int cookingOrders() { return cookingOrders.get(); }
+
+        public long queuedUnits() {
+            long n = 0;
+            for (Station st : stations.values()) {
+                synchronized (st) { n += st.queuedUnits; }
+            }
+            return n;
+        }
+
+        public void shutdown() { clock.shutdown(); }
+
+        private Station stationFor(long menuItemId) {
+            String category = categoryOf.apply(menuItemId);
+            Station st = category == null ? null : stations.get(category);
+            return st != null ? st : stations.get(GENERAL);
+        }
+
+        // Caller holds the station monitor. Completed orders are collected so callbacks run unlocked.
+        private void dispatch(Station st, List<Runnable> ready) {
+            long now = clock.now();
+            while (st.busy < st.slots) {
+                Group best = null;
+                Object bestKey = null;
+                long nextDue = Long.MAX_VALUE;
+                for (Map.Entry<Object, Group> e : st.groups.entrySet()) {
+                    Group g = e.getValue();
+                    if (g.units >= st.batchUnits || now - g.firstArrival >= windowMillis) {
+                        if (best == null || g.waiting.peek().line.promise < best.waiting.peek().line.promise) {
+                            best = g;
+                            bestKey = e.getKey();
+                        }
+                    } else {
+                        nextDue = Math.min(nextDue, g.firstArrival + windowMillis);
+                    }
+                }
+                if (best == null) {
+                    if (nextDue != Long.MAX_VALUE && !st.wakeupScheduled) {
+                        st.wakeupScheduled = true;
+                        clock.schedule(() -> wake(st), nextDue - now);
+                    }
+                    return;
+                }
+                start(st, bestKey, best);
+            }
+        }
+
+        private void start(Station st, Object key, Group g) {
+            List<Portion> taken = new ArrayList<>();
+            int room = st.batchUnits;
+            while (room > 0 && !g.waiting.isEmpty()) {
+                Portion p = g.waiting.peek();
+                int units = Math.min(room, p.units);
+                if (units == p.units) g.waiting.poll(); else p.units -= units;
+                taken.add(new Portion(p.line, units));
+                room -= units;
+            }
+            int units = st.batchUnits - room;
+            g.units -= units;
+            st.queuedUnits -= units;
+            if (g.units == 0) st.groups.remove(key);
+            st.busy++;
+            st.jobs++;
+            long prep = prepMillis(g.menuItemId);
+            long end = clock.now() + prep;
+            st.runningEndSum += end;
+            clock.schedule(() -> finish(st, taken, prep, end), prep);
+        }
+
+        private void finish(Station st, List<Portion> done, long prep, long end) {
+            List<Runnable> ready = new ArrayList<>();
+            synchronized (st) {
+                st.busy--;
+                st.busyMillis += prep;
+                st.runningEndSum -= end;
+                for (Portion p : done) {
+                    p.line.remainingUnits -= p.units;
+                    if (p.line.remainingUnits == 0 && p.line.ticket.remainingLines.decrementAndGet() == 0) {
+                        ready.add(p.line.ticket.onReady);
+                    }
+                }
+                dispatch(st, ready);
+            }
+            runAll(ready);
+        }
+
+        private void wake(Station st) {
+            List<Runnable> ready = new ArrayList<>();
+            synchronized (st) {
+                st.wakeupScheduled = false;
+                dispatch(st, ready);
+            }
+            runAll(ready);
+        }
+
+        private static void runAll(List<Runnable> tasks) {
+            for (Runnable r : tasks) {
+                try {
+                    r.run();
+                } catch (Exception e) {
+                    log.error("Kitchen completion callback failed", e);
+                }
+            }
+        }
+
+        private static List<String[]> fields(String spec, int arity) {
+            List<String[]> out = new ArrayList<>();
+            if (spec == null || spec.isBlank()) return out;
+            for (String part : spec.split(",")) {
+                if (part.isBlank()) continue;
+                String[] f = part.trim().split(":");
+                if (f.length != arity) throw new IllegalArgumentException("Expected " + arity + " ':'-separated fields in '" + part + "'");
+                for (int i = 0; i < f.length; i++) f[i] = f[i].trim();
+                out.add(f);
+            }
+            return out;
+        }
+
+        private static final class Station {
+            final String name;
+            final int slots;
+            final int batchUnits;
+            final Map<Object, Group> groups = new HashMap<>();
+            int busy;
+            long busyMillis;
+            long queuedUnits;
+            long jobs;
+            long runningEndSum; // sum of the finish times of the runs in progress
+            boolean wakeupScheduled;
+            Station(String name, int slots, int batchUnits) {
+                this.name = name; this.slots = Math.max(1, slots); this.batchUnits = Math.max(1, batchUnits);
+            }
+        }
+
+        private static final class Group {
+            final PriorityQueue<Portion> waiting = new PriorityQueue<>(Comparator.comparingLong(p -> p.line.promise));
+            long menuItemId;
+            int units;
+            long firstArrival;
+        }
+
+        private static final class Ticket {
+            final String orderId;
+            final AtomicInteger remainingLines;
+            final Runnable onReady;
+            Ticket(String orderId, int lines, Runnable onReady) {
+                this.orderId = orderId; this.remainingLines = new AtomicInteger(lines); this.onReady = onReady;
+            }
+        }
+
+        private static final class Line {
+            final Ticket ticket;
+            final long promise;
+            int remainingUnits; // guarded by the station monitor
+            Line(Ticket ticket, int units, long promise) { this.ticket = ticket; this.remainingUnits = units; this.promise = promise; }
+        }
+
+        private static final class Portion {
+            final Line line;
+            int units;
+            Portion(Line line, int units) { this.line = line; this.units = units; }
+        }
+    }
+
+    // -------------------------
+    // Kitchen lifecycle scheduler
+    // -------------------------
+    // Each order is a small state machine whose steps run as timer tasks, so an order that is
+    // cooking or out for delivery holds no thread. Throughput is bound by step cost, not pool size.
+    public static class KitchenScheduler {
+        private static final Logger log = LoggerFactory.getLogger(KitchenScheduler.class);
+        private final ScheduledThreadPoolExecutor timer;
+        private final ToLongFunction<String> step;
+        private final LongAdder failedSteps = new LongAdder();
+
+        public KitchenScheduler(int threads, ToLongFunction<String> step) {
+            this.step = step;
+            this.timer = new ScheduledThreadPoolExecutor(Math.max(1, threads), r -> {
+                Thread t = new Thread(r, "kitchen-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            this.timer.setRemoveOnCancelPolicy(true);
+        }
+
+        public void start(String orderId) { schedule(orderId, 0); }
+        public void startAfter(String orderId, long delayMillis) { schedule(orderId, delayMillis); }
+
+        public void scheduleWithFixedDelay(Runnable task, long delayMillis) {
+            timer.scheduleWithFixedDelay(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failedSteps.increment();
+                    log.error("Kitchen task failed", e);
+                }
+            }, 0, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public int scheduledSteps() { return timer.getQueue().size(); }
+        public long failedSteps() { return failedSteps.sum(); }
+
+        private void schedule(String orderId, long delayMillis) {
+            if (timer.isShutdown()) return;
+            timer.schedule(() -> run(orderId), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void run(String orderId) {
+            long next;
+            try {
+                next = step.applyAsLong(orderId);
+            } catch (Exception e) {
+                failedSteps.increment();
+                log.error("Lifecycle step failed for order {}", orderId, e);
+                return;
+            }
+            if (next >= 0) schedule(orderId, next);
+        }
+
+        public void shutdown() { timer.shutdownNow(); }
+    }
+
+    // -------------------------
+    // Admission control
+    // -------------------------
+    // Sits in front of placeOrder. An order is turned away with 429 + Retry-After when the caller's
+    // phone or IP is over its rate, when the kitchen holds nearly a preparation queue's worth of
+    // orders (queued plus cooking on the stations), or when the kitchen would quote a wait above the
+    // limit; admitted orders are told their quoted wait.
+    @org.springframework.stereotype.Component
+    public static class OrderAdmission {
+        private final KitchenStations stations;
+        private final PreparationQueue preparationQueue;
+        private final boolean enabled;
+        private final long maxWaitMillis;
+        private final double maxQueueFill;
+        private final boolean trustForwardedFor;
+        private final TokenBuckets perPhone;
+        private final TokenBuckets perIp;
+        private final Map<String, LongAdder> rejected = new ConcurrentHashMap<>();
+
+        public OrderAdmission(KitchenStations stations, PreparationQueue preparationQueue, Metrics metrics,
+                              @Value("${admission.enabled:true}") boolean enabled,
+                              @Value("${admission.max-quoted-wait-seconds:120}") long maxWaitSeconds,
+                              @Value("${admission.max-queue-fill:0.8}") double maxQueueFill,
+                              @Value("${admission.trust-forwarded-for:false}") boolean trustForwardedFor,
+                              @Value("${admission.phone.per-minute:6}") double phonePerMinute,
+                              @Value("${admission.phone.burst:3}") int phoneBurst,
+                              @Value("${admission.ip.per-minute:60}") double ipPerMinute,
+                              @Value("${admission.ip.burst:20}") int ipBurst,
+                              @Value("${admission.buckets.stripes:64}") int stripes,
+                              @Value("${admission.buckets.max-keys:200000}") int maxKeys) {
+            this.stations = stations;
+            this.preparationQueue = preparationQueue;
+            this.enabled = enabled;
+            this.maxWaitMillis = maxWaitSeconds * 1000L;
+            this.maxQueueFill = maxQueueFill;
+            this.trustForwardedFor = trustForwardedFor;
+            this.perPhone = new TokenBuckets(phonePerMinute, phoneBurst, stripes, maxKeys);
+            this.perIp = new TokenBuckets(ipPerMinute, ipBurst, stripes, maxKeys);
+            for (String reason : List.of("phone_rate", "ip_rate", "queue_full", "kitchen_wait")) {
+                LongAdder n = new LongAdder();
+                rejected.put(reason, n);
+                metrics.counter("restaurant_admission_rejected_total", "Orders turned away by admission control",
+                        Metrics.labels("reason", reason), n::sum);
+            }
+            metrics.gauge("restaurant_kitchen_backlog_seconds", "Queued and in-progress work on the busiest station",
+                    "", () -> stations.backlogMillis() / 1000.0);
+        }
+
+        public static final class Decision {
+            private final boolean admitted;
+            private final String reason;
+            private final long retryAfterSeconds;
+            private final long quotedWaitSeconds; // -1 when not computed
+            Decision(boolean admitted, String reason, long retryAfterSeconds, long quotedWaitSeconds) {
+                this.admitted = admitted; this.reason = reason; this.retryAfterSeconds = retryAfterSeconds; this.quotedWaitSeconds = quotedWaitSeconds;
+            }
+            public boolean admitted() { return admitted; }
+            public String reason() { return reason; }
+            public long retryAfterSeconds() { return retryAfterSeconds; }
+            public long quotedWaitSeconds() { return quotedWaitSeconds; }
+        }
+
+        public Decision admit(PlaceOrderRequest req, HttpServletRequest http) {
+            long[] itemIds = req == null || req.items == null ? new long[0]
+                    : req.items.stream().filter(i -> i != null && i.menuItemId != null).mapToLong(i -> i.menuItemId).toArray();
+            long quote = stations.quoteMillis(itemIds);
+            if (!enabled) return new Decision(true, null, 0, seconds(quote));
+            // Load first: a caller turned away for capacity keeps its rate-limit tokens.
+            // The queue alone is drained every 50 ms, so the orders on the stations count towards the fill.
+            if (preparationQueue.size() + stations.cookingOrders() >= preparationQueue.capacity() * maxQueueFill) {
+                return reject("queue_full", "Kitchen is at capacity, please retry shortly", seconds(quote - maxWaitMillis), seconds(quote));
+            }
+            if (quote > maxWaitMillis) {
+                return reject("kitchen_wait", "Kitchen wait is too long right now", seconds(quote - maxWaitMillis), seconds(quote));
+            }
+            String ip = clientIp(http);
+            long wait = perIp.tryAcquire(ip);
+            if (wait > 0) return reject("ip_rate", "Too many orders from this address", seconds(wait), -1);
+            if (req != null && req.customerPhone != null && !req.customerPhone.isBlank()) {
+                wait = perPhone.tryAcquire(req.customerPhone.trim());
+                if (wait > 0) return reject("phone_rate", "Too many orders for this phone number", seconds(wait), -1);
+            }
+            return new Decision(true, null, 0, seconds(quote));
+        }
+
+        private Decision reject(String reason, String message, long retryAfterSeconds, long quotedWaitSeconds) {
+            rejected.get(reason).increment();
+            return new Decision(false, message, Math.max(1, retryAfterSeconds), quotedWaitSeconds);
+        }
+
+        private String clientIp(HttpServletRequest http) {
+            if (trustForwardedFor) {
+                String fwd = http.getHeader("X-Forwarded-For");
+                if (fwd != null && !fwd.isBlank()) {
+                    int comma = fwd.indexOf(',');
+                    return (comma < 0 ? fwd : fwd.substring(0, comma)).trim();
+                }
+            }
+            return http.getRemoteAddr();
+        }
+
+        private static long seconds(long millis) { return (Math.max(0, millis) + 999) / 1000; }
+    }
+
+    // Token buckets keyed by client, each packed into one AtomicLong: milli-tokens in the top 20 bits,
+    // last refill time (ms since the store was created) in the low 44. Keys are spread over striped
+    // maps so a sweep of idle buckets only walks one stripe, and no lock is ever taken.
+    public static final class TokenBuckets {
+        private static final int TIME_BITS = 44;
+        private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+        private static final long ONE = 1000;
+        private final List<ConcurrentHashMap<String, AtomicLong>> stripes;
+        private final int mask;
+        private final int maxPerStripe;
+        private final long capacity;
+        private final double refillPerMilli;
+        private final long base = System.currentTimeMillis();
+
+        public TokenBuckets(double perMinute, int burst, int stripes, int maxKeys) {
+            if (burst < 1 || burst > ((1 << (64 - TIME_BITS)) - 1) / ONE) throw new IllegalArgumentException("burst out of range: " + burst);
+            // Also turns away NaN; a zero rate would make every wait a division by zero.
+            if (!(perMinute > 0)) throw new IllegalArgumentException("per-minute rate must be > 0: " + perMinute);
+            int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+            List<ConcurrentHashMap<String, AtomicLong>> maps = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) maps.add(new ConcurrentHashMap<>());
+            this.stripes = List.copyOf(maps);
+            this.mask = n - 1;
+            this.maxPerStripe = Math.max(16, maxKeys / n);
+            this.capacity = burst * ONE;
+            this.refillPerMilli = perMinute * ONE / 60_000.0;
+        }
+
+        // Takes one token; returns 0 on success, otherwise the milliseconds until a token is available.
+        public long tryAcquire(String key) {
+            long now = System.currentTimeMillis() - base;
+            ConcurrentHashMap<String, AtomicLong> stripe = stripes.get(spread(key.hashCode()) & mask);
+            AtomicLong bucket = stripe.get(key);
+            if (bucket == null) {
+                if (stripe.size() >= maxPerStripe) sweep(stripe, now);
+                bucket = stripe.computeIfAbsent(key, k -> new AtomicLong(pack(capacity, now)));
+            }
+            while (true) {
+                long state = bucket.get();
+                long last = state & TIME_MASK;
+                long tokens = tokens(state, now);
+                if (tokens < ONE) return (long) Math.ceil((ONE - tokens) / refillPerMilli);
+                if (bucket.compareAndSet(state, pack(tokens - ONE, Math.max(last, now)))) return 0;
+            }
+        }
+
+        public int size() {
+            int n = 0;
+            for (ConcurrentHashMap<String, AtomicLong> s : stripes) n += s.size();
+            return n;
+        }
+
+        // A full bucket carries no state worth keeping.
+        private void sweep(ConcurrentHashMap<String, AtomicLong> stripe, long now) {
+            stripe.values().removeIf(b -> tokens(b.get(), now) >= capacity);
+        }
+
+        private long tokens(long state, long now) {
+            long elapsed = Math.max(0, now - (state & TIME_MASK));
+            return Math.min(capacity, (state >>> TIME_BITS) + (long) (elapsed * refillPerMilli));
+        }
+
+        private static long pack(long tokens, long time) { return (tokens << TIME_BITS) | (time & TIME_MASK); }
+
+        private static int spread(int h) { return h ^ (h >>> 16); }
+    }
+
+    // -------------------------
+    // Metrics
+    // -------------------------
+    // In-process registry scraped in the Prometheus text format. Histograms, gauges and counters are
+    // registered once; recording is a few atomic adds, and all formatting happens at scrape time.
+    @org.springframework.stereotype.Component
+    public static class Metrics {
+        private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+        public LatencyHistogram histogram(String name, String help, String labels) {
+            return (LatencyHistogram) family(name, help, "summary").series.computeIfAbsent(labels, l -> new LatencyHistogram());
+        }
+
+        public void gauge(String name, String help, String labels, DoubleSupplier value) {
+            family(name, help, "gauge").series.put(labels, value);
+        }
+
+        public void counter(String name, String help, String labels, LongSupplier value) {
+            family(name, help, "counter").series.put(labels, value);
+        }
+
+        // Builds a label set such as station="pizza" from alternating names and values.
+        public static String labels(String... pairs) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i + 1 < pairs.length; i += 2) {
+                if (sb.length() > 0) sb.append(',');
+                sb.append(pairs[i]).append("=\"")
+                  .append(pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+            }
+            return sb.toString();
+        }
+
+        public String scrape() {
+            StringBuilder out = new StringBuilder(8192);
+            for (Map.Entry<String, Family> e : families.entrySet()) {
+                String name = e.getKey();
+                Family f = e.getValue();
+                out.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+                for (Map.Entry<String, Object> s : f.series.entrySet()) {
+                    String labels = s.getKey();
+                    Object v = s.getValue();
+                    if (v instanceof LatencyHistogram) {
+                        ((LatencyHistogram) v).write(out, name, labels);
+                    } else if (v instanceof LongSupplier) {
+                        sample(out, name, labels, null, Long.toString(((LongSupplier) v).getAsLong()));
+                    } else {
+                        sample(out, name, labels, null, Double.toString(((DoubleSupplier) v).getAsDouble()));
+                    }
+                }
+                // Maxima go in a gauge family of their own: a summary may only carry quantiles, _sum and _count.
+                if (f.type.equals("summary")) {
+                    out.append("# HELP ").append(name).append("_max Maximum of ").append(name).append('\n');
+                    out.append("# TYPE ").append(name).append("_max gauge\n");
+                    for (Map.Entry<String, Object> s : f.series.entrySet()) {
+                        sample(out, name + "_max", s.getKey(), null, Double.toString(((LatencyHistogram) s.getValue()).maxMicros() / 1e6));
+                    }
+                }
+            }
+            return out.toString();
+        }
+
+        static void sample(StringBuilder out, String name, String labels, String extra, String value) {
+            out.append(name);
+            if (!labels.isEmpty() || extra != null) {
+                out.append('{').append(labels);
+                if (extra != null) out.append(labels.isEmpty() ? "" : ",").append(extra);
+                out.append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+
+        private Family family(String name, String help, String type) {
+            Family f = families.computeIfAbsent(name, n -> new Family(help, type));
+            if (!f.type.equals(type)) throw new IllegalArgumentException("Metric " + name + " is already registered as a " + f.type);
+            return f;
+        }
+
+        private static final class Family {
+            final String help;
+            final String type;
+            final Map<String, Object> series = new ConcurrentSkipListMap<>();
+            Family(String help, String type) { this.help = help; this.type = type; }
+        }
+    }
+
+    // Log-linear latency histogram in microseconds: exact below 64us, then 32 buckets per power of two
+    // (about 3% relative error) up to ~25 days. Recording is allocation-free and lock-free.
+    public static final class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int MAX_SHIFT = 35;
+        private static final int BUCKETS = (MAX_SHIFT + 2) * SUB;
+        private static final long MAX_MICROS = (1L << (MAX_SHIFT + SUB_BITS + 1)) - 1;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        public void recordNanos(long nanos) {
+            long micros = Math.min(MAX_MICROS, Math.max(0, nanos / 1000));
+            counts.incrementAndGet(index(micros));
+            count.increment();
+            sumMicros.add(micros);
+            long m;
+            while (micros > (m = maxMicros.get()) && !maxMicros.compareAndSet(m, micros)) { }
+        }
+
+        public long count() { return count.sum(); }
+        public long maxMicros() { return maxMicros.get(); }
+
+        void write(StringBuilder out, String name, String labels) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+            for (double q : QUANTILES) {
+                Metrics.sample(out, name, labels, "quantile=\"" + q + "\"", Double.toString(quantile(snapshot, total, q) / 1e6));
+            }
+            Metrics.sample(out, name + "_sum", labels, null, Double.toString(sumMicros.sum() / 1e6));
+            Metrics.sample(out, name + "_count", labels, null, Long.toString(total));
+        }
+
+        // Value at quantile q in microseconds (bucket midpoint, capped at the observed maximum).
+        private long quantile(long[] snapshot, long total, double q) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(maxMicros.get(), (lowerBound(i) + upperBound(i)) / 2);
+            }
+            return maxMicros.get();
+        }
+
+        static int index(long micros) {
+            if (micros < SUB) return (int) micros;
+            int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+            return (shift << SUB_BITS) + (int) (micros >>> shift);
+        }
+
+        static long lowerBound(int index) {
+            if (index < 2 * SUB) return index;
+            int shift = (index >>> SUB_BITS) - 1;
+            return (long) ((index & (SUB - 1)) + SUB) << shift;
+        }
+
+        static long upperBound(int index) {
+            if (index < 2 * SUB) return index;
+            int shift = (index >>> SUB_BITS) - 1;
+            return ((long) ((index & (SUB - 1)) + SUB + 1) << shift) - 1;
+        }
+    }
+
+    // Times every handler method, labelled by HTTP method and route pattern. Async handlers (pay,
+    // SSE) are measured until the async dispatch completes, not just until the servlet thread is released.
+    // The start time lives in a per-thread slot; only async requests, which finish on another thread,
+    // carry it over in a request attribute.
+    public static class EndpointTimer implements AsyncHandlerInterceptor {
+        private static final String START = EndpointTimer.class.getName() + ".start";
+        private static final ThreadLocal<long[]> STARTED = ThreadLocal.withInitial(() -> new long[1]);
+        private final Metrics metrics;
+        private final Map<Method, LatencyHistogram> byHandler = new ConcurrentHashMap<>();
+
+        public EndpointTimer(Metrics metrics) { this.metrics = metrics; }
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            Object handedOver = request.getAttribute(START);
+            STARTED.get()[0] = handedOver instanceof Long ? (Long) handedOver : System.nanoTime();
+            return true;
+        }
+
+        @Override
+        public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            request.setAttribute(START, STARTED.get()[0]);
+        }
+
+        @Override
+        public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+            if (!(handler instanceof HandlerMethod)) return;
+            long start = STARTED.get()[0];
+            Method method = ((HandlerMethod) handler).getMethod();
+            LatencyHistogram h = byHandler.get(method);
+            if (h == null) {
+                Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+                String endpoint = request.getMethod() + " " + (pattern != null ? pattern : request.getRequestURI());
+                h = byHandler.computeIfAbsent(method, m -> metrics.histogram("restaurant_http_request_seconds",
+                        "Request duration per endpoint", Metrics.labels("endpoint", endpoint)));
+            }
+            h.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @RestController
+    public static class MetricsController {
+        private final Metrics metrics;
+        public MetricsController(Metrics metrics) { this.metrics = metrics; }
+
+        @GetMapping(path = "/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+        public String scrape() { return metrics.scrape(); }
+    }
+
+    // -------------------------
+    // SSE broadcast hub
+    // -------------------------
+    // Many subscribers per order. Each subscriber has a bounded send queue drained on the sender
+    // pool, so publishers never touch the network. A small per-order ring buffer lets reconnects
+    // carrying Last-Event-ID replay what they missed.
+    @org.springframework.stereotype.Component
+    public static class OrderEventHub {
+        private static final Logger log = LoggerFactory.getLogger(OrderEventHub.class);
+        private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+        private final AtomicInteger subscriberCount = new AtomicInteger();
+        private final AtomicLong droppedEvents = new AtomicLong();
+        private final AtomicLong failedSends = new AtomicLong();
+        private final ObjectMapper mapper;
+        private final ExecutorService senders;
+        private final ScheduledExecutorService housekeeping;
+        private final int queueCapacity;
+        private final int replaySize;
+        private final boolean dropOldest;
+        private final long retentionMillis;
+        private volatile Router router;
+
+        // Clustering hook. Only the order's owner sequences its events; see OrderCluster.
+        public interface Router {
+            // true when the event was sent to the owner instead of being published here
+            boolean forward(String orderId, String name, String data);
+            // a local client started following an order
+            void watch(String orderId, long afterEventId);
+            // an event was sequenced here; called under the topic lock, so calls are in event order
+            void published(String orderId, long id, String name, String data);
+            void closed(String orderId);
+            // other members follow this order through us, so its sequence must survive idle eviction
+            boolean watched(String orderId);
+        }
+
+        public interface EventSink { void accept(long id, String name, String data); }
+
+        public OrderEventHub(ObjectMapper mapper,
+                             @Value("${sse.sender.threads:4}") int senderThreads,
+                             @Value("${sse.subscriber.queue:32}") int queueCapacity,
+                             @Value("${sse.replay.size:16}") int replaySize,
+                             @Value("${sse.slow-consumer:disconnect}") String slowConsumerPolicy,
+                             @Value("${sse.heartbeat.seconds:15}") long heartbeatSeconds,
+                             @Value("${sse.retention.seconds:120}") long retentionSeconds) {
+            this.mapper = mapper;
+            this.queueCapacity = Math.max(1, queueCapacity);
+            this.replaySize = Math.max(1, replaySize);
+            this.dropOldest = "drop-oldest".equalsIgnoreCase(slowConsumerPolicy);
+            this.retentionMillis = retentionSeconds * 1000L;
+            this.senders = Executors.newFixedThreadPool(Math.max(1, senderThreads), daemon("sse-sender"));
+            this.housekeeping = Executors.newSingleThreadScheduledExecutor(daemon("sse-heartbeat"));
+            housekeeping.scheduleAtFixedRate(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+            housekeeping.scheduleWithFixedDelay(this::evictIdle, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        }
+
+        // Callers check that the order exists: every topic opened here is held until it closes or goes idle.
+        public SseEmitter subscribe(String orderId, String lastEventId, String currentStatus, boolean finished) {
+            SseEmitter emitter = new SseEmitter(0L);
+            long after = parseEventId(lastEventId);
+            while (true) {
+                Topic topic = topics.computeIfAbsent(orderId, Topic::new);
+                synchronized (topic) {
+                    // Lost a race with evictIdle; the next computeIfAbsent opens a fresh topic.
+                    if (topic.evicted) continue;
+                    Subscriber sub = new Subscriber(topic, emitter);
+                    emitter.onCompletion(sub::detach);
+                    emitter.onTimeout(sub::detach);
+                    emitter.onError(e -> sub.detach());
+                    topic.touch();
+                    if (after < 0 || !topic.replayFrom(after, sub)) {
+                        if (currentStatus != null) sub.enqueue(new Event(topic.lastId, "init", currentStatus));
+                    }
+                    if (topic.closed || finished) {
+                        sub.completeWhenDrained();
+                    } else {
+                        topic.subscribers.add(sub);
+                        subscriberCount.incrementAndGet();
+                        Router r = router;
+                        if (r != null) r.watch(orderId, Math.max(after, topic.lastId));
+                    }
+                    return emitter;
+                }
+            }
+        }
+
+        public void publish(String orderId, String name, Object data) {
+            String payload = data instanceof String ? (String) data : toJson(data);
+            Router r = router;
+            if (r != null && r.forward(orderId, name, payload)) return;
+            publishLocal(orderId, name, payload);
+        }
+
+        // Sequences the event here regardless of ownership; used for events forwarded by other members.
+        public void publishLocal(String orderId, String name, String payload) {
+            while (true) {
+                Topic topic = topics.computeIfAbsent(orderId, Topic::new);
+                synchronized (topic) {
+                    if (topic.evicted) continue;
+                    Event event = topic.append(name, payload);
+                    for (Subscriber sub : topic.subscribers) sub.enqueue(event);
+                    Router r = router;
+                    if (r != null) r.published(orderId, event.id, name, payload);
+                    return;
+                }
+            }
+        }
+
+        // An event already sequenced by the owner. Ignored when nobody here follows the order or
+        // when it was seen before (a watch replay can overlap live delivery).
+        public void deliver(String orderId, long id, String name, String data) {
+            Topic topic = topics.get(orderId);
+            if (topic == null) return;
+            synchronized (topic) {
+                if (id <= topic.lastId) return;
+                topic.lastId = id - 1;
+                Event event = topic.append(name, data);
+                for (Subscriber sub : topic.subscribers) sub.enqueue(event);
+            }
+        }
+
+        // Runs register and then replays buffered events after afterId, both under the topic lock, so
+        // a new remote watcher receives every later event exactly once and in order. Returns true
+        // when the topic is already closed.
+        public boolean replay(String orderId, long afterId, Runnable register, EventSink sink) {
+            while (true) {
+                Topic topic = topics.computeIfAbsent(orderId, Topic::new);
+                synchronized (topic) {
+                    if (topic.evicted) continue;
+                    topic.touch();
+                    register.run();
+                    long oldest = Math.max(1, topic.lastId - topic.ring.length + 1);
+                    for (long id = Math.max(afterId + 1, oldest); id <= topic.lastId; id++) {
+                        Event e = topic.ring[(int) (id % topic.ring.length)];
+                        if (e != null && e.id == id) sink.accept(e.id, e.name, e.data);
+                    }
+                    return topic.closed;
+                }
+            }
+        }
+
+        public long lastEventId(String orderId) {
+            Topic topic = topics.get(orderId);
+            if (topic == null) return 0;
+            synchronized (topic) { return topic.lastId; }
+        }
+
+        // Continues an order's event sequence after a handoff, so watchers do not discard new events as seen.
+        public void resumeAt(String orderId, long lastId) {
+            while (true) {
+                Topic topic = topics.computeIfAbsent(orderId, Topic::new);
+                synchronized (topic) {
+                    if (topic.evicted) continue;
+                    topic.touch();
+                    if (lastId > topic.lastId) topic.lastId = lastId;
+                    return;
+                }
+            }
+        }
+
+        // Open topics that have local subscribers, with the last event id each has seen.
+        public void forEachFollowed(BiConsumer<String, Long> action) {
+            for (Topic topic : topics.values()) {
+                long last;
+                synchronized (topic) {
+                    if (topic.closed || topic.subscribers.isEmpty()) continue;
+                    last = topic.lastId;
+                }
+                action.accept(topic.orderId, last);
+            }
+        }
+
+        public void setRouter(Router router) { this.router = router; }
+
+        // Completes every subscriber once its queue drains; the replay buffer is kept for late reconnects.
+        public void close(String orderId) {
+            Router r = router;
+            if (r != null) r.closed(orderId);
+            Topic topic = topics.get(orderId);
+            if (topic == null) return;
+            synchronized (topic) {
+                topic.closed = true;
+                for (Subscriber sub : topic.subscribers) sub.completeWhenDrained();
+            }
+            housekeeping.schedule(() -> topics.remove(orderId, topic), retentionMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public int subscriberCount() { return subscriberCount.get(); }
+        public int topicCount() { return topics.size(); }
+        public long droppedEvents() { return droppedEvents.get(); }
+        public long failedSends() { return failedSends.get(); }
+
+        private void heartbeat() {
+            for (Topic topic : topics.values()) {
+                for (Subscriber sub : topic.subscribers) sub.heartbeat();
+            }
+        }
+
+        // Drops topics nobody has followed or published to for the retention period, such as orders
+        // handed to another member or subscribers that left before the order finished. Closed topics
+        // already have their removal scheduled. A topic other members watch keeps its sequence.
+        void evictIdle() {
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            Router r = router;
+            for (Topic topic : topics.values()) {
+                synchronized (topic) {
+                    if (topic.closed || !topic.subscribers.isEmpty() || topic.lastActive > cutoff) continue;
+                    if (r != null && r.watched(topic.orderId)) continue;
+                    topic.evicted = true;
+                    topics.remove(topic.orderId, topic);
+                }
+            }
+        }
+
+        private String toJson(Object data) {
+            try {
+                return mapper.writeValueAsString(data);
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Unserializable event payload", e);
+            }
+        }
+
+        private static long parseEventId(String id) {
+            if (id == null || id.isBlank()) return -1;
+            try { return Long.parseLong(id.trim()); } catch (NumberFormatException e) { return -1; }
+        }
+
+        private static ThreadFactory daemon(String name) {
+            return r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+
+        @PreDestroy
+        public void shutdown() {
+            housekeeping.shutdownNow();
+            senders.shutdownNow();
+        }
+
+        private static final class Event {
+            static final Event HEARTBEAT = new Event(-1, null, null);
+            final long id; final String name; final String data;
+            Event(long id, String name, String data) { this.id = id; this.name = name; this.data = data; }
+        }
+
+        // Guarded by its own monitor: the ring buffer and subscriber list change together so a
+        // subscriber joining mid-publish sees each event exactly once.
+        private final class Topic {
+            final String orderId;
+            final Event[] ring = new Event[replaySize];
+            final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+            long lastId;
+            boolean closed;
+            boolean evicted;
+            volatile long lastActive = System.currentTimeMillis();
+            Topic(String orderId) { this.orderId = orderId; }
+
+            void touch() { lastActive = System.currentTimeMillis(); }
+
+            Event append(String name, String data) {
+                touch();
+                Event e = new Event(++lastId, name, data);
+                ring[(int) (lastId % ring.length)] = e;
+                return e;
+            }
+
+            // Returns false when the gap is older than the buffer, so the caller falls back to a fresh init.
+            // Sequences continued from another member can leave gaps, which also force a fresh init.
+            boolean replayFrom(long after, Subscriber sub) {
+                long oldest = Math.max(1, lastId - ring.length + 1);
+                if (after > lastId || after + 1 < oldest) return false;
+                for (long id = after + 1; id <= lastId; id++) {
+                    Event e = ring[(int) (id % ring.length)];
+                    if (e == null || e.id != id) return false;
+                }
+                for (long id = after + 1; id <= lastId; id++) sub.enqueue(ring[(int) (id % ring.length)]);
+                return true;
+            }
+        }
+
+        private final class Subscriber implements Runnable {
+            final Topic topic;
+            final SseEmitter emitter;
+            final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+            final AtomicBoolean scheduled = new AtomicBoolean();
+            final AtomicBoolean detached = new AtomicBoolean();
+            volatile boolean completeWhenDrained;
+
+            Subscriber(Topic topic, SseEmitter emitter) { this.topic = topic; this.emitter = emitter; }
+
+            void enqueue(Event e) {
+                if (detached.get()) return;
+                if (!queue.offer(e)) {
+                    droppedEvents.incrementAndGet();
+                    if (!dropOldest) {
+                        disconnect();
+                        return;
+                    }
+                    queue.poll();
+                    queue.offer(e);
+                }
+                schedule();
+            }
+
+            void heartbeat() {
+                if (queue.isEmpty()) enqueue(Event.HEARTBEAT);
+            }
+
+            void completeWhenDrained() {
+                completeWhenDrained = true;
+                schedule();
+            }
+
+            private void schedule() {
+                if (scheduled.compareAndSet(false, true)) {
+                    try {
+                        senders.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        scheduled.set(false);
+                    }
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    Event e;
+                    while ((e = queue.poll()) != null) {
+                        if (e == Event.HEARTBEAT) {
+                            emitter.send(SseEmitter.event().comment("hb"));
+                        } else {
+                            emitter.send(SseEmitter.event().id(Long.toString(e.id)).name(e.name).data(e.data));
+                        }
+                    }
+                    if (completeWhenDrained && detached.compareAndSet(false, true)) {
+                        removeFromTopic();
+                        emitter.complete();
+                    }
+                } catch (Exception ex) {
+                    failedSends.incrementAndGet();
+                    log.debug("SSE send failed for order {}", topic.orderId, ex);
+                    disconnect();
+                } finally {
+                    scheduled.set(false);
+                    if (!queue.isEmpty() && !detached.get()) schedule();
+                }
+            }
+
+            // Slow or broken client: complete the stream so the browser reconnects with Last-Event-ID.
+            void disconnect() {
+                if (detached.compareAndSet(false, true)) {
+                    removeFromTopic();
+                    queue.clear();
+                    try { emitter.complete(); } catch (Exception ignored) {}
+                }
+            }
+
+            void detach() {
+                if (detached.compareAndSet(false, true)) removeFromTopic();
+                queue.clear();
+            }
+
+            private void removeFromTopic() {
+                if (topic.subscribers.remove(this)) subscriberCount.decrementAndGet();
+                topic.touch();
+            }
+        }
+    }
+
+    // -------------------------
+    // Clustering
+    // -------------------------
+    // Several instances can share one database and split the order lifecycle between them. An order
+    // id hashes to one of cluster.partitions partitions. Each partition belongs to the live member
+    // with the highest rendezvous score, so a join or a leave only moves the partitions that member
+    // wins or loses. The owner drives the kitchen lifecycle and sequences every SSE event for its
+    // orders. Other members forward their events to it, and send a WATCH for orders their own SSE
+    // clients follow. Membership is a heartbeat over the StatusEventBus. When ownership moves, the
+    // old owner hands over its in-flight orders once they are off its stations, and every member
+    // re-sends its watches. Orders that nobody drives, for example after a member died or a
+    // handoff was lost, are adopted from the database by the owner's periodic reconcile.
+    // Delivery is at least once: while views of the membership disagree, two members may briefly
+    // drive the same order.
+    @org.springframework.stereotype.Component
+    public static class OrderCluster implements OrderEventHub.Router, OrderReadModel.Replica {
+        private static final Logger log = LoggerFactory.getLogger(OrderCluster.class);
+        private final boolean enabled;
+        private final int self;
+        private final int[] members;
+        private final int partitions;
+        private final StatusEventBus bus;
+        private final OrderEventHub hub;
+        private final OrderReadModel readModel;
+        private final ObjectMapper mapper;
+        private final long failureTimeoutMillis;
+        private final long startedAt = System.currentTimeMillis();
+        private final Map<Integer, Long> lastSeen = new ConcurrentHashMap<>();
+        private final Set<Integer> left = ConcurrentHashMap.newKeySet();
+        // order id -> members that asked for its events
+        private final Map<String, Set<Integer>> watchers = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService timer;
+        private final LongAdder rebalances = new LongAdder();
+        private final LongAdder handoffsSent = new LongAdder();
+        private final LongAdder handoffsReceived = new LongAdder();
+        private final LongAdder forwardedEvents = new LongAdder();
+        private volatile Set<Integer> alive;
+        private volatile int[] owners; // partition -> member
+        private volatile Lifecycle lifecycle;
+
+        // Implemented by OrderService.
+        public interface Lifecycle {
+            void adopt(String orderId, FoodOrder.Status status, boolean cooked, Long etaSeconds, long lastEventId);
+            // hand over live orders whose partition moved to another member; when leaving, also those still cooking
+            void releaseMoved(boolean leaving);
+            // adopt in-flight orders of owned partitions that were created before the cutoff and are not live here
+            void reconcile(Instant createdBefore);
+        }
+
+        public OrderCluster(StatusEventBus bus, OrderEventHub hub, OrderReadModel readModel, ObjectMapper mapper, Metrics metrics,
+                            @Value("${cluster.enabled:false}") boolean enabled,
+                            @Value("${orders.node-id:0}") int self,
+                            @Value("${cluster.members:}") String members,
+                            @Value("${cluster.partitions:256}") int partitions,
+                            @Value("${cluster.heartbeat-ms:500}") long heartbeatMillis,
+                            @Value("${cluster.failure-timeout-ms:3000}") long failureTimeoutMillis,
+                            @Value("${cluster.reconcile-seconds:30}") long reconcileSeconds) {
+            this.enabled = enabled;
+            this.self = self;
+            this.bus = bus; this.hub = hub; this.readModel = readModel; this.mapper = mapper;
+            this.partitions = Math.max(1, partitions);
+            this.failureTimeoutMillis = failureTimeoutMillis;
+            Set<Integer> ids = new TreeSet<>(parseMembers(members).keySet());
+            ids.add(self);
+            this.members = ids.stream().mapToInt(Integer::intValue).toArray();
+            this.alive = Set.of(self);
+            this.owners = assign(alive);
+            if (!enabled) {
+                this.timer = null;
+                return;
+            }
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cluster-timer");
+                t.setDaemon(true);
+                return t;
+            });
+            hub.setRouter(this);
+            readModel.setReplica(this);
+            bus.start(self, this::receive);
+            timer.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+            timer.scheduleWithFixedDelay(this::reconcile, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+            metrics.gauge("restaurant_cluster_members_alive", "Cluster members this node currently sees", "", () -> alive.size());
+            metrics.gauge("restaurant_cluster_partitions_owned", "Order partitions owned by this node", "", this::ownedPartitions);
+            metrics.counter("restaurant_cluster_rebalances_total", "Membership changes that moved partitions", "", rebalances::sum);
+            metrics.counter("restaurant_cluster_handoffs_sent_total", "In-flight orders handed to another member", "", handoffsSent::sum);
+            metrics.counter("restaurant_cluster_handoffs_received_total", "In-flight orders taken over from another member", "", handoffsReceived::sum);
+            metrics.counter("restaurant_cluster_forwarded_events_total", "SSE events sent to the owning member for sequencing", "", forwardedEvents::sum);
+            log.info("Cluster node {} started with members {}", self, ids);
+        }
+
+        // "1=127.0.0.1:7701,2=127.0.0.1:7702"; the address part is optional for the in-process bus.
+        static Map<Integer, String> parseMembers(String spec) {
+            Map<Integer, String> out = new TreeMap<>();
+            if (spec == null || spec.isBlank()) return out;
+            for (String entry : spec.split(",")) {
+                String e = entry.trim();
+                if (e.isEmpty()) continue;
+                int eq = e.indexOf('=');
+                try {
+                    out.put(Integer.parseInt(eq < 0 ? e : e.substring(0, eq).trim()), eq < 0 ? "" : e.substring(eq + 1).trim());
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Bad cluster.members entry: " + e);
+                }
+            }
+            return out;
+        }
+
+        public void bind(Lifecycle lifecycle) { this.lifecycle = lifecycle; }
+
+        public boolean enabled() { return enabled; }
+        public int self() { return self; }
+        public boolean owns(String orderId) { return !enabled || owners[partition(orderId)] == self; }
+        public int ownerOf(String orderId) { return owners[partition(orderId)]; }
+        public Set<Integer> alive() { return alive; }
+
+        public int partition(String orderId) {
+            return (int) Long.remainderUnsigned(mix(orderId.hashCode()), partitions);
+        }
+
+        public int ownedPartitions() {
+            int n = 0;
+            for (int owner : owners) if (owner == self) n++;
+            return n;
+        }
+
+        // Sends the order to its owner. false when it could not be sent; the caller then keeps driving it.
+        public boolean handOff(String orderId, FoodOrder.Status status, boolean cooked, Long etaSeconds) {
+            int owner = ownerOf(orderId);
+            if (owner == self) return false;
+            Set<Integer> w = watchers.remove(orderId);
+            boolean sent = bus.send(owner, new ClusterMessage(ClusterMessage.HANDOFF, self, orderId, hub.lastEventId(orderId),
+                    status.name(), cooked ? "cooked" : "", etaSeconds == null ? -1 : etaSeconds));
+            if (!sent) {
+                if (w != null) watchers.put(orderId, w);
+                return false;
+            }
+            handoffsSent.increment();
+            return true;
+        }
+
+        // ---- OrderEventHub.Router
+
+        @Override
+        public boolean forward(String orderId, String name, String data) {
+            int owner = ownerOf(orderId);
+            if (owner == self || !bus.send(owner, new ClusterMessage(ClusterMessage.EVENT, self, orderId, 0, name, data, 0))) return false;
+            forwardedEvents.increment();
+            return true;
+        }
+
+        @Override
+        public void watch(String orderId, long afterEventId) {
+            int owner = ownerOf(orderId);
+            if (owner != self) bus.send(owner, new ClusterMessage(ClusterMessage.WATCH, self, orderId, afterEventId, "", "", 0));
+        }
+
+        @Override
+        public void published(String orderId, long id, String name, String data) {
+            Set<Integer> w = watchers.get(orderId);
+            if (w == null) return;
+            for (int node : w) bus.send(node, new ClusterMessage(ClusterMessage.EVENT, self, orderId, id, name, data, 0));
+        }
+
+        @Override
+        public boolean watched(String orderId) { return watchers.containsKey(orderId); }
+
+        @Override
+        public void closed(String orderId) {
+            Set<Integer> w = watchers.remove(orderId);
+            if (w == null) return;
+            for (int node : w) bus.send(node, new ClusterMessage(ClusterMessage.CLOSE, self, orderId, 0, "", "", 0));
+        }
+
+        // ---- OrderReadModel.Replica
+
+        @Override
+        public void put(OrderView view) {
+            try {
+                broadcast(new ClusterMessage(ClusterMessage.VIEW, self, view.getId(), 0, "", mapper.writeValueAsString(view), 0));
+            } catch (JsonProcessingException e) {
+                log.warn("Could not replicate order {}", view.getId(), e);
+            }
+        }
+
+        @Override
+        public void status(String id, FoodOrder.Status status) {
+            broadcast(new ClusterMessage(ClusterMessage.STATUS, self, id, 0, status.name(), "", 0));
+        }
+
+        @Override
+        public void location(String id, double lat, double lng, long etaSeconds) {
+            broadcast(new ClusterMessage(ClusterMessage.LOCATION, self, id, 0, "", lat + "," + lng, etaSeconds));
+        }
+
+        private void broadcast(ClusterMessage m) {
+            for (int node : alive) if (node != self) bus.send(node, m);
+        }
+
+        // Runs on the bus's delivery thread, one message at a time.
+        private void receive(ClusterMessage m) {
+            try {
+                switch (m.type) {
+                    case ClusterMessage.HEARTBEAT:
+                        left.remove(m.from);
+                        if (lastSeen.put(m.from, System.currentTimeMillis()) == null || !alive.contains(m.from)) {
+                            timer.execute(this::checkMembership);
+                        }
+                        break;
+                    case ClusterMessage.LEAVE:
+                        // Same thread as the adopts of the handoffs that follow it.
+                        timer.execute(() -> {
+                            lastSeen.remove(m.from);
+                            left.add(m.from);
+                            checkMembership();
+                        });
+                        break;
+                    case ClusterMessage.EVENT:
+                        if (m.seq == 0) hub.publishLocal(m.orderId, m.name, m.data);
+                        else hub.deliver(m.orderId, m.seq, m.name, m.data);
+                        break;
+                    case ClusterMessage.WATCH: {
+                        Set<Integer> w = watchers.computeIfAbsent(m.orderId, k -> ConcurrentHashMap.newKeySet());
+                        boolean closed = hub.replay(m.orderId, m.seq, () -> w.add(m.from), (id, name, data) ->
+                                bus.send(m.from, new ClusterMessage(ClusterMessage.EVENT, self, m.orderId, id, name, data, 0)));
+                        if (closed) closed(m.orderId);
+                        break;
+                    }
+                    case ClusterMessage.CLOSE:
+                        hub.close(m.orderId);
+                        break;
+                    case ClusterMessage.HANDOFF: {
+                        handoffsReceived.increment();
+                        Lifecycle l = lifecycle;
+                        // Adopting reads the order row; keep that off the delivery thread.
+                        if (l != null) timer.execute(() -> l.adopt(m.orderId, FoodOrder.Status.valueOf(m.name), "cooked".equals(m.data),
+                                m.extra < 0 ? null : m.extra, m.seq));
+                        break;
+                    }
+                    case ClusterMessage.VIEW:
+                        readModel.applyPut(viewFromJson(mapper.readTree(m.data)));
+                        break;
+                    case ClusterMessage.STATUS:
+                        readModel.applyStatus(m.orderId, FoodOrder.Status.valueOf(m.name));
+                        break;
+                    case ClusterMessage.LOCATION: {
+                        int comma = m.data.indexOf(',');
+                        readModel.applyLocation(m.orderId, Double.parseDouble(m.data.substring(0, comma)),
+                                Double.parseDouble(m.data.substring(comma + 1)), m.extra);
+                        break;
+                    }
+                    default:
+                        log.warn("Unknown cluster message type {} from node {}", m.type, m.from);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to handle cluster message {} from node {}", m.type, m.from, e);
+            }
+        }
+
+        private static OrderView viewFromJson(JsonNode n) {
+            List<LineView> lines = new ArrayList<>();
+            for (JsonNode l : n.path("items")) {
+                lines.add(new LineView(l.path("id").isNull() ? null : l.path("id").asLong(), l.path("menuItemId").asLong(),
+                        l.path("name").asText(), l.path("quantity").asInt(), l.path("unitPrice").asDouble()));
+            }
+            return new OrderView(n.path("id").asText(), Instant.parse(n.path("createdAt").asText()), n.path("customerName").asText(null),
+                    n.path("customerPhone").asText(null), List.copyOf(lines), n.path("totalAmount").asDouble(),
+                    n.path("discountAmount").asDouble(),
+                    FoodOrder.Status.valueOf(n.path("status").asText()),
+                    n.path("deliveryLat").isNumber() ? n.path("deliveryLat").asDouble() : null,
+                    n.path("deliveryLng").isNumber() ? n.path("deliveryLng").asDouble() : null,
+                    n.path("etaSeconds").isNumber() ? n.path("etaSeconds").asLong() : null);
+        }
+
+        // Heartbeats go to every configured member, so a restarted member is noticed as soon as it is back.
+        private void heartbeat() {
+            ClusterMessage beat = new ClusterMessage(ClusterMessage.HEARTBEAT, self, "", 0, "", "", 0);
+            for (int node : members) if (node != self) bus.send(node, beat);
+            checkMembership();
+        }
+
+        // Only ever runs on the timer thread.
+        private void checkMembership() {
+            long now = System.currentTimeMillis();
+            Set<Integer> seen = new TreeSet<>();
+            seen.add(self);
+            lastSeen.forEach((node, at) -> { if (now - at < failureTimeoutMillis) seen.add(node); });
+            if (seen.equals(alive)) return;
+            // Members that left gracefully hand their orders over; only failed ones need a reconcile.
+            boolean lost = false;
+            for (int node : alive) if (!seen.contains(node) && !left.contains(node)) lost = true;
+            log.info("Cluster membership changed on node {}: {} -> {}", self, alive, seen);
+            alive = Set.copyOf(seen);
+            owners = assign(seen);
+            rebalances.increment();
+            Lifecycle l = lifecycle;
+            if (l != null) l.releaseMoved(false);
+            // Our SSE clients may follow orders that now belong to someone else.
+            hub.forEachFollowed((orderId, last) -> watch(orderId, last));
+            if (lost) reconcile();
+        }
+
+        // Waits out the first failure timeout, so a starting node does not claim partitions its peers still own.
+        private void reconcile() {
+            Lifecycle l = lifecycle;
+            long now = System.currentTimeMillis();
+            if (l == null || now - startedAt < failureTimeoutMillis) return;
+            try {
+                l.reconcile(Instant.ofEpochMilli(now - failureTimeoutMillis));
+            } catch (Exception e) {
+                log.warn("Cluster reconcile failed", e);
+            }
+        }
+
+        private int[] assign(Collection<Integer> nodes) {
+            int[] table = new int[partitions];
+            for (int p = 0; p < partitions; p++) {
+                long best = 0;
+                int owner = -1;
+                for (int node : nodes) {
+                    long score = mix(((long) p << 32) | node);
+                    if (owner < 0 || Long.compareUnsigned(score, best) > 0) { best = score; owner = node; }
+                }
+                table[p] = owner;
+            }
+            return table;
+        }
+
+        // splitmix64 finalizer
+        static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        // Graceful leave: peers drop this node at once instead of waiting out the failure timeout,
+        // and its in-flight orders go to the members that now own them. The LEAVE is sent before
+        // any handoff on the same connection, so a receiver never hands an order straight back.
+        public void leave() {
+            if (!enabled) return;
+            timer.shutdownNow();
+            Set<Integer> rest = new TreeSet<>(alive);
+            rest.remove(self);
+            if (rest.isEmpty()) return;
+            broadcast(new ClusterMessage(ClusterMessage.LEAVE, self, "", 0, "", "", 0));
+            owners = assign(rest);
+            Lifecycle l = lifecycle;
+            if (l != null) l.releaseMoved(true);
+            log.info("Node {} left the cluster", self);
+        }
+
+        @PreDestroy
+        public void shutdown() {
+            if (timer != null) timer.shutdownNow();
+        }
+    }
+
+    // One frame on the cluster bus. Field use by type:
+    //   HEARTBEAT  -
+    //   LEAVE      -
+    //   EVENT      orderId, seq (event id, 0 = unsequenced, for the owner to sequence), name, data
+    //   WATCH      orderId, seq (last event id the watcher has)
+    //   CLOSE      orderId
+    //   HANDOFF    orderId, seq (last event id), name (status), data ("cooked" or ""), extra (eta seconds or -1)
+    //   VIEW       orderId, data (OrderView JSON)
+    //   STATUS     orderId, name (status)
+    //   LOCATION   orderId, data ("lat,lng"), extra (eta seconds)
+    public static final class ClusterMessage {
+        static final byte HEARTBEAT = 1, EVENT = 2, WATCH = 3, CLOSE = 4, HANDOFF = 5, VIEW = 6, STATUS = 7, LOCATION = 8, LEAVE = 9;
+        static final int MAX_DATA_BYTES = 4 << 20; // far above any order view; a larger length is a corrupt or hostile frame
+        final byte type;
+        final int from;
+        final String orderId;
+        final long seq;
+        final String name;
+        final String data;
+        final long extra;
+
+        ClusterMessage(byte type, int from, String orderId, long seq, String name, String data, long extra) {
+            this.type = type; this.from = from; this.orderId = orderId; this.seq = seq;
+            this.name = name; this.data = data; this.extra = extra;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            out.writeShort(from);
+            out.writeUTF(orderId);
+            out.writeLong(seq);
+            out.writeUTF(name);
+            byte[] d = data.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(d.length);
+            out.write(d);
+            out.writeLong(extra);
+        }
+
+        static ClusterMessage read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            int from = in.readUnsignedShort();
+            String orderId = in.readUTF();
+            long seq = in.readLong();
+            String name = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_DATA_BYTES) throw new ProtocolException("Cluster frame data length out of range: " + length);
+            byte[] d = new byte[length];
+            in.readFully(d);
+            return new ClusterMessage(type, from, orderId, seq, name, new String(d, StandardCharsets.UTF_8), in.readLong());
+        }
+    }
+
+    // Transport between cluster members. Delivery is at most once, and FIFO per sender/receiver pair.
+    public interface StatusEventBus {
+        // Starts receiving; the handler is called on one delivery thread.
+        void start(int localNode, Consumer<ClusterMessage> handler);
+        // Never blocks on the network. false when the message was dropped up front (unknown peer, full outbox).
+        boolean send(int node, ClusterMessage message);
+        default void close() {}
+    }
+
+    // Members that live in the same JVM and share a cluster name. Used to run several nodes on one
+    // machine without sockets, for example in multi-node tests.
+    public static class InProcessStatusEventBus implements StatusEventBus {
+        private static final Map<String, Map<Integer, InProcessStatusEventBus>> CLUSTERS = new ConcurrentHashMap<>();
+        private final String cluster;
+        private int node = -1;
+        private ExecutorService inbox;
+        private Consumer<ClusterMessage> handler;
+
+        public InProcessStatusEventBus(String cluster) { this.cluster = cluster; }
+
+        @Override
+        public void start(int localNode, Consumer<ClusterMessage> handler) {
+            this.node = localNode;
+            this.handler = handler;
+            this.inbox = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "cluster-inbox-" + localNode);
+                t.setDaemon(true);
+                return t;
+            });
+            if (CLUSTERS.computeIfAbsent(cluster, k -> new ConcurrentHashMap<>()).putIfAbsent(localNode, this) != null) {
+                throw new IllegalStateException("Node " + localNode + " already joined in-process cluster " + cluster);
+            }
+        }
+
+        @Override
+        public boolean send(int to, ClusterMessage message) {
+            InProcessStatusEventBus peer = CLUSTERS.getOrDefault(cluster, Map.of()).get(to);
+            if (peer == null) return false;
+            try {
+                peer.inbox.execute(() -> peer.handler.accept(message));
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (node < 0) return;
+            Map<Integer, InProcessStatusEventBus> nodes = CLUSTERS.get(cluster);
+            if (nodes != null) nodes.remove(node, this);
+            inbox.shutdownNow();
+        }
+    }
+
+    // Length-prefixed ClusterMessage frames over TCP, one outbound connection per peer, by default on
+    // the loopback interface. Each peer has a bounded outbox drained by its own writer thread, so a
+    // sender never blocks on the network. A broken connection drops its queued frames and is dialled
+    // again for the next one. Frames from all peers are handled on a single inbox thread.
+    public static class LoopbackStatusEventBus implements StatusEventBus {
+        private static final Logger log = LoggerFactory.getLogger(LoopbackStatusEventBus.class);
+        private final Map<Integer, InetSocketAddress> addresses = new HashMap<>();
+        private final int outboxCapacity;
+        private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+        private final ExecutorService io = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "cluster-io");
+            t.setDaemon(true);
+            return t;
+        });
+        private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+        private ExecutorService inbox;
+        private Consumer<ClusterMessage> handler;
+        private ServerSocket server;
+        private volatile boolean closed;
+
+        public LoopbackStatusEventBus(Map<Integer, String> members, int outboxCapacity) {
+            members.forEach((node, address) -> {
+                int colon = address.lastIndexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("cluster.members needs host:port for node " + node);
+                addresses.put(node, new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            });
+            this.outboxCapacity = outboxCapacity;
+        }
+
+        @Override
+        public void start(int localNode, Consumer<ClusterMessage> handler) {
+            InetSocketAddress bindTo = addresses.get(localNode);
+            if (bindTo == null) throw new IllegalArgumentException("cluster.members has no address for this node (" + localNode + ")");
+            this.handler = handler;
+            this.inbox = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "cluster-inbox");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                server = new ServerSocket();
+                server.setReuseAddress(true);
+                server.bind(bindTo);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot listen on " + bindTo, e);
+            }
+            io.execute(this::acceptLoop);
+        }
+
+        @Override
+        public boolean send(int node, ClusterMessage message) {
+            if (closed) return false;
+            InetSocketAddress address = addresses.get(node);
+            if (address == null) return false;
+            return peers.computeIfAbsent(node, n -> new Peer(address)).offer(message);
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                try {
+                    Socket s = server.accept();
+                    s.setTcpNoDelay(true);
+                    inbound.add(s);
+                    io.execute(() -> readLoop(s));
+                } catch (IOException e) {
+                    if (!closed) log.warn("Cluster accept failed", e);
+                }
+            }
+        }
+
+        private void readLoop(Socket s) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+                while (!closed) {
+                    ClusterMessage m = ClusterMessage.read(in);
+                    inbox.execute(() -> handler.accept(m));
+                }
+            } catch (ProtocolException e) {
+                // The stream cannot be resynchronised; closing it makes the sender reconnect.
+                log.warn("Dropping cluster connection from {}: {}", s.getRemoteSocketAddress(), e.getMessage());
+            } catch (IOException | RejectedExecutionException e) {
+                log.debug("Cluster connection from {} closed", s.getRemoteSocketAddress());
+            } finally {
+                inbound.remove(s);
+            }
+        }
+
+        // Gives queued frames (a leaving node's handoffs) a moment to go out before the sockets close.
+        @Override
+        public void close() {
+            long deadline = System.currentTimeMillis() + 2000;
+            for (Peer p : peers.values()) {
+                while (p.pending.get() > 0 && System.currentTimeMillis() < deadline) {
+                    try { Thread.sleep(10); } catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+                }
+            }
+            closed = true;
+            try { if (server != null) server.close(); } catch (IOException ignored) {}
+            for (Socket s : inbound) try { s.close(); } catch (IOException ignored) {}
+            for (Peer p : peers.values()) p.disconnect();
+            io.shutdownNow();
+            if (inbox != null) inbox.shutdownNow();
+        }
+
+        private final class Peer implements Runnable {
+            final InetSocketAddress address;
+            final BlockingQueue<ClusterMessage> outbox = new ArrayBlockingQueue<>(outboxCapacity);
+            Socket socket;
+            DataOutputStream out;
+            final AtomicInteger pending = new AtomicInteger(); // offered and not yet flushed or dropped
+            int unflushed; // writer thread only
+
+            Peer(InetSocketAddress address) {
+                this.address = address;
+                io.execute(this);
+            }
+
+            @Override
+            public void run() {
+                while (!closed) {
+                    ClusterMessage m;
+                    try {
+                        m = outbox.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    unflushed++;
+                    try {
+                        if (out == null) connect();
+                        m.write(out);
+                        if (outbox.isEmpty()) {
+                            out.flush();
+                            pending.addAndGet(-unflushed);
+                            unflushed = 0;
+                        }
+                    } catch (IOException e) {
+                        // Peer down: what is queued now would go out of order after a reconnect, so drop it.
+                        log.debug("Cluster peer {} unreachable: {}", address, e.toString());
+                        disconnect();
+                        pending.addAndGet(-(unflushed + outbox.drainTo(new ArrayList<>())));
+                        unflushed = 0;
+                        try { Thread.sleep(200); } catch (InterruptedException ie) { return; }
+                    }
+                }
+            }
+
+            boolean offer(ClusterMessage m) {
+                pending.incrementAndGet();
+                if (outbox.offer(m)) return true;
+                pending.decrementAndGet();
+                return false;
+            }
+
+            private void connect() throws IOException {
+                Socket s = new Socket();
+                try {
+                    s.connect(address, 1000);
+                    s.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    s.close();
+                    throw e;
+                }
+                socket = s;
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            }
+
+            void disconnect() {
+                out = null;
+                Socket s = socket;
+                socket = null;
+                if (s != null) try { s.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    @RestController
+    @RequestMapping("/api/cluster")
+    public static class ClusterController {
+        private final OrderCluster cluster;
+        public ClusterController(OrderCluster cluster) { this.cluster = cluster; }
+
+        @GetMapping
+        public Map<String, Object> state() {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("enabled", cluster.enabled());
+            body.put("node", cluster.self());
+            body.put("alive", cluster.alive());
+            body.put("ownedPartitions", cluster.ownedPartitions());
+            return body;
+        }
+
+        // Lets a router send courier pings and other owner-only calls straight to the right member.
+        @GetMapping("/owner/{orderId}")
+        public Map<String, Object> owner(@PathVariable String orderId) {
+            return Map.of("orderId", orderId, "partition", cluster.partition(orderId), "owner", cluster.ownerOf(orderId));
+        }
+    }
+
+    // -------------------------
+    // PaymentService: async captures behind a bulkhead and an idempotency store
+    // -------------------------
+    // Captures never run on the request thread. Each gateway gets a fixed number of concurrent
+    // calls (excess calls fail fast as BUSY) and a timeout. An order has at most one capture in
+    // flight: every pay call for it shares that capture, whatever key it carries, and a capture that
+    // succeeded is kept for the idempotency TTL. The outcome is recorded when the gateway answers,
+    // even after the caller timed out, so a retry after a TIMEOUT sees the late result instead of
+    // capturing again. Outcomes are also stored per (order, Idempotency-Key), so a keyed retry
+    // replays a decline too, while an unkeyed retry after a decline starts a fresh capture.
+    @org.springframework.stereotype.Service
+    public static class PaymentService {
+        private static final Logger log = LoggerFactory.getLogger(PaymentService.class);
+        @Value("${stripe.api.key:}")
+        private String stripeKey;
+        @Value("${razorpay.key:}")
+        private String razorKey;
+        @Value("${razorpay.secret:}")
+        private String razorSecret;
+        private final PaymentGateway gateway;
+        private final Semaphore permits;
+        private final long timeoutMillis;
+        private final long ttlMillis;
+        private final Map<String, Capture> captures = new ConcurrentHashMap<>(); // order id -> in-flight or successful capture
+        private final Map<String, Capture> keyed = new ConcurrentHashMap<>();    // order id + key -> the capture it joined
+        private final ScheduledExecutorService sweeper;
+
+        public PaymentService(List<PaymentGateway> gateways,
+                              @Value("${payments.provider:simulated}") String provider,
+                              @Value("${payments.max-concurrent:256}") int maxConcurrent,
+                              @Value("${payments.timeout-ms:5000}") long timeoutMillis,
+                              @Value("${payments.idempotency.ttl-minutes:1440}") long ttlMinutes) {
+            this.gateway = gateways.stream().filter(g -> g.name().equalsIgnoreCase(provider)).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No payment gateway named " + provider));
+            this.permits = new Semaphore(Math.max(1, maxConcurrent));
+            this.timeoutMillis = timeoutMillis;
+            this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "payment-idempotency-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            sweeper.scheduleWithFixedDelay(this::evictExpired, 1, 1, TimeUnit.MINUTES);
+        }
+
+        public String createPaymentIntent(FoodOrder order) {
+            // Here we return a simulated token. Replace with Stripe/Razorpay API calls:
+            // Example (Stripe): create PaymentIntent via Stripe API using secret key
+            return "SIMULATED_PAYMENT_TOKEN_" + order.getId();
+        }
+
+        public CompletableFuture<PaymentResult> capturePayment(FoodOrder order, String token, String idempotencyKey) {
+            CompletableFuture<PaymentResult> outcome;
+            if (idempotencyKey == null || idempotencyKey.isBlank()) {
+                outcome = capture(order, token, null).outcome;
+            } else {
+                String key = order.getId() + "\n" + idempotencyKey;
+                outcome = keyed.compute(key, (k, current) ->
+                        current != null && current.replayable() ? current : capture(order, token, idempotencyKey)).outcome;
+            }
+            // Only this caller's wait is bounded; the capture itself runs on until the gateway answers.
+            return outcome.copy().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .exceptionally(err -> PaymentResult.timeout());
+        }
+
+        // Joins the order's in-flight or successful capture, or starts one. Only a started capture is
+        // registered; BUSY and declined-without-token results never reach the gateway.
+        private Capture capture(FoodOrder order, String token, String idempotencyKey) {
+            if (token == null || token.isBlank()) return Capture.done(PaymentResult.declined());
+            String orderId = order.getId();
+            while (true) {
+                Capture current = captures.get(orderId);
+                if (current != null && current.shared()) return current;
+                if (!permits.tryAcquire()) return Capture.done(PaymentResult.busy());
+                Capture mine = new Capture(new CompletableFuture<>());
+                boolean won = current == null ? captures.putIfAbsent(orderId, mine) == null : captures.replace(orderId, current, mine);
+                if (!won) {
+                    permits.release();
+                    continue;
+                }
+                CompletableFuture<PaymentResult> call;
+                try {
+                    call = gateway.capture(orderId, order.getTotalAmount(), token, idempotencyKey);
+                } catch (RuntimeException e) {
+                    call = CompletableFuture.failedFuture(e);
+                }
+                // The permit is held until the gateway really answers, even if every caller already timed out.
+                call.whenComplete((r, err) -> {
+                    permits.release();
+                    PaymentResult result = r;
+                    if (err != null || r == null) {
+                        log.warn("Payment capture failed for order {}", orderId, err);
+                        result = PaymentResult.error();
+                    }
+                    // A failed capture leaves the order free for the next attempt.
+                    if (result.getStatus() != PaymentResult.Status.PAID) captures.remove(orderId, mine);
+                    mine.outcome.complete(result);
+                });
+                return mine;
+            }
+        }
+
+        private void evictExpired() {
+            long cutoff = System.currentTimeMillis() - ttlMillis;
+            keyed.values().removeIf(c -> c.outcome.isDone() && c.createdAt < cutoff);
+            captures.values().removeIf(c -> c.outcome.isDone() && c.createdAt < cutoff);
+        }
+
+        @PreDestroy
+        public void shutdown() { sweeper.shutdownNow(); }
+
+        // The gateway's answer for one capture; never completed exceptionally and never a TIMEOUT.
+        private static final class Capture {
+            final CompletableFuture<PaymentResult> outcome;
+            final long createdAt = System.currentTimeMillis();
+            Capture(CompletableFuture<PaymentResult> outcome) { this.outcome = outcome; }
+
+            static Capture done(PaymentResult r) { return new Capture(CompletableFuture.completedFuture(r)); }
+
+            // In flight or paid: every pay call for the order shares it.
+            boolean shared() {
+                PaymentResult r = outcome.getNow(null);
+                return r == null || r.getStatus() == PaymentResult.Status.PAID;
+            }
+
+            // What a keyed retry replays: anything but BUSY, which never reached the gateway.
+            boolean replayable() {
+                PaymentResult r = outcome.getNow(null);
+                return r == null || r.getStatus() != PaymentResult.Status.BUSY;
+            }
+        }
+    }
+
+    public static final class PaymentResult {
+        public enum Status { PAID, DECLINED, BUSY, TIMEOUT, ERROR }
+        private static final PaymentResult DECLINED = new PaymentResult(Status.DECLINED, null);
+        private static final PaymentResult BUSY = new PaymentResult(Status.BUSY, null);
+        private static final PaymentResult TIMEOUT = new PaymentResult(Status.TIMEOUT, null);
+        private static final PaymentResult ERROR = new PaymentResult(Status.ERROR, null);
+        private final Status status;
+        private final String reference;
+        private PaymentResult(Status status, String reference) { this.status = status; this.reference = reference; }
+        public static PaymentResult paid(String reference) { return new PaymentResult(Status.PAID, reference); }
+        public static PaymentResult declined() { return DECLINED; }
+        public static PaymentResult busy() { return BUSY; }
+        public static PaymentResult timeout() { return TIMEOUT; }
+        public static PaymentResult error() { return ERROR; }
+        public Status getStatus() { return status; }
+        public String getReference() { return reference; }
+    }
+
+    // Implementations must be non-blocking; the idempotency key is forwarded so real providers can dedupe too.
+    public interface PaymentGateway {
+        String name();
+        CompletableFuture<PaymentResult> capture(String orderId, double amount, String token, String idempotencyKey);
+    }
+
+    // Local stand-in for Stripe/Razorpay with configurable latency, latency tail and decline rate.
+    @org.springframework.stereotype.Component
+    public static class SimulatedPaymentGateway implements PaymentGateway {
+        private final ScheduledExecutorService timer;
+        private final long latencyMillis;
+        private final long tailLatencyMillis;
+        private final double tailRate;
+        private final double failureRate;
+
+        public SimulatedPaymentGateway(@Value("${payments.simulated.latency-ms:50}") long latencyMillis,
+                                       @Value("${payments.simulated.tail-latency-ms:2000}") long tailLatencyMillis,
+                                       @Value("${payments.simulated.tail-rate:0.01}") double tailRate,
+                                       @Value("${payments.simulated.failure-rate:0.02}") double failureRate) {
+            this.latencyMillis = latencyMillis; this.tailLatencyMillis = tailLatencyMillis;
+            this.tailRate = tailRate; this.failureRate = failureRate;
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "simulated-payment-gateway");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        @Override public String name() { return "simulated"; }
+
+        @Override
+        public CompletableFuture<PaymentResult> capture(String orderId, double amount, String token, String idempotencyKey) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            long delay = rnd.nextDouble() < tailRate ? tailLatencyMillis : latencyMillis;
+            boolean approved = rnd.nextDouble() >= failureRate;
+            CompletableFuture<PaymentResult> result = new CompletableFuture<>();
+            timer.schedule(() -> result.complete(approved ? PaymentResult.paid("SIM-" + orderId) : PaymentResult.declined()),
+                    delay, TimeUnit.MILLISECONDS);
+            return result;
+        }
+
+        @PreDestroy
+        public void shutdown() { timer.shutdownNow(); }
+    }
+
+    // -------------------------
+    // LocationService: grid-cached ETA engine
+    // -------------------------
+    // Destinations are snapped to grid cells and each cell's ETA is cached with a TTL and a size
+    // bound. Concurrent misses for one cell share a single in-flight routing call; callers that
+    // cannot wait get the local estimate while the provider answer fills the cache.
+    @org.springframework.stereotype.Service
+    public static class LocationService {
+        private static final Logger log = LoggerFactory.getLogger(LocationService.class);
+        private static final double METERS_PER_DEGREE = 111_320.0;
+        private final RoutingProvider routing;
+        private final double[][] origins;
+        private final double cellDegrees;
+        private final long ttlNanos;
+        private final int maxEntries;
+        private final long timeoutMillis;
+        private final Map<Long, CachedEta> cache = new ConcurrentHashMap<>();
+        private final Map<Long, CompletableFuture<OptionalLong>> inFlight = new ConcurrentHashMap<>();
+        private final ReentrantLock evictionLock = new ReentrantLock();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder providerFailures = new LongAdder();
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder lookupNanos = new LongAdder();
+
+        public LocationService(RoutingProvider routing,
+                               @Value("${location.origins:12.9719,77.5946}") String origins,
+                               @Value("${location.grid-cell-meters:250}") double cellMeters,
+                               @Value("${location.eta-cache.ttl-seconds:300}") long ttlSeconds,
+                               @Value("${location.eta-cache.max-entries:100000}") int maxEntries,
+                               @Value("${location.routing.timeout-ms:800}") long timeoutMillis) {
+            this.routing = routing;
+            this.origins = parseOrigins(origins);
+            this.cellDegrees = cellMeters / METERS_PER_DEGREE;
+            this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+            this.maxEntries = Math.max(16, maxEntries);
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public long estimateEtaSeconds(double destLat, double destLng) {
+            long start = System.nanoTime();
+            try {
+                long cell = cellOf(destLat, destLng);
+                CachedEta hit = cache.get(cell);
+                if (hit != null && hit.expiresAt - start > 0) {
+                    hits.increment();
+                    return hit.seconds;
+                }
+                misses.increment();
+                OptionalLong routed = lookup(cell).getNow(null);
+                return routed != null && routed.isPresent() ? routed.getAsLong() : localEstimate(destLat, destLng);
+            } finally {
+                lookups.increment();
+                lookupNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        public CompletableFuture<Long> estimateEtaSecondsAsync(double destLat, double destLng) {
+            long cell = cellOf(destLat, destLng);
+            CachedEta hit = cache.get(cell);
+            if (hit != null && hit.expiresAt - System.nanoTime() > 0) {
+                hits.increment();
+                return CompletableFuture.completedFuture(hit.seconds);
+            }
+            misses.increment();
+            return lookup(cell).thenApply(r -> r.isPresent() ? r.getAsLong() : localEstimate(destLat, destLng));
+        }
+
+        public Map<String, Object> stats() {
+            long h = hits.sum(), m = misses.sum(), n = lookups.sum();
+            return Map.of(
+                    "hits", h,
+                    "misses", m,
+                    "hitRate", h + m == 0 ? 0.0 : (double) h / (h + m),
+                    "coalescedLookups", coalesced.sum(),
+                    "providerFailures", providerFailures.sum(),
+                    "meanLookupMicros", n == 0 ? 0.0 : lookupNanos.sum() / 1000.0 / n,
+                    "cachedCells", cache.size());
+        }
+
+        // Routes from the nearest origin to the cell centre, so every point in a cell shares one answer.
+        private CompletableFuture<OptionalLong> lookup(long cell) {
+            CompletableFuture<OptionalLong> existing = inFlight.get(cell);
+            if (existing != null) {
+                coalesced.increment();
+                return existing;
+            }
+            CompletableFuture<OptionalLong> mine = new CompletableFuture<>();
+            existing = inFlight.putIfAbsent(cell, mine);
+            if (existing != null) {
+                coalesced.increment();
+                return existing;
+            }
+            double lat = cellCenterLat(cell), lng = cellCenterLng(cell);
+            double[] origin = nearestOrigin(lat, lng);
+            CompletableFuture<OptionalLong> call;
+            try {
+                call = routing.travelSeconds(origin[0], origin[1], lat, lng);
+            } catch (RuntimeException e) {
+                call = CompletableFuture.failedFuture(e);
+            }
+            call.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((r, err) -> {
+                OptionalLong result = r;
+                if (err != null || r == null) {
+                    providerFailures.increment();
+                    log.debug("Routing lookup failed for cell {}", cell, err);
+                    result = OptionalLong.empty();
+                } else if (r.isPresent()) {
+                    put(cell, r.getAsLong());
+                }
+                inFlight.remove(cell, mine);
+                mine.complete(result);
+            });
+            return mine;
+        }
+
+        private void put(long cell, long seconds) {
+            cache.put(cell, new CachedEta(seconds, System.nanoTime() + ttlNanos));
+            if (cache.size() > maxEntries && evictionLock.tryLock()) {
+                try {
+                    evict();
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+        }
+
+        // Drops expired cells first, then arbitrary ones until 10% under the bound.
+        private void evict() {
+            long now = System.nanoTime();
+            cache.values().removeIf(c -> c.expiresAt - now <= 0);
+            int target = maxEntries - maxEntries / 10;
+            Iterator<Long> it = cache.keySet().iterator();
+            while (cache.size() > target && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        private long localEstimate(double destLat, double destLng) {
+            double[] origin = nearestOrigin(destLat, destLng);
+            return LocalRoutingProvider.secondsFor(distanceKm(origin[0], origin[1], destLat, destLng));
+        }
+
+        private double[] nearestOrigin(double lat, double lng) {
+            double[] best = origins[0];
+            double bestKm = Double.MAX_VALUE;
+            for (double[] o : origins) {
+                double km = distanceKm(o[0], o[1], lat, lng);
+                if (km < bestKm) { bestKm = km; best = o; }
+            }
+            return best;
+        }
+
+        private long cellOf(double lat, double lng) {
+            long y = (long) Math.floor(lat / cellDegrees);
+            long x = (long) Math.floor(lng / cellDegrees);
+            return (y << 32) | (x & 0xffffffffL);
+        }
+
+        private double cellCenterLat(long cell) { return ((cell >> 32) + 0.5) * cellDegrees; }
+        private double cellCenterLng(long cell) { return (((int) cell) + 0.5) * cellDegrees; }
+
+        private static double[][] parseOrigins(String spec) {
+            List<double[]> out = new ArrayList<>();
+            for (String part : spec.split(";")) {
+                if (part.isBlank()) continue;
+                String[] ll = part.trim().split(",");
+                if (ll.length != 2) throw new IllegalArgumentException("location.origins entries must be lat,lng: " + part);
+                out.add(new double[]{Double.parseDouble(ll[0].trim()), Double.parseDouble(ll[1].trim())});
+            }
+            if (out.isEmpty()) throw new IllegalArgumentException("location.origins must list at least one restaurant");
+            return out.toArray(new double[0][]);
+        }
+
+        // Equirectangular within a city (error well under 0.1% at these distances); haversine beyond.
+        static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+            double dLat = lat2 - lat1, dLon = lon2 - lon1;
+            if (Math.abs(dLat) < 0.5 && Math.abs(dLon) < 0.5) {
+                double x = Math.toRadians(dLon) * Math.cos(Math.toRadians((lat1 + lat2) * 0.5));
+                double y = Math.toRadians(dLat);
+                return 6371.0 * Math.sqrt(x * x + y * y);
+            }
+            return haversineKm(lat1, lon1, lat2, lon2);
+        }
+
+        static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+            double R = 6371.0;
+            double dLat = Math.toRadians(lat2 - lat1);
+            double dLon = Math.toRadians(lon2 - lon1);
+            double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
+                       Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                       Math.sin(dLon/2) * Math.sin(dLon/2);
+            double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
+            return R * c;
+        }
+
+        private static final class CachedEta {
+            final long seconds;
+            final long expiresAt;
+            CachedEta(long seconds, long expiresAt) { this.seconds = seconds; this.expiresAt = expiresAt; }
+        }
+    }
+
+    // -------------------------
+    // Routing providers
+    // -------------------------
+    public interface RoutingProvider {
+        // Empty when the provider has no answer; the caller falls back to the local estimate.
+        CompletableFuture<OptionalLong> travelSeconds(double fromLat, double fromLng, double toLat, double toLng);
+    }
+
+    // Distance-based stub: 2 minutes per km, clamped to [5 min, 1 h]. Also the fallback estimate.
+    public static class LocalRoutingProvider implements RoutingProvider {
+        @Override
+        public CompletableFuture<OptionalLong> travelSeconds(double fromLat, double fromLng, double toLat, double toLng) {
+            return CompletableFuture.completedFuture(OptionalLong.of(secondsFor(LocationService.distanceKm(fromLat, fromLng, toLat, toLng))));
+        }
+
+        static long secondsFor(double km) {
+            double secs = Math.max(300, Math.min(3600, km * 120));
+            return Math.round(secs);
+        }
+    }
+
+    // Google Directions API, fully non-blocking: routes[0].legs[0].duration.value in seconds.
+    public static class GoogleRoutingProvider implements RoutingProvider {
+        private final WebClient webClient;
+        private final String key;
+
+        public GoogleRoutingProvider(WebClient webClient, String key) {
+            this.webClient = webClient; this.key = key;
+        }
+
+        @Override
+        public CompletableFuture<OptionalLong> travelSeconds(double fromLat, double fromLng, double toLat, double toLng) {
+            return webClient.get()
+                    .uri(b -> b.scheme("https").host("maps.googleapis.com").path("/maps/api/directions/json")
+                            .queryParam("origin", fromLat + "," + fromLng)
+                            .queryParam("destination", toLat + "," + toLng)
+                            .queryParam("key", key)
+                            .build())
+                    .retrieve()
+                    .bodyToMono(JsonNode.class)
+                    .map(GoogleRoutingProvider::durationSeconds)
+                    .defaultIfEmpty(OptionalLong.empty())
+                    .toFuture();
+        }
+
+        static OptionalLong durationSeconds(JsonNode body) {
+            JsonNode value = body.path("routes").path(0).path("legs").path(0).path("duration").path("value");
+            return value.canConvertToLong() ? OptionalLong.of(value.asLong()) : OptionalLong.empty();
         }
     }
 }
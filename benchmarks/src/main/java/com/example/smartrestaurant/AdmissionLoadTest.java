@@ -0,0 +1,178 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Open-loop overload test for POST /api/orders. Orders arrive at a fixed rate from many phones and
+// (forwarded) client addresses, regardless of how fast the kitchen cooks. Every accepted order is
+// followed until it is delivered. The report covers the overload factor (offered rate / kitchen
+// throughput), responses by outcome, placement latency, actual time-to-ready against the quote,
+// and orphans: accepted orders still not delivered once the drain period after the run is over.
+//
+// Usage: AdmissionLoadTest [--rate=3.5] [--seconds=60] [--admission=true] [--drain-seconds=240] [-Dspring.property=value ...]
+public class AdmissionLoadTest {
+    private static final Set<String> READY_OR_LATER = Set.of("READY", "OUT_FOR_DELIVERY", "DELIVERED");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        List<String> overrides = new ArrayList<>(List.of("admission.trust-forwarded-for=true"));
+        for (String a : args) {
+            if (a.startsWith("--") && a.contains("=")) opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+            else if (a.startsWith("-D")) overrides.add(a.substring(2));
+        }
+        double rate = Double.parseDouble(opts.getOrDefault("rate", "3.5"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "60"));
+        int drainSeconds = Integer.parseInt(opts.getOrDefault("drain-seconds", "240"));
+        overrides.add("admission.enabled=" + opts.getOrDefault("admission", "true"));
+
+        ConfigurableApplicationContext context = BenchContext.start(WebApplicationType.SERVLET, overrides.toArray(new String[0]));
+        try {
+            long[] menuIds = context.getBean(RestaurantApplication.MenuCatalog.class).current().items().stream()
+                    .mapToLong(RestaurantApplication.MenuItem::getId).sorted().toArray();
+            String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/api";
+            new AdmissionLoadTest(base, menuIds).run(rate, seconds, drainSeconds);
+        } finally {
+            context.close();
+        }
+    }
+
+    private final String base;
+    private final long[] menuIds;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5)).build();
+    private final Map<String, Accepted> accepted = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> outcomes = new ConcurrentSkipListMap<>();
+    private final List<Long> placeNanos = Collections.synchronizedList(new ArrayList<>());
+
+    AdmissionLoadTest(String base, long[] menuIds) { this.base = base; this.menuIds = menuIds; }
+
+    void run(double rate, int seconds, int drainSeconds) throws Exception {
+        ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+        SplittableRandom rnd = new SplittableRandom(11);
+        long periodMicros = (long) (1_000_000 / rate);
+        long start = System.currentTimeMillis();
+        arrivals.scheduleAtFixedRate(() -> place(rnd), 0, periodMicros, TimeUnit.MICROSECONDS);
+        System.out.printf("offering %.1f orders/s for %ds%n", rate, seconds);
+        long end = start + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            poll();
+            Thread.sleep(500);
+        }
+        arrivals.shutdownNow();
+        long offeredFor = System.currentTimeMillis() - start;
+        long readyDuringRun = accepted.values().stream().filter(a -> a.readyAt > 0 && a.readyAt <= end).count();
+        long drainEnd = System.currentTimeMillis() + drainSeconds * 1000L;
+        while (System.currentTimeMillis() < drainEnd && accepted.values().stream().anyMatch(a -> !a.delivered)) {
+            poll();
+            Thread.sleep(500);
+        }
+        report(rate, offeredFor / 1000.0, readyDuringRun, drainSeconds);
+    }
+
+    private void place(SplittableRandom rnd) {
+        String body = orderBody(rnd);
+        String ip = "10.0." + rnd.nextInt(4) + "." + rnd.nextInt(250);
+        HttpRequest req = HttpRequest.newBuilder(URI.create(base + "/orders"))
+                .header("Content-Type", "application/json").header("X-Forwarded-For", ip)
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        long t0 = System.nanoTime();
+        http.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((r, ex) -> {
+            long nanos = System.nanoTime() - t0;
+            placeNanos.add(nanos);
+            if (ex != null) {
+                count("io error");
+                return;
+            }
+            try {
+                JsonNode json = mapper.readTree(r.body());
+                if (r.statusCode() == 200) {
+                    count("200 accepted");
+                    accepted.put(json.get("orderId").asText(),
+                            new Accepted(System.currentTimeMillis() - nanos / 1_000_000, json.path("quotedWaitSeconds").asLong(-1)));
+                } else {
+                    count(r.statusCode() + " " + json.path("error").asText());
+                }
+            } catch (Exception e) {
+                count(r.statusCode() + " unreadable");
+            }
+        });
+    }
+
+    // One GET per order that is not delivered yet; records when it was first seen ready and delivered.
+    private void poll() {
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        accepted.forEach((id, a) -> {
+            if (a.delivered) return;
+            pending.add(http.sendAsync(HttpRequest.newBuilder(URI.create(base + "/orders/" + id)).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray()).thenAccept(r -> {
+                if (r.statusCode() != 200) return;
+                try {
+                    String status = mapper.readTree(r.body()).path("status").asText();
+                    long now = System.currentTimeMillis();
+                    if (a.readyAt == 0 && READY_OR_LATER.contains(status)) a.readyAt = now;
+                    if ("DELIVERED".equals(status)) a.delivered = true;
+                } catch (Exception ignored) {
+                    // polled again next round
+                }
+            }));
+        });
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).orTimeout(10, TimeUnit.SECONDS).exceptionally(e -> null).join();
+    }
+
+    private void count(String outcome) { outcomes.computeIfAbsent(outcome, k -> new AtomicInteger()).incrementAndGet(); }
+
+    private String orderBody(SplittableRandom rnd) {
+        int lines = 1 + rnd.nextInt(3);
+        StringBuilder sb = new StringBuilder("{\"customerName\":\"load\",\"customerPhone\":\"9")
+                .append(100000000 + rnd.nextInt(800000000)).append("\",\"items\":[");
+        for (int k = 0; k < lines; k++) {
+            if (k > 0) sb.append(',');
+            sb.append("{\"menuItemId\":").append(menuIds[rnd.nextInt(menuIds.length)])
+              .append(",\"quantity\":").append(rnd.nextDouble() < 0.7 ? 1 : 2).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private void report(double rate, double offeredSeconds, long readyDuringRun, int drainSeconds) {
+        double throughput = readyDuringRun / offeredSeconds;
+        System.out.printf("%noffered %.2f orders/s, kitchen finished %.2f orders/s during the run: %.1fx overload%n",
+                rate, throughput, throughput > 0 ? rate / throughput : Double.POSITIVE_INFINITY);
+        System.out.println("responses: " + outcomes);
+        long[] place = placeNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("placement latency ms: p50 %.1f  p99 %.1f  max %.1f%n", pct(place, 0.5) / 1e6, pct(place, 0.99) / 1e6,
+                place.length == 0 ? 0 : place[place.length - 1] / 1e6);
+        long[] ready = accepted.values().stream().filter(a -> a.readyAt > 0).mapToLong(a -> a.readyAt - a.placedAt).sorted().toArray();
+        long[] quoteError = accepted.values().stream().filter(a -> a.readyAt > 0 && a.quotedSeconds >= 0)
+                .mapToLong(a -> Math.abs(a.readyAt - a.placedAt - a.quotedSeconds * 1000)).sorted().toArray();
+        System.out.printf("time to ready s:      p50 %.1f  p99 %.1f  max %.1f  (quote off by p50 %.1f s, p90 %.1f s)%n",
+                pct(ready, 0.5) / 1e3, pct(ready, 0.99) / 1e3, ready.length == 0 ? 0 : ready[ready.length - 1] / 1e3,
+                pct(quoteError, 0.5) / 1e3, pct(quoteError, 0.9) / 1e3);
+        long orphans = accepted.values().stream().filter(a -> !a.delivered).count();
+        System.out.printf("accepted %d, delivered %d, still undelivered %ds after arrivals stopped %d%n",
+                accepted.size(), accepted.size() - orphans, drainSeconds, orphans);
+    }
+
+    private static double pct(long[] sorted, double q) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * q) - 1)];
+    }
+
+    private static final class Accepted {
+        final long placedAt;
+        final long quotedSeconds;
+        volatile long readyAt;
+        volatile boolean delivered;
+        Accepted(long placedAt, long quotedSeconds) { this.placedAt = placedAt; this.quotedSeconds = quotedSeconds; }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.smartrestaurant;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Queries against the order archive after a week of finished orders (20k per day) has been moved
+// out of the hot tables: an hour-aligned week answered from the aggregates alone, the same week
+// shifted by 30 minutes (two partial buckets scanned from the mapped segments), a full scan of
+// one day, and an archived order looked up by id. Setup prints the archive size per order.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ArchiveBenchmark {
+    private static final int DAYS = 7;
+    private static final int ORDERS_PER_DAY = 20_000;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private ConfigurableApplicationContext context;
+    private Path dir;
+    private RestaurantApplication.OrderArchive archive;
+    private long weekStart;
+    private String someId;
+    private long deliveredUnits;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dir = Files.createTempDirectory("archive-bench");
+        context = BenchContext.start(WebApplicationType.NONE, "archive.enabled=true", "archive.dir=" + dir,
+                "archive.after-minutes=0", "archive.interval-seconds=86400", "archive.batch-size=5000");
+        archive = context.getBean(RestaurantApplication.OrderArchive.class);
+        List<RestaurantApplication.MenuItem> menu = new ArrayList<>(context.getBean(RestaurantApplication.MenuCatalog.class).current().items());
+        weekStart = (System.currentTimeMillis() / HOUR - DAYS * 24 - 1) * HOUR;
+        insertOrders(context.getBean(JdbcTemplate.class), menu);
+        long t0 = System.nanoTime();
+        int archived = 0, n;
+        while ((n = archive.archiveBatch()) > 0) archived += n;
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+        long bytes;
+        try (Stream<Path> files = Files.list(dir)) {
+            bytes = files.mapToLong(p -> p.toFile().length()).sum();
+        }
+        System.out.printf("%narchived %d orders in %d ms: %d bytes on disk, %.1f bytes per order%n",
+                archived, ms, bytes, (double) bytes / archived);
+        long units = archive.sales(weekStart, weekStart + (DAYS * 24 + 1) * HOUR).units;
+        if (units != deliveredUnits) throw new IllegalStateException("archived " + units + " delivered units, inserted " + deliveredUnits);
+    }
+
+    private void insertOrders(JdbcTemplate jdbc, List<RestaurantApplication.MenuItem> menu) {
+        SplittableRandom rnd = new SplittableRandom(5);
+        long lineId = 1_000_000_000L;
+        List<Object[]> orders = new ArrayList<>();
+        List<Object[]> lines = new ArrayList<>();
+        int total = DAYS * ORDERS_PER_DAY;
+        for (int i = 0; i < total; i++) {
+            long created = weekStart + (long) i * DAYS * 24 * HOUR / total;
+            String id = RestaurantApplication.OrderIdGenerator.format(
+                    (created - RestaurantApplication.OrderIdGenerator.EPOCH) << 22 | (i & 0xFFF));
+            if (i == total / 2) someId = id;
+            boolean delivered = rnd.nextInt(20) != 0;
+            double sum = 0;
+            for (int k = 1 + rnd.nextInt(4); k > 0; k--) {
+                RestaurantApplication.MenuItem mi = menu.get(rnd.nextInt(menu.size()));
+                int q = 1 + rnd.nextInt(3);
+                sum += mi.getPrice() * q;
+                if (delivered) deliveredUnits += q;
+                lines.add(new Object[]{lineId++, id, mi.getId(), mi.getName(), q, mi.getPrice()});
+            }
+            Timestamp createdAt = new Timestamp(created);
+            createdAt.setNanos(createdAt.getNanos() + rnd.nextInt(1_000_000)); // sub-millisecond, like Instant.now()
+            orders.add(new Object[]{id, createdAt, "customer " + rnd.nextInt(5000), "9" + (100000000 + rnd.nextInt(800000000)),
+                    Math.round(sum * 100) / 100.0, 0.0, delivered ? "DELIVERED" : "CANCELLED",
+                    new Timestamp(created + 2_000), delivered ? new Timestamp(created + 600_000) : null,
+                    delivered ? new Timestamp(created + 660_000) : null, new Timestamp(created + (delivered ? 2_400_000 : 30_000))});
+        }
+        jdbc.batchUpdate("insert into orders (id, created_at, customer_name, customer_phone, total_amount, discount_amount, status,"
+                + " preparing_at, ready_at, out_for_delivery_at, finished_at) values (?,?,?,?,?,?,?,?,?,?,?)", orders);
+        jdbc.batchUpdate("insert into order_items (id, order_id, menu_item_id, name, quantity, unit_price) values (?,?,?,?,?,?)", lines);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        context.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public RestaurantApplication.SalesBucket weekFromAggregates() {
+        return archive.sales(weekStart, weekStart + DAYS * 24 * HOUR);
+    }
+
+    @Benchmark
+    public RestaurantApplication.SalesBucket weekWithPartialEdges() {
+        return archive.sales(weekStart + HOUR / 2, weekStart + DAYS * 24 * HOUR + HOUR / 2);
+    }
+
+    @Benchmark
+    public long scanOneDay() {
+        long[] units = new long[1];
+        archive.scan(weekStart, weekStart + 24 * HOUR, false, o -> {
+            for (int q : o.quantities) units[0] += q;
+        });
+        return units[0];
+    }
+
+    @Benchmark
+    public RestaurantApplication.OrderView findById() { return archive.find(someId); }
+}
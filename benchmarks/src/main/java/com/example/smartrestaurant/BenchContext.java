@@ -0,0 +1,53 @@
+package com.example.smartrestaurant;
+
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Boots the real application on a private in-memory H2 database. The production
+// application.properties is on the classpath; only what would break a benchmark is overridden,
+// passed as command-line arguments so they take precedence over the file.
+final class BenchContext {
+    private BenchContext() {}
+
+    // overrides are "key=value" and replace the defaults below.
+    static ConfigurableApplicationContext start(WebApplicationType type, String... overrides) {
+        Map<String, String> props = new LinkedHashMap<>();
+        props.put("spring.datasource.url", "jdbc:h2:mem:bench-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        props.put("spring.h2.console.enabled", "false");
+        props.put("spring.main.banner-mode", "off");
+        props.put("logging.level.root", "WARN");
+        props.put("logging.level.org.springframework", "WARN");
+        props.put("server.port", "0");
+        // The journal fsyncs every offer and keeps state across runs; benchmarks measure the rest of the path.
+        props.put("kitchen.queue.type", "memory");
+        props.put("kitchen.queue.capacity", "1000000");
+        props.put("archive.enabled", "false");
+        for (String o : overrides) {
+            int eq = o.indexOf('=');
+            if (eq > 0) props.put(o.substring(0, eq), o.substring(eq + 1));
+        }
+        return new SpringApplicationBuilder(RestaurantApplication.class)
+                .web(type)
+                .run(props.entrySet().stream().map(e -> "--" + e.getKey() + "=" + e.getValue()).toArray(String[]::new));
+    }
+
+    static RestaurantApplication.PlaceOrderRequest order(String name, long[] itemIds, int[] quantities) {
+        RestaurantApplication.PlaceOrderRequest req = new RestaurantApplication.PlaceOrderRequest();
+        req.customerName = name;
+        req.customerPhone = "9000000000";
+        req.items = new ArrayList<>();
+        for (int i = 0; i < itemIds.length; i++) {
+            RestaurantApplication.PlaceOrderRequest.ItemRequest it = new RestaurantApplication.PlaceOrderRequest.ItemRequest();
+            it.menuItemId = itemIds[i];
+            it.quantity = quantities[i];
+            req.items.add(it);
+        }
+        return req;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Runs several cluster members in one JVM on the in-process bus and one shared in-memory database.
+// Orders are placed round-robin over the members, and each one is followed over SSE from a
+// different member than the one that placed it. Partway through, one member leaves gracefully
+// and a new one joins. The report shows orders whose SSE stream never saw DELIVERED, orders whose
+// row is not DELIVERED once the drain is over, and per-member handoff counters.
+//
+// Usage: ClusterLoadTest [--nodes=3] [--rate=4] [--seconds=40] [--drain-seconds=90] [-Dspring.property=value ...]
+public class ClusterLoadTest {
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5)).build();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<Integer, ConfigurableApplicationContext> nodes = new ConcurrentSkipListMap<>();
+    private final Map<String, Boolean> streamSawDelivered = new ConcurrentHashMap<>();
+    private final AtomicInteger refused = new AtomicInteger();
+    private final List<String> overrides;
+    private final String db = "jdbc:h2:mem:cluster-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+    private final String clusterName = "load-" + UUID.randomUUID();
+    private final String members;
+    private long[] menuIds;
+
+    ClusterLoadTest(int nodeCount, List<String> overrides) {
+        this.overrides = overrides;
+        StringBuilder sb = new StringBuilder();
+        for (int n = 1; n <= nodeCount + 1; n++) sb.append(n > 1 ? "," : "").append(n);
+        this.members = sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        List<String> overrides = new ArrayList<>(List.of(
+                "kitchen.stations=pizza:8:8,burger:8:8,sides:8:16,salad:4:8",
+                "kitchen.prep-seconds=pizza:3,burger:2,sides:1,salad:1",
+                "kitchen.batch-window-ms=500",
+                "admission.enabled=false"));
+        for (String a : args) {
+            if (a.startsWith("--") && a.contains("=")) opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+            else if (a.startsWith("-D")) overrides.add(a.substring(2));
+        }
+        int nodeCount = Integer.parseInt(opts.getOrDefault("nodes", "3"));
+        double rate = Double.parseDouble(opts.getOrDefault("rate", "4"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "40"));
+        int drainSeconds = Integer.parseInt(opts.getOrDefault("drain-seconds", "90"));
+        ClusterLoadTest test = new ClusterLoadTest(nodeCount, overrides);
+        try {
+            test.run(nodeCount, rate, seconds, drainSeconds);
+        } finally {
+            test.nodes.values().forEach(ConfigurableApplicationContext::close);
+        }
+    }
+
+    void run(int nodeCount, double rate, int seconds, int drainSeconds) throws Exception {
+        for (int n = 1; n <= nodeCount; n++) startNode(n);
+        menuIds = nodes.get(1).getBean(RestaurantApplication.MenuCatalog.class).current().items().stream()
+                .mapToLong(RestaurantApplication.MenuItem::getId).sorted().toArray();
+        Thread.sleep(2000); // let the members see each other before the first order
+        System.out.printf("%d members, offering %.1f orders/s for %ds%n", nodeCount, rate, seconds);
+
+        ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+        SplittableRandom rnd = new SplittableRandom(7);
+        AtomicInteger turn = new AtomicInteger();
+        arrivals.scheduleAtFixedRate(() -> place(rnd, turn.getAndIncrement()), 0, (long) (1_000_000 / rate), TimeUnit.MICROSECONDS);
+        Thread.sleep(seconds * 1000L / 3);
+        System.out.println("member 2 leaves");
+        nodes.remove(2).close();
+        Thread.sleep(seconds * 1000L / 3);
+        System.out.println("member " + (nodeCount + 1) + " joins");
+        startNode(nodeCount + 1);
+        Thread.sleep(seconds * 1000L / 3);
+        arrivals.shutdownNow();
+
+        long drainEnd = System.currentTimeMillis() + drainSeconds * 1000L;
+        while (System.currentTimeMillis() < drainEnd && streamSawDelivered.containsValue(false)) Thread.sleep(500);
+        report();
+    }
+
+    private void startNode(int n) {
+        List<String> props = new ArrayList<>(overrides);
+        props.addAll(List.of("spring.datasource.url=" + db, "orders.node-id=" + n, "cluster.enabled=true",
+                "cluster.transport=in-process", "cluster.name=" + clusterName, "cluster.members=" + members));
+        nodes.put(n, BenchContext.start(WebApplicationType.SERVLET, props.toArray(new String[0])));
+    }
+
+    private String base(int node) {
+        ConfigurableApplicationContext ctx = nodes.get(node);
+        return ctx == null ? null : "http://localhost:" + ctx.getEnvironment().getProperty("local.server.port") + "/api";
+    }
+
+    private void place(SplittableRandom rnd, int turn) {
+        Integer[] up = nodes.keySet().toArray(new Integer[0]);
+        if (up.length < 2) return;
+        int placeOn = up[turn % up.length], followOn = up[(turn + 1) % up.length];
+        String body = "{\"customerName\":\"cluster\",\"customerPhone\":\"9" + (100000000 + rnd.nextInt(800000000))
+                + "\",\"items\":[{\"menuItemId\":" + menuIds[rnd.nextInt(menuIds.length)] + ",\"quantity\":1}]}";
+        try {
+            HttpResponse<String> r = http.send(HttpRequest.newBuilder(URI.create(base(placeOn) + "/orders"))
+                    .header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (r.statusCode() != 200) {
+                refused.incrementAndGet();
+                return;
+            }
+            String id = mapper.readTree(r.body()).get("orderId").asText();
+            follow(id, followOn);
+        } catch (Exception e) {
+            refused.incrementAndGet();
+        }
+    }
+
+    // Reconnects with Last-Event-ID to any live member when its member goes away, like a browser would.
+    private void follow(String id, int node) {
+        streamSawDelivered.put(id, false);
+        follow(id, node, null);
+    }
+
+    private void follow(String id, int node, String lastEventId) {
+        String base = base(node);
+        if (base == null) {
+            Integer other = nodes.keySet().stream().findFirst().orElse(null);
+            if (other != null) follow(id, other, lastEventId);
+            return;
+        }
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(base + "/orders/" + id + "/events")).GET();
+        if (lastEventId != null) req.header("Last-Event-ID", lastEventId);
+        http.sendAsync(req.build(), HttpResponse.BodyHandlers.ofLines()).thenAccept(r -> {
+            String last = lastEventId;
+            try (Stream<String> lines = r.body()) {
+                for (Iterator<String> it = lines.iterator(); it.hasNext(); ) {
+                    String line = it.next();
+                    if (line.startsWith("id:")) last = line.substring(3).trim();
+                    if (line.startsWith("data:") && line.contains("DELIVERED")) {
+                        streamSawDelivered.put(id, true);
+                        return;
+                    }
+                }
+            } catch (Exception ignored) {
+                // reconnect below
+            }
+            if (!streamSawDelivered.get(id)) follow(id, nodes.keySet().stream().findFirst().orElse(node), last);
+        });
+    }
+
+    private void report() throws Exception {
+        long missed = streamSawDelivered.values().stream().filter(v -> !v).count();
+        int notDelivered = 0;
+        String base = base(nodes.keySet().iterator().next());
+        for (String id : streamSawDelivered.keySet()) {
+            HttpResponse<String> r = http.send(HttpRequest.newBuilder(URI.create(base + "/orders/" + id)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (r.statusCode() != 200 || !"DELIVERED".equals(mapper.readTree(r.body()).path("status").asText())) notDelivered++;
+        }
+        System.out.printf("%naccepted %d, refused %d%n", streamSawDelivered.size(), refused.get());
+        System.out.printf("SSE streams that never saw DELIVERED: %d%n", missed);
+        System.out.printf("orders not DELIVERED after the drain: %d%n", notDelivered);
+        for (Map.Entry<Integer, ConfigurableApplicationContext> e : nodes.entrySet()) {
+            String scrape = e.getValue().getBean(RestaurantApplication.Metrics.class).scrape();
+            System.out.printf("member %d: partitions %s, handoffs sent %s, received %s, forwarded events %s%n", e.getKey(),
+                    value(scrape, "restaurant_cluster_partitions_owned"), value(scrape, "restaurant_cluster_handoffs_sent_total"),
+                    value(scrape, "restaurant_cluster_handoffs_received_total"), value(scrape, "restaurant_cluster_forwarded_events_total"));
+        }
+    }
+
+    private static String value(String scrape, String metric) {
+        for (String line : scrape.split("\n")) {
+            if (line.startsWith(metric + " ")) return line.substring(metric.length() + 1);
+        }
+        return "?";
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.smartrestaurant;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Distance maths and the ETA engine on delivery points spread over a city-sized area.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoBenchmark {
+    private static final double ORIGIN_LAT = 12.9719, ORIGIN_LNG = 77.5946;
+    private static final int POINTS = 4096;
+
+    private final double[] lat = new double[POINTS];
+    private final double[] lng = new double[POINTS];
+    private RestaurantApplication.LocationService eta;
+    private int i;
+
+    @Setup
+    public void setup() {
+        SplittableRandom rnd = new SplittableRandom(7);
+        for (int k = 0; k < POINTS; k++) {
+            lat[k] = ORIGIN_LAT + rnd.nextDouble(-0.08, 0.08);
+            lng[k] = ORIGIN_LNG + rnd.nextDouble(-0.08, 0.08);
+        }
+        eta = new RestaurantApplication.LocationService(new RestaurantApplication.LocalRoutingProvider(),
+                ORIGIN_LAT + "," + ORIGIN_LNG, 250, 300, 100_000, 800);
+        for (int k = 0; k < POINTS; k++) eta.estimateEtaSeconds(lat[k], lng[k]); // warm the grid cache
+    }
+
+    private int next() { return i = (i + 1) & (POINTS - 1); }
+
+    @Benchmark
+    public double haversineKm() {
+        int k = next();
+        return RestaurantApplication.LocationService.haversineKm(ORIGIN_LAT, ORIGIN_LNG, lat[k], lng[k]);
+    }
+
+    @Benchmark
+    public double distanceKm() {
+        int k = next();
+        return RestaurantApplication.LocationService.distanceKm(ORIGIN_LAT, ORIGIN_LNG, lat[k], lng[k]);
+    }
+
+    @Benchmark
+    public long etaCached() {
+        int k = next();
+        return eta.estimateEtaSeconds(lat[k], lng[k]);
+    }
+}
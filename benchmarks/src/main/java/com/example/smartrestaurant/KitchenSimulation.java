@@ -0,0 +1,106 @@
+package com.example.smartrestaurant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Replays a Poisson order stream against KitchenStations on a virtual clock and compares the
+// station model (cross-order batching, earliest promise first) with FIFO per-order cooking on
+// the same stations and prep times. Usage: KitchenSimulation [ordersPerMinute] [minutes] [seed]
+public class KitchenSimulation {
+    // The seeded menu: ids 1-2 pizza, 3-4 burger, 5 sides, 6 salad.
+    private static final String[] CATEGORY = {null, "pizza", "pizza", "burger", "burger", "sides", "salad"};
+
+    public static void main(String[] args) {
+        double perMinute = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int minutes = args.length > 1 ? Integer.parseInt(args[1]) : 240;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        String stations = "pizza:4:6,burger:3:4,sides:2:8,salad:2:2";
+        String prep = "pizza:480,burger:300,sides:180,salad:120";
+        System.out.println(run("fifo", stations, prep, 0, false, false, perMinute, minutes, seed));
+        System.out.println(run("stations", stations, prep, 60_000, true, true, perMinute, minutes, seed));
+    }
+
+    public static Report run(String label, String stations, String prep, long windowMillis,
+                             boolean crossOrderBatching, boolean earliestPromiseFirst,
+                             double ordersPerMinute, int minutes, long seed) {
+        VirtualClock clock = new VirtualClock();
+        RestaurantApplication.KitchenStations kitchen = new RestaurantApplication.KitchenStations(stations, prep, "", windowMillis, crossOrderBatching,
+                earliestPromiseFirst, id -> id > 0 && id < CATEGORY.length ? CATEGORY[(int) id] : null, clock);
+        Random rnd = new Random(seed);
+        List<Long> completion = new ArrayList<>();
+        long horizon = minutes * 60_000L;
+        long t = 0;
+        int n = 0;
+        while (true) {
+            t += (long) (-Math.log(1 - rnd.nextDouble()) * 60_000 / ordersPerMinute);
+            if (t >= horizon) break;
+            int lines = 1 + rnd.nextInt(3);
+            long[] ids = new long[lines];
+            int[] qty = new int[lines];
+            for (int i = 0; i < lines; i++) {
+                ids[i] = 1 + rnd.nextInt(CATEGORY.length - 1);
+                qty[i] = 1 + (rnd.nextDouble() < 0.7 ? 0 : rnd.nextInt(3));
+            }
+            final long arrival = t;
+            final String id = "SIM" + (n++);
+            clock.at(arrival, () -> kitchen.submit(id, ids, qty, () -> completion.add(clock.now() - arrival)));
+        }
+        clock.runAll();
+        return new Report(label, completion, kitchen.utilization());
+    }
+
+    public static final class Report {
+        final String label;
+        final int orders;
+        final double meanSeconds;
+        final double p95Seconds;
+        final Map<String, Double> utilization;
+
+        Report(String label, List<Long> completionMillis, Map<String, Double> utilization) {
+            List<Long> sorted = new ArrayList<>(completionMillis);
+            Collections.sort(sorted);
+            this.label = label;
+            this.orders = sorted.size();
+            this.meanSeconds = sorted.stream().mapToLong(Long::longValue).average().orElse(0) / 1000.0;
+            this.p95Seconds = sorted.isEmpty() ? 0 : sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(sorted.size() * 0.95) - 1)) / 1000.0;
+            this.utilization = utilization;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%-9s orders=%d mean=%.1fs p95=%.1fs utilization:", label, orders, meanSeconds, p95Seconds));
+            utilization.forEach((k, v) -> sb.append(String.format(" %s=%.0f%%", k, v * 100)));
+            return sb.toString();
+        }
+    }
+
+    // Single-threaded discrete-event clock; ties run in scheduling order.
+    static final class VirtualClock implements RestaurantApplication.KitchenStations.Clock {
+        private final PriorityQueue<long[]> queue = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        private final Map<Long, Runnable> tasks = new HashMap<>();
+        private long now;
+        private long seq;
+
+        @Override public long now() { return now; }
+        @Override public void schedule(Runnable task, long delayMillis) { at(now + Math.max(0, delayMillis), task); }
+
+        void at(long time, Runnable task) {
+            long id = seq++;
+            tasks.put(id, task);
+            queue.add(new long[]{time, id});
+        }
+
+        void runAll() {
+            long[] next;
+            while ((next = queue.poll()) != null) {
+                now = next[0];
+                tasks.remove(next[1]).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Drives the real ApiController over HTTP on an embedded server and H2 database:
+//  - closed-loop clients running a storefront mix (menu, place order, order lookup, pay, track)
+//  - SSE subscribers that follow recent orders until they are delivered, then move on
+//  - couriers posting batched location pings for recent orders
+// and prints throughput and latency percentiles per operation for the measured window.
+//
+// Usage: LoadGenerator [--seconds=60] [--warmup=15] [--clients=32] [--sse=200] [--couriers=8]
+//                      [--ping-batch=25] [--ping-interval-ms=250] [-Dspring.property=value ...]
+public class LoadGenerator {
+    private static final String[] OPS = {"menu", "menu-conditional", "place-order", "get-order", "pay", "track", "track-batch"};
+    private static final double ORIGIN_LAT = 12.9719, ORIGIN_LNG = 77.5946;
+
+    private final HttpClient http;
+    private final String base;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long[] menuIds;
+    // Recently placed orders with their payment tokens; SSE subscribers, lookups and couriers pick from here.
+    private final AtomicReferenceArray<String[]> recent = new AtomicReferenceArray<>(4096);
+    private final AtomicLong placed = new AtomicLong();
+    private final AtomicLong sseEvents = new AtomicLong();
+    private final AtomicLong sseStreams = new AtomicLong();
+    private final AtomicLong sseErrors = new AtomicLong();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    LoadGenerator(HttpClient http, String base, long[] menuIds) {
+        this.http = http; this.base = base; this.menuIds = menuIds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        // A kitchen big and fast enough that orders keep flowing to DELIVERED at benchmark order rates,
+        // so SSE subscribers see whole lifecycles instead of an ever-growing backlog.
+        List<String> overrides = new ArrayList<>(List.of(
+                "kitchen.stations=pizza:32:8,burger:32:8,sides:16:16,salad:16:8",
+                "kitchen.prep-seconds=pizza:3,burger:2,sides:1,salad:1",
+                "kitchen.batch-window-ms=500",
+                // Every client shares one address, so only the per-phone limit is left meaningful.
+                "admission.ip.per-minute=1000000",
+                "admission.ip.burst=1000"));
+        for (String a : args) {
+            if (a.startsWith("--") && a.contains("=")) opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+            else if (a.startsWith("-D")) overrides.add(a.substring(2));
+        }
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "60"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "15"));
+        int clients = Integer.parseInt(opts.getOrDefault("clients", "32"));
+        int sse = Integer.parseInt(opts.getOrDefault("sse", "200"));
+        int couriers = Integer.parseInt(opts.getOrDefault("couriers", "8"));
+        int pingBatch = Integer.parseInt(opts.getOrDefault("ping-batch", "25"));
+        long pingInterval = Long.parseLong(opts.getOrDefault("ping-interval-ms", "250"));
+
+        ConfigurableApplicationContext context = BenchContext.start(WebApplicationType.SERVLET, overrides.toArray(new String[0]));
+        try {
+            String port = context.getEnvironment().getProperty("local.server.port");
+            long[] menuIds = context.getBean(RestaurantApplication.MenuCatalog.class).current().items().stream()
+                    .mapToLong(RestaurantApplication.MenuItem::getId).sorted().toArray();
+            ExecutorService pool = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "loadgen");
+                t.setDaemon(true);
+                return t;
+            });
+            HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(5)).executor(pool).build();
+            new LoadGenerator(http, "http://localhost:" + port + "/api", menuIds)
+                    .run(pool, seconds, warmup, clients, sse, couriers, pingBatch, pingInterval);
+            pool.shutdownNow();
+        } finally {
+            context.close();
+        }
+    }
+
+    void run(ExecutorService pool, int seconds, int warmup, int clients, int sse, int couriers,
+             int pingBatch, long pingInterval) throws Exception {
+        List<Recorder> recorders = new CopyOnWriteArrayList<>();
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Recorder rec = new Recorder();
+            recorders.add(rec);
+            long seed = c;
+            tasks.add(pool.submit(() -> client(rec, new SplittableRandom(seed))));
+        }
+        for (int c = 0; c < couriers; c++) {
+            Recorder rec = new Recorder();
+            recorders.add(rec);
+            long seed = 1000 + c;
+            tasks.add(pool.submit(() -> courier(rec, new SplittableRandom(seed), pingBatch, pingInterval)));
+        }
+        for (int s = 0; s < sse; s++) {
+            long seed = 2000 + s;
+            tasks.add(pool.submit(() -> subscriber(new SplittableRandom(seed))));
+        }
+        System.out.printf("warming up for %ds (%d clients, %d SSE subscribers, %d couriers)%n", warmup, clients, sse, couriers);
+        Thread.sleep(warmup * 1000L);
+        long events0 = sseEvents.get(), streams0 = sseStreams.get();
+        recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        recording = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long events = sseEvents.get() - events0, streams = sseStreams.get() - streams0;
+        running = false;
+        for (Future<?> f : tasks) f.cancel(true);
+        report(recorders, elapsed, events, streams);
+    }
+
+    private void client(Recorder rec, SplittableRandom rnd) {
+        String etag = null;
+        while (running) {
+            int dice = rnd.nextInt(100);
+            try {
+                if (dice < 30) {
+                    HttpResponse<byte[]> r = timed(rec, "menu", HttpRequest.newBuilder(uri("/menu")).GET().build());
+                    etag = r.headers().firstValue("ETag").orElse(etag);
+                } else if (dice < 55 && etag != null) {
+                    timed(rec, "menu-conditional", HttpRequest.newBuilder(uri("/menu")).header("If-None-Match", etag).GET().build());
+                } else if (dice < 75) {
+                    HttpResponse<byte[]> r = timed(rec, "place-order", json("/orders", orderBody(rnd)));
+                    if (r.statusCode() == 200) {
+                        JsonNode body = mapper.readTree(r.body());
+                        long n = placed.getAndIncrement();
+                        recent.set((int) (n % recent.length()), new String[]{body.get("orderId").asText(), body.get("paymentToken").asText()});
+                    }
+                } else if (dice < 88) {
+                    String[] o = pick(rnd);
+                    if (o != null) timed(rec, "get-order", HttpRequest.newBuilder(uri("/orders/" + o[0])).GET().build());
+                } else if (dice < 96) {
+                    String[] o = pick(rnd);
+                    if (o != null) {
+                        timed(rec, "pay", HttpRequest.newBuilder(uri("/orders/" + o[0] + "/pay"))
+                                .header("Content-Type", "application/json").header("Idempotency-Key", "pay-" + o[0])
+                                .POST(HttpRequest.BodyPublishers.ofString("{\"paymentToken\":\"" + o[1] + "\"}")).build());
+                    }
+                } else {
+                    String[] o = pick(rnd);
+                    if (o != null) timed(rec, "track", json("/orders/" + o[0] + "/track", point(rnd)));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (recording) rec.error("io");
+            }
+        }
+    }
+
+    private void courier(Recorder rec, SplittableRandom rnd, int batch, long intervalMillis) {
+        while (running) {
+            try {
+                StringBuilder sb = new StringBuilder("[");
+                for (int k = 0; k < batch; k++) {
+                    String[] o = pick(rnd);
+                    if (o == null) continue;
+                    if (sb.length() > 1) sb.append(',');
+                    String p = point(rnd);
+                    sb.append("{\"orderId\":\"").append(o[0]).append("\",").append(p, 1, p.length() - 1).append('}');
+                }
+                if (sb.length() > 1) timed(rec, "track-batch", json("/track/batch", sb.append(']').toString()));
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (recording) rec.error("io");
+            }
+        }
+    }
+
+    // Follows one order's stream until the server completes it, then subscribes to another.
+    private void subscriber(SplittableRandom rnd) {
+        while (running) {
+            String[] o = pick(rnd);
+            try {
+                if (o == null) {
+                    Thread.sleep(100);
+                    continue;
+                }
+                HttpResponse<InputStream> r = http.send(HttpRequest.newBuilder(uri("/orders/" + o[0] + "/events"))
+                        .header("Accept", "text/event-stream").GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+                sseStreams.incrementAndGet();
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(r.body(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while (running && (line = in.readLine()) != null) {
+                        if (line.startsWith("event:")) sseEvents.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (running) sseErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private HttpResponse<byte[]> timed(Recorder rec, String op, HttpRequest req) throws Exception {
+        long t0 = System.nanoTime();
+        HttpResponse<byte[]> r = http.send(req, HttpResponse.BodyHandlers.ofByteArray());
+        long nanos = System.nanoTime() - t0;
+        if (recording) {
+            if (r.statusCode() >= 400) rec.error(op + " " + r.statusCode());
+            else rec.record(op, nanos);
+        }
+        return r;
+    }
+
+    private HttpRequest json(String path, String body) {
+        return HttpRequest.newBuilder(uri(path)).header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+    }
+
+    private URI uri(String path) { return URI.create(base + path); }
+
+    private String[] pick(SplittableRandom rnd) {
+        long n = placed.get();
+        if (n == 0) return null;
+        // Skewed towards the newest orders: those are the ones still being cooked and delivered.
+        long back = Math.min(n, recent.length());
+        long idx = n - 1 - (long) (back * Math.pow(rnd.nextDouble(), 3));
+        return recent.get((int) (idx % recent.length()));
+    }
+
+    private String orderBody(SplittableRandom rnd) {
+        int lines = 1 + rnd.nextInt(3);
+        StringBuilder sb = new StringBuilder("{\"customerName\":\"load\",\"customerPhone\":\"9")
+                .append(100000000 + rnd.nextInt(800000000)).append("\",\"items\":[");
+        for (int k = 0; k < lines; k++) {
+            if (k > 0) sb.append(',');
+            sb.append("{\"menuItemId\":").append(menuIds[rnd.nextInt(menuIds.length)])
+              .append(",\"quantity\":").append(rnd.nextDouble() < 0.7 ? 1 : 2 + rnd.nextInt(2)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String point(SplittableRandom rnd) {
+        return String.format(Locale.ROOT, "{\"lat\":%.6f,\"lng\":%.6f}",
+                ORIGIN_LAT + rnd.nextDouble(-0.08, 0.08), ORIGIN_LNG + rnd.nextDouble(-0.08, 0.08));
+    }
+
+    private void report(List<Recorder> recorders, double elapsed, long events, long streams) {
+        Map<String, long[]> merged = new LinkedHashMap<>();
+        Map<String, Long> errors = new TreeMap<>();
+        long total = 0;
+        for (String op : OPS) {
+            int size = 0;
+            for (Recorder r : recorders) size += r.count(op);
+            long[] all = new long[size];
+            int at = 0;
+            for (Recorder r : recorders) at = r.copy(op, all, at);
+            Arrays.sort(all);
+            merged.put(op, all);
+            total += all.length;
+        }
+        for (Recorder r : recorders) r.errors.forEach((k, v) -> errors.merge(k, v, Long::sum));
+
+        System.out.printf("%nmeasured %.1fs: %d ok requests, %.0f req/s%n", elapsed, total, total / elapsed);
+        System.out.printf("%-17s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        merged.forEach((op, l) -> {
+            if (l.length == 0) return;
+            System.out.printf(Locale.ROOT, "%-17s %9d %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f%n", op, l.length, l.length / elapsed,
+                    pct(l, 0.50), pct(l, 0.90), pct(l, 0.99), pct(l, 0.999), l[l.length - 1] / 1e6);
+        });
+        System.out.printf("sse: %d streams opened, %d events received (%.0f/s), %d stream errors%n",
+                streams, events, events / elapsed, sseErrors.get());
+        System.out.println("non-success responses: " + (errors.isEmpty() ? "none" : errors));
+    }
+
+    private static double pct(long[] sorted, double q) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * q) - 1)] / 1e6;
+    }
+
+    // Per-thread samples; merged once at the end so recording never contends.
+    private static final class Recorder {
+        final Map<String, long[]> samples = new ConcurrentHashMap<>();
+        final Map<String, Integer> counts = new ConcurrentHashMap<>();
+        final Map<String, Long> errors = new ConcurrentHashMap<>();
+
+        void record(String op, long nanos) {
+            int n = counts.getOrDefault(op, 0);
+            long[] buf = samples.computeIfAbsent(op, k -> new long[1024]);
+            if (n == buf.length) {
+                buf = Arrays.copyOf(buf, n * 2);
+                samples.put(op, buf);
+            }
+            buf[n] = nanos;
+            counts.put(op, n + 1);
+        }
+
+        void error(String key) { errors.merge(key, 1L, Long::sum); }
+
+        int count(String op) { return counts.getOrDefault(op, 0); }
+
+        int copy(String op, long[] into, int at) {
+            int n = count(op);
+            if (n > 0) System.arraycopy(samples.get(op), 0, into, at, n);
+            return at + n;
+        }
+    }
+}
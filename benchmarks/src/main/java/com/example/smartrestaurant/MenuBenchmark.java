@@ -0,0 +1,64 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// GET /menu: serializing per request (what the endpoint used to do) versus serving the
+// pre-rendered snapshot, plus the one-off cost of building a snapshot when the menu changes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MenuBenchmark {
+    private static final String[] CATEGORIES = {"pizza", "burger", "sides", "salad", "drinks", "desserts"};
+
+    @Param({"6", "200"})
+    public int items;
+
+    private final ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
+    private List<RestaurantApplication.MenuItem> menu;
+    private RestaurantApplication.ApiController api;
+    private String etag;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Field id = RestaurantApplication.MenuItem.class.getDeclaredField("id");
+        id.setAccessible(true);
+        menu = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            RestaurantApplication.MenuItem mi = new RestaurantApplication.MenuItem("Item " + i,
+                    "Description of menu item number " + i, 4.99 + i % 10, CATEGORIES[i % CATEGORIES.length]);
+            id.set(mi, (long) i + 1);
+            menu.add(mi);
+        }
+        RestaurantApplication.MenuSnapshot snapshot = RestaurantApplication.MenuSnapshot.build(1, menu, mapper, List.of());
+        RestaurantApplication.MenuCatalog catalog = new RestaurantApplication.MenuCatalog(null, mapper, "") {
+            @Override public RestaurantApplication.MenuSnapshot current() { return snapshot; }
+        };
+        api = new RestaurantApplication.ApiController(catalog, null, null, null, null, null, null, null);
+        etag = snapshot.rendered(null).etag;
+    }
+
+    @Benchmark
+    public byte[] serializePerRequest() throws Exception { return mapper.writeValueAsBytes(menu); }
+
+    @Benchmark
+    public ResponseEntity<byte[]> snapshotOk() { return api.getMenu(null, null); }
+
+    @Benchmark
+    public ResponseEntity<byte[]> snapshotNotModified() { return api.getMenu(null, etag); }
+
+    @Benchmark
+    public ResponseEntity<byte[]> snapshotCategory() { return api.getMenu("pizza", null); }
+
+    @Benchmark
+    public RestaurantApplication.MenuSnapshot buildSnapshot() { return RestaurantApplication.MenuSnapshot.build(2, menu, mapper, List.of()); }
+}
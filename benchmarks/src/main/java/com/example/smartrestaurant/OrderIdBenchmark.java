@@ -0,0 +1,26 @@
+package com.example.smartrestaurant;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Order id generation: the raw 64-bit id, and the base36 string handed out as the order id.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderIdBenchmark {
+    private final RestaurantApplication.OrderIdGenerator ids = new RestaurantApplication.OrderIdGenerator(0L, false, "");
+
+    @Benchmark
+    public long nextId() { return ids.nextId(); }
+
+    @Benchmark
+    public String nextOrderId() { return ids.nextOrderId(); }
+
+    @Benchmark
+    @Threads(4)
+    public String nextOrderIdContended() { return ids.nextOrderId(); }
+}
@@ -0,0 +1,65 @@
+package com.example.smartrestaurant;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// OrderService.placeOrder end to end: validation, pricing, id, JPA insert, queue offer. "ids" picks the
+// entity id mapping: pooled sequences with batched inserts, or the IDENTITY columns they replaced
+// (identity-ids.xml), where every item line is its own INSERT.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 12, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class OrderPlacementBenchmark {
+    private static final String[] CATEGORIES = {"pizza", "burger", "sides", "salad"};
+
+    @Param({"pooled-batched", "identity-unbatched"})
+    public String ids;
+
+    private ConfigurableApplicationContext context;
+    private RestaurantApplication.OrderService orders;
+    private RestaurantApplication.PlaceOrderRequest single;
+    private RestaurantApplication.PlaceOrderRequest tenLines;
+
+    @Setup(Level.Trial)
+    public void start() {
+        context = "identity-unbatched".equals(ids)
+                ? BenchContext.start(WebApplicationType.NONE, "spring.jpa.mapping-resources=identity-ids.xml",
+                        "spring.jpa.properties.hibernate.jdbc.batch_size=0")
+                : BenchContext.start(WebApplicationType.NONE);
+        orders = context.getBean(RestaurantApplication.OrderService.class);
+        // 40 items on top of the seeded six, so a ten-line cart has ten distinct dishes.
+        List<RestaurantApplication.MenuItem> extra = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            extra.add(new RestaurantApplication.MenuItem("Dish " + i, "Fixture dish " + i, 3.49 + i % 7,
+                    CATEGORIES[i % CATEGORIES.length]));
+        }
+        context.getBean(RestaurantApplication.MenuItemRepository.class).saveAll(extra);
+        long[] menu = context.getBean(RestaurantApplication.MenuCatalog.class).refresh().items().stream()
+                .mapToLong(RestaurantApplication.MenuItem::getId).sorted().toArray();
+        long[] ten = new long[10];
+        for (int i = 0; i < ten.length; i++) ten[i] = menu[i * 4 + 3];
+        single = BenchContext.order("bench", new long[]{menu[0]}, new int[]{1});
+        tenLines = BenchContext.order("bench", ten, new int[]{2, 1, 1, 3, 2, 1, 4, 1, 2, 1});
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() { context.close(); }
+
+    @Benchmark
+    public RestaurantApplication.FoodOrder singleItem() { return orders.placeOrder(single); }
+
+    @Benchmark
+    public RestaurantApplication.FoodOrder tenLines() { return orders.placeOrder(tenLines); }
+
+    @Benchmark
+    @Threads(4)
+    public RestaurantApplication.FoodOrder tenLinesContended() { return orders.placeOrder(tenLines); }
+}
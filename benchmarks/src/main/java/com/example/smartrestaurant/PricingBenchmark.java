@@ -0,0 +1,80 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Pricing a cart of N lines: the HashMap<Long,Integer> / double loop placeOrder used to run, versus
+// the PriceBook compiled with the menu snapshot (integer cents, slot arrays, rules applied). Run
+// with -prof gc for bytes allocated per quote (gc.alloc.rate.norm).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PricingBenchmark {
+    private static final String[] CATEGORIES = {"pizza", "burger", "sides", "salad", "drinks", "desserts"};
+
+    @Param({"1", "5", "20", "50"})
+    public int lines;
+
+    private RestaurantApplication.MenuSnapshot snapshot;
+    private RestaurantApplication.PriceBook prices;
+    private List<RestaurantApplication.PlaceOrderRequest.ItemRequest> cart;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Field id = RestaurantApplication.MenuItem.class.getDeclaredField("id");
+        id.setAccessible(true);
+        List<RestaurantApplication.MenuItem> menu = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            RestaurantApplication.MenuItem mi = new RestaurantApplication.MenuItem("Item " + i,
+                    "Description of menu item number " + i, 4.99 + i % 10, CATEGORIES[i % CATEGORIES.length]);
+            id.set(mi, (long) i + 1);
+            menu.add(mi);
+        }
+        snapshot = RestaurantApplication.MenuSnapshot.build(1, menu, new ObjectMapper().findAndRegisterModules(),
+                RestaurantApplication.PriceBook.parseRules("combo:burger+sides:100,percent:salad:10,bulk:pizza:3:15"));
+        prices = snapshot.prices();
+        SplittableRandom rnd = new SplittableRandom(3);
+        cart = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            RestaurantApplication.PlaceOrderRequest.ItemRequest it = new RestaurantApplication.PlaceOrderRequest.ItemRequest();
+            it.menuItemId = 1L + rnd.nextInt(200);
+            it.quantity = 1 + rnd.nextInt(3);
+            cart.add(it);
+        }
+    }
+
+    @Benchmark
+    public RestaurantApplication.Quote priceBook() { return prices.quote(cart); }
+
+    // What placeOrder does: the quote plus the OrderItem rows it persists.
+    @Benchmark
+    public List<RestaurantApplication.OrderItem> priceBookWithOrderItems() { return prices.quote(cart).toOrderItems(); }
+
+    @Benchmark
+    public List<RestaurantApplication.OrderItem> boxedMapAndDouble(Blackhole bh) {
+        Map<Long, Integer> counts = new LinkedHashMap<>();
+        for (RestaurantApplication.PlaceOrderRequest.ItemRequest it : cart) {
+            if (it.quantity <= 0) throw new IllegalArgumentException("Quantity must be > 0");
+            counts.merge(it.menuItemId, it.quantity, Integer::sum);
+        }
+        List<RestaurantApplication.OrderItem> orderItems = new ArrayList<>(counts.size());
+        double total = 0.0;
+        for (Map.Entry<Long, Integer> e : counts.entrySet()) {
+            RestaurantApplication.MenuItem mi = snapshot.item(e.getKey());
+            if (mi == null) throw new IllegalArgumentException("Invalid menu item id included");
+            int q = e.getValue();
+            orderItems.add(new RestaurantApplication.OrderItem(mi.getId(), mi.getName(), q, mi.getPrice()));
+            total += mi.getPrice() * q;
+        }
+        bh.consume(Math.round(total * 100.0) / 100.0);
+        return orderItems;
+    }
+}
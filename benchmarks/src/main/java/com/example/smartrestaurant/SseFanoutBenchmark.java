@@ -0,0 +1,92 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitterReturnValueHandler;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// OrderEventHub fan-out to N subscribers of one order. publish is the cost paid by the lifecycle
+// thread; publishAndDeliver waits until the sender pool has written the event to every emitter.
+// Each emitter is opened the way Spring MVC opens one for a controller, on a mock servlet response
+// whose body is discarded; every flushed event counts as a send.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseFanoutBenchmark {
+    private static final String ORDER = "ORDBENCH";
+
+    @Param({"1", "64", "1024"})
+    public int subscribers;
+
+    private RestaurantApplication.OrderEventHub hub;
+    private final AtomicLong sends = new AtomicLong();
+    private final Map<String, Object> payload = Map.of("orderId", ORDER, "etaSeconds", 420);
+    private long published;
+
+    @Setup
+    public void setup() throws Exception {
+        hub = new RestaurantApplication.OrderEventHub(new ObjectMapper(), 4, 1024, 16, "drop-oldest", 3600, 120);
+        ResponseBodyEmitterReturnValueHandler handler =
+                new ResponseBodyEmitterReturnValueHandler(List.of(new StringHttpMessageConverter()));
+        MethodParameter returnType = new MethodParameter(SseFanoutBenchmark.class.getDeclaredMethod("stream"), -1);
+        for (int k = 0; k < subscribers; k++) {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/orders/" + ORDER + "/events");
+            request.setAsyncSupported(true);
+            CountingResponse response = new CountingResponse(sends);
+            ServletWebRequest webRequest = new ServletWebRequest(request, response);
+            WebAsyncUtils.getAsyncManager(webRequest).setAsyncWebRequest(new StandardServletAsyncWebRequest(request, response));
+            handler.handleReturnValue(hub.subscribe(ORDER, null, null, false), returnType, new ModelAndViewContainer(), webRequest);
+        }
+    }
+
+    // The handler mapping's view of the controller method: only its return type is read.
+    private static SseEmitter stream() { return null; }
+
+    @TearDown
+    public void stop() { hub.shutdown(); }
+
+    @Benchmark
+    public void publish() { hub.publish(ORDER, "eta", payload); }
+
+    @Benchmark
+    public long publishAndDeliver() {
+        long target = sends.get() + subscribers;
+        hub.publish(ORDER, "eta", payload);
+        long n;
+        while ((n = sends.get()) < target) Thread.onSpinWait();
+        return n;
+    }
+
+    private static final class CountingResponse extends MockHttpServletResponse {
+        private final AtomicLong flushes;
+        private final ServletOutputStream discard = new ServletOutputStream() {
+            @Override public void write(int b) {}
+            @Override public void write(byte[] b, int off, int len) {}
+            @Override public boolean isReady() { return true; }
+            @Override public void setWriteListener(WriteListener listener) {}
+        };
+
+        CountingResponse(AtomicLong flushes) { this.flushes = flushes; }
+
+        @Override public ServletOutputStream getOutputStream() { return discard; }
+        @Override public void flushBuffer() { setCommitted(true); flushes.incrementAndGet(); }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ClusterMessageTest {
+    @Test
+    void framesRoundTrip() throws IOException {
+        RestaurantApplication.ClusterMessage m = new RestaurantApplication.ClusterMessage(
+                RestaurantApplication.ClusterMessage.EVENT, 3, "ORD1", 42, "status", "{\"status\":\"READY\"}", 7);
+        RestaurantApplication.ClusterMessage back = RestaurantApplication.ClusterMessage.read(
+                new DataInputStream(new ByteArrayInputStream(frame(m))));
+        assertEquals(m.type, back.type);
+        assertEquals(m.from, back.from);
+        assertEquals(m.orderId, back.orderId);
+        assertEquals(m.seq, back.seq);
+        assertEquals(m.name, back.name);
+        assertEquals(m.data, back.data);
+        assertEquals(m.extra, back.extra);
+    }
+
+    @Test
+    void outOfRangeDataLengthIsRejectedBeforeAllocating() {
+        for (int length : new int[]{-1, RestaurantApplication.ClusterMessage.MAX_DATA_BYTES + 1, Integer.MAX_VALUE}) {
+            assertThrows(ProtocolException.class, () -> RestaurantApplication.ClusterMessage.read(
+                    new DataInputStream(new ByteArrayInputStream(badFrame(length)))));
+        }
+    }
+
+    @Test
+    void aBadFrameClosesTheConnectionAndTheNextOneStillWorks() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) { port = probe.getLocalPort(); }
+        RestaurantApplication.LoopbackStatusEventBus bus = new RestaurantApplication.LoopbackStatusEventBus(
+                Map.of(1, "127.0.0.1:" + port, 2, "127.0.0.1:1"), 16);
+        BlockingQueue<RestaurantApplication.ClusterMessage> received = new LinkedBlockingQueue<>();
+        bus.start(1, received::add);
+        try {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.getOutputStream().write(badFrame(-5));
+                s.setSoTimeout(5000);
+                assertEquals(-1, s.getInputStream().read());
+            }
+            RestaurantApplication.ClusterMessage ok = new RestaurantApplication.ClusterMessage(
+                    RestaurantApplication.ClusterMessage.HEARTBEAT, 2, "", 0, "", "", 0);
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.getOutputStream().write(frame(ok));
+                RestaurantApplication.ClusterMessage got = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(got);
+                assertEquals(2, got.from);
+            }
+        } finally {
+            bus.close();
+        }
+    }
+
+    @Test
+    void aLoneMemberUsesTheInProcessBus() {
+        RestaurantApplication app = new RestaurantApplication();
+        assertInstanceOf(RestaurantApplication.InProcessStatusEventBus.class,
+                app.statusEventBus(false, "loopback", "t", "1=127.0.0.1:7701,2=127.0.0.1:7702", 16));
+        assertInstanceOf(RestaurantApplication.InProcessStatusEventBus.class,
+                app.statusEventBus(true, "loopback", "t", "1=127.0.0.1:7701", 16));
+        assertInstanceOf(RestaurantApplication.LoopbackStatusEventBus.class,
+                app.statusEventBus(true, "loopback", "t", "1=127.0.0.1:7701,2=127.0.0.1:7702", 16));
+    }
+
+    private static byte[] frame(RestaurantApplication.ClusterMessage m) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        m.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // A frame up to its data length, which is the only thing read() has to go on.
+    private static byte[] badFrame(int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RestaurantApplication.ClusterMessage.EVENT);
+        out.writeShort(2);
+        out.writeUTF("ORD1");
+        out.writeLong(1);
+        out.writeUTF("status");
+        out.writeInt(length);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CourierTrackerTest {
+    private final Set<String> live = ConcurrentHashMap.newKeySet();
+    private final RestaurantApplication.OrderService orders = mock(RestaurantApplication.OrderService.class);
+    private final RestaurantApplication.LocationService locations = mock(RestaurantApplication.LocationService.class);
+    private final RestaurantApplication.OrderWriteBehind writeBehind = mock(RestaurantApplication.OrderWriteBehind.class);
+    // One slot, and no background flushes: the test calls flush() itself.
+    private final RestaurantApplication.CourierTracker tracker = new RestaurantApplication.CourierTracker(orders, locations,
+            writeBehind, mock(RestaurantApplication.OrderReadModel.class), mock(RestaurantApplication.OrderEventHub.class),
+            1, 3_600_000, 30);
+
+    @AfterEach
+    void stop() { tracker.shutdown(); }
+
+    @Test
+    void pingRacingReleaseNeverWritesIntoTheReusedSlot() {
+        when(orders.isLive(anyString())).thenAnswer(inv -> live.contains(inv.<String>getArgument(0)));
+        when(locations.estimateEtaSeconds(anyDouble(), anyDouble())).thenReturn(600L);
+        live.add("A");
+        // While A's ping is still writing to its slot, A is delivered, flushed out of its slot, and B pings.
+        doAnswer(inv -> {
+            live.remove("A");
+            live.add("B");
+            tracker.flush();
+            assertEquals(RestaurantApplication.CourierTracker.NO_CAPACITY, tracker.ping("B", 2, 2));
+            return null;
+        }).when(orders).updateEta(eq("A"), anyLong());
+
+        assertEquals(600, tracker.ping("A", 1, 1));
+        tracker.flush();
+        assertEquals(600, tracker.ping("B", 2, 2));
+        tracker.flush();
+
+        verify(writeBehind).location("B", 2.0, 2.0, 600);
+        verify(writeBehind, never()).location(eq("B"), eq(1.0), anyDouble(), anyLong());
+    }
+
+    @Test
+    void slotIsReusedOnceReleased() {
+        when(orders.isLive(anyString())).thenAnswer(inv -> live.contains(inv.<String>getArgument(0)));
+        when(locations.estimateEtaSeconds(anyDouble(), anyDouble())).thenReturn(300L);
+        live.add("A");
+        assertEquals(300, tracker.ping("A", 1, 1));
+        live.remove("A");
+        assertEquals(RestaurantApplication.CourierTracker.UNKNOWN_ORDER, tracker.ping("B", 2, 2));
+        live.add("B");
+        assertEquals(RestaurantApplication.CourierTracker.NO_CAPACITY, tracker.ping("B", 2, 2));
+        tracker.flush();
+        assertEquals(300, tracker.ping("B", 2, 2));
+        assertEquals(RestaurantApplication.CourierTracker.UNKNOWN_ORDER, tracker.ping("A", 1, 1));
+    }
+}
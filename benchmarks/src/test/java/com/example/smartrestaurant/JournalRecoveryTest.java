@@ -0,0 +1,108 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Kills a process that is writing the preparation journal with SIGKILL mid-stream, then reopens the
+// journal here. Every order whose offer() returned must come back unless its complete() was logged
+// first, nothing may come back twice, and the recovered journal must keep working.
+class JournalRecoveryTest {
+    private static final int SEGMENT_BYTES = 64 * 1024; // the minimum: about 2,800 records, so segments roll and compact
+    private static final int MAX_SEGMENTS = 2;
+    private static final int OFFERS_BEFORE_KILL = 8_000;
+
+    @Test
+    void acknowledgedOrdersSurviveKill(@TempDir Path dir) throws Exception {
+        Process child = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), Writer.class.getName(), dir.toString())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        Set<String> offered = new HashSet<>();
+        Set<String> completed = new HashSet<>();
+        int highest = -1;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+            // A line counts once the next one has started: the last one may have been cut by the kill.
+            String line = out.readLine();
+            String next;
+            while (line != null && (next = out.readLine()) != null) {
+                String id = line.substring(2);
+                if (line.startsWith("E ")) {
+                    offered.add(id);
+                    highest = Math.max(highest, index(id));
+                } else {
+                    completed.add(id);
+                }
+                // Through the handle: Process.destroyForcibly() would also close the pipe we still read from.
+                if (offered.size() == OFFERS_BEFORE_KILL) child.toHandle().destroyForcibly();
+                line = next;
+            }
+        }
+        assertTrue(child.waitFor(30, TimeUnit.SECONDS));
+        assertTrue(offered.size() >= OFFERS_BEFORE_KILL, "writer exited early after " + offered.size() + " offers");
+
+        RestaurantApplication.JournalPreparationQueue queue =
+                new RestaurantApplication.JournalPreparationQueue(dir, 1_000_000, SEGMENT_BYTES, MAX_SEGMENTS);
+        List<String> recovered = new ArrayList<>();
+        queue.drainTo(recovered, Integer.MAX_VALUE);
+        Set<String> unique = new HashSet<>(recovered);
+        assertEquals(recovered.size(), unique.size(), "an order was recovered twice");
+        for (String id : offered) {
+            // The writer completes an id right after printing its offer, so the newest one may be
+            // completed in the journal while its completion line was the one cut off.
+            boolean maybeCompleted = index(id) == highest && highest % 3 == 0;
+            if (!completed.contains(id) && !maybeCompleted) assertTrue(unique.contains(id), "lost acknowledged order " + id);
+        }
+        // The uncounted last line, and the record being written when the kill landed, may also come back.
+        for (String id : unique) assertTrue(index(id) <= highest + 2, "recovered an order that was never offered: " + id);
+
+        for (String id : recovered) queue.complete(id);
+        assertTrue(queue.offer("ORD-after-recovery"));
+        queue.close();
+        RestaurantApplication.JournalPreparationQueue reopened =
+                new RestaurantApplication.JournalPreparationQueue(dir, 1_000_000, SEGMENT_BYTES, MAX_SEGMENTS);
+        List<String> left = new ArrayList<>();
+        reopened.drainTo(left, Integer.MAX_VALUE);
+        reopened.close();
+        assertEquals(List.of("ORD-after-recovery"), left);
+    }
+
+    private static int index(String id) { return Integer.parseInt(id.substring(3)); }
+
+    // Runs in the child JVM: offers ids forever, draining as it goes and completing every third one.
+    // A line is printed only after the call it reports has returned.
+    public static final class Writer {
+        public static void main(String[] args) {
+            RestaurantApplication.JournalPreparationQueue queue =
+                    new RestaurantApplication.JournalPreparationQueue(Paths.get(args[0]), 1_000_000, SEGMENT_BYTES, MAX_SEGMENTS);
+            List<String> drained = new ArrayList<>();
+            for (int i = 0; ; i++) {
+                String id = "ORD" + i;
+                if (!queue.offer(id)) throw new IllegalStateException("offer refused for " + id);
+                System.out.println("E " + id);
+                drained.clear();
+                queue.drainTo(drained, Integer.MAX_VALUE);
+                for (String d : drained) {
+                    if (index(d) % 3 == 0) {
+                        queue.complete(d);
+                        System.out.println("C " + d);
+                    }
+                }
+                System.out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Orders wait on the timer between steps instead of holding a thread, so moving thousands of
+// them through prep and delivery takes about as long as one order, whatever the pool size.
+class KitchenSchedulerTest {
+    private static final int ORDERS = 10_000;
+    private static final long STAGE_MILLIS = 300;
+
+    @Test
+    void throughputDoesNotDependOnPoolSize() throws InterruptedException {
+        long oneThread = runLifecycles(1);
+        long fourThreads = runLifecycles(4);
+        // A thread parked per order would need ORDERS * 2 * STAGE_MILLIS / threads: over half an hour here.
+        assertTrue(oneThread < 5_000, "1 thread took " + oneThread + " ms");
+        assertTrue(fourThreads < 5_000, "4 threads took " + fourThreads + " ms");
+        assertTrue(oneThread < fourThreads * 3 + 500, "1 thread: " + oneThread + " ms, 4 threads: " + fourThreads + " ms");
+    }
+
+    private static long runLifecycles(int threads) throws InterruptedException {
+        CountDownLatch delivered = new CountDownLatch(ORDERS);
+        Map<String, AtomicInteger> steps = new ConcurrentHashMap<>();
+        // Two timed stages per order, like cooking and delivery, then done.
+        RestaurantApplication.KitchenScheduler kitchen = new RestaurantApplication.KitchenScheduler(threads, id -> {
+            int step = steps.computeIfAbsent(id, k -> new AtomicInteger()).getAndIncrement();
+            if (step < 2) return STAGE_MILLIS;
+            delivered.countDown();
+            return -1;
+        });
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < ORDERS; i++) kitchen.start("order-" + i);
+            assertTrue(delivered.await(30, TimeUnit.SECONDS), "orders left in flight: " + delivered.getCount());
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            kitchen.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Drives KitchenStations on the simulation's virtual clock, so ready times are exact.
+class KitchenStationsTest {
+    private static final long PIZZA = 1, BURGER = 2, UNKNOWN = 99;
+
+    private final KitchenSimulation.VirtualClock clock = new KitchenSimulation.VirtualClock();
+    private final Map<String, Long> readyAt = new LinkedHashMap<>();
+
+    @Test
+    void itemsCookOnTheirCategoryStationAndUnknownOnesOnGeneral() {
+        // One slot for pizza and for burger; pizza takes 100 s, burger 30 s, anything else the 5 s default.
+        RestaurantApplication.KitchenStations kitchen = kitchen("pizza:1:1,burger:1:1", 0, false);
+        clock.at(0, () -> submit(kitchen, "A", new long[]{PIZZA, BURGER, UNKNOWN}, new int[]{1, 1, 1}));
+        clock.runAll();
+
+        // The lines cook in parallel on three stations; the order is ready with its slowest line.
+        assertEquals(100_000L, readyAt.get("A"));
+        Map<String, Double> busy = kitchen.utilization();
+        assertEquals(1.0, busy.get("pizza"), 1e-9);
+        assertEquals(0.3, busy.get("burger"), 1e-9);
+        assertEquals(0.025, busy.get("general"), 1e-9); // the default general station has two slots
+    }
+
+    @Test
+    void aStationRunsNoMoreThanItsSlotsAndBatchUnitsAtOnce() {
+        // One oven taking two pizzas per run.
+        RestaurantApplication.KitchenStations kitchen = kitchen("pizza:1:2", 0, true);
+        clock.at(0, () -> submit(kitchen, "A", new long[]{PIZZA}, new int[]{1}));
+        clock.at(0, () -> submit(kitchen, "B", new long[]{PIZZA}, new int[]{1}));
+        clock.at(0, () -> submit(kitchen, "C", new long[]{PIZZA}, new int[]{1}));
+        // A second later, so its promise is later than B's and C's.
+        clock.at(1_000, () -> submit(kitchen, "D", new long[]{PIZZA}, new int[]{3}));
+        clock.at(1_000, () -> assertEquals(5, kitchen.queuedUnits())); // A went straight in
+        clock.at(1_000, () -> assertEquals(4, kitchen.cookingOrders()));
+        clock.at(150_000, () -> assertEquals(3, kitchen.cookingOrders())); // A is done
+        clock.runAll();
+
+        // A alone, then B and C batched across orders, then D's three units over two runs.
+        assertEquals(100_000L, readyAt.get("A"));
+        assertEquals(200_000L, readyAt.get("B"));
+        assertEquals(200_000L, readyAt.get("C"));
+        assertEquals(400_000L, readyAt.get("D"));
+        assertEquals(0, kitchen.queuedUnits());
+        assertEquals(0, kitchen.cookingOrders());
+        assertTrue(kitchen.utilization().get("pizza") <= 1.0);
+    }
+
+    @Test
+    void withoutCrossOrderBatchingOrdersNeverShareARun() {
+        RestaurantApplication.KitchenStations kitchen = kitchen("pizza:1:2", 0, false);
+        clock.at(0, () -> submit(kitchen, "A", new long[]{PIZZA}, new int[]{1}));
+        clock.at(0, () -> submit(kitchen, "B", new long[]{PIZZA}, new int[]{1}));
+        clock.at(0, () -> submit(kitchen, "C", new long[]{PIZZA}, new int[]{1}));
+        clock.runAll();
+
+        assertEquals(100_000L, readyAt.get("A"));
+        assertEquals(200_000L, readyAt.get("B"));
+        assertEquals(300_000L, readyAt.get("C"));
+    }
+
+    @Test
+    void batchWindowHoldsAPartialRunUntilItFillsOrExpires() {
+        RestaurantApplication.KitchenStations kitchen = kitchen("pizza:2:2", 10_000, true);
+        clock.at(0, () -> submit(kitchen, "A", new long[]{PIZZA}, new int[]{1}));
+        clock.at(4_000, () -> submit(kitchen, "B", new long[]{PIZZA}, new int[]{1}));
+        clock.at(20_000, () -> submit(kitchen, "C", new long[]{PIZZA}, new int[]{1}));
+        clock.runAll();
+
+        // B fills A's run at 4 s; C waits out its window and cooks alone on the free slot.
+        assertEquals(104_000L, readyAt.get("A"));
+        assertEquals(104_000L, readyAt.get("B"));
+        assertEquals(130_000L, readyAt.get("C"));
+    }
+
+    private RestaurantApplication.KitchenStations kitchen(String stations, long windowMillis, boolean crossOrderBatching) {
+        return new RestaurantApplication.KitchenStations(stations, "pizza:100,burger:30", "", windowMillis,
+                crossOrderBatching, true, id -> id == PIZZA ? "pizza" : id == BURGER ? "burger" : "drinks", clock);
+    }
+
+    private void submit(RestaurantApplication.KitchenStations kitchen, String orderId, long[] items, int[] quantities) {
+        kitchen.submit(orderId, items, quantities, () -> readyAt.put(orderId, clock.now()));
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class LocationServiceTest {
+    private static final double LAT = 12.9800, LNG = 77.6000;
+
+    private final FakeRouting routing = new FakeRouting();
+    private final RestaurantApplication.LocationService locations =
+            new RestaurantApplication.LocationService(routing, "12.9719,77.5946", 250, 300, 1000, 60_000);
+
+    @Test
+    void concurrentLookupsForOneCellMakeOneRoutingCall() throws Exception {
+        int callers = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<CompletableFuture<Long>>> pending = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                double jitter = i * 1e-5; // about a metre apart, all in the same 250 m cell
+                pending.add(pool.submit(() -> {
+                    go.await();
+                    return locations.estimateEtaSecondsAsync(LAT + jitter, LNG);
+                }));
+            }
+            go.countDown();
+            List<CompletableFuture<Long>> etas = new ArrayList<>();
+            for (Future<CompletableFuture<Long>> f : pending) etas.add(f.get(5, TimeUnit.SECONDS));
+            assertEquals(1, routing.calls.size());
+
+            routing.calls.get(0).complete(OptionalLong.of(777));
+            for (CompletableFuture<Long> eta : etas) assertEquals(777L, eta.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        // Now cached: answered without another call.
+        assertEquals(777L, locations.estimateEtaSeconds(LAT, LNG));
+        assertEquals(1, routing.calls.size());
+    }
+
+    @Test
+    void aFailedLookupIsNotCached() throws Exception {
+        CompletableFuture<Long> first = locations.estimateEtaSecondsAsync(LAT, LNG);
+        routing.calls.get(0).completeExceptionally(new IllegalStateException("provider down"));
+        long fallback = first.get(5, TimeUnit.SECONDS);
+        assertNotEquals(999L, fallback); // the local estimate
+
+        CompletableFuture<Long> second = locations.estimateEtaSecondsAsync(LAT, LNG);
+        assertEquals(2, routing.calls.size());
+        routing.calls.get(1).complete(OptionalLong.of(999));
+        assertEquals(999L, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1L, locations.stats().get("providerFailures"));
+    }
+
+    @Test
+    void anEmptyAnswerIsNotCachedEither() throws Exception {
+        CompletableFuture<Long> first = locations.estimateEtaSecondsAsync(LAT, LNG);
+        routing.calls.get(0).complete(OptionalLong.empty());
+        first.get(5, TimeUnit.SECONDS);
+
+        locations.estimateEtaSecondsAsync(LAT, LNG);
+        assertEquals(2, routing.calls.size());
+    }
+
+    // Answers only when the test completes the call's future.
+    private static final class FakeRouting implements RestaurantApplication.RoutingProvider {
+        final List<CompletableFuture<OptionalLong>> calls = new ArrayList<>();
+
+        @Override
+        public synchronized CompletableFuture<OptionalLong> travelSeconds(double fromLat, double fromLng, double toLat, double toLng) {
+            CompletableFuture<OptionalLong> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MenuEtagTest {
+    private final List<RestaurantApplication.MenuItem> rows = new ArrayList<>();
+    private final RestaurantApplication.MenuItemRepository repo = mock(RestaurantApplication.MenuItemRepository.class);
+    private final RestaurantApplication.MenuCatalog catalog = new RestaurantApplication.MenuCatalog(repo, new ObjectMapper(), "");
+    // Only the menu endpoint is exercised, so the controller gets no other collaborators.
+    private final RestaurantApplication.ApiController api =
+            new RestaurantApplication.ApiController(catalog, null, null, null, null, null, null, null);
+
+    MenuEtagTest() throws Exception {
+        when(repo.findAll()).thenAnswer(inv -> new ArrayList<>(rows));
+        rows.add(item(1, "Pizza", 10.00, "pizza"));
+        rows.add(item(2, "Fries", 2.50, "sides"));
+        catalog.refresh();
+    }
+
+    @Test
+    void aMatchingEtagGetsA304InAnyForm() {
+        ResponseEntity<byte[]> first = api.getMenu(null, null);
+        assertEquals(HttpStatus.OK, first.getStatusCode());
+        String etag = first.getHeaders().getETag();
+        assertEquals('"', etag.charAt(0)); // strong
+
+        assertEquals(HttpStatus.NOT_MODIFIED, api.getMenu(null, etag).getStatusCode());
+        assertEquals(HttpStatus.NOT_MODIFIED, api.getMenu(null, "W/" + etag).getStatusCode());
+        assertEquals(HttpStatus.NOT_MODIFIED, api.getMenu(null, "\"stale\", " + etag).getStatusCode());
+        assertEquals(HttpStatus.NOT_MODIFIED, api.getMenu(null, "*").getStatusCode());
+        assertEquals(etag, api.getMenu(null, etag).getHeaders().getETag());
+        assertEquals(HttpStatus.OK, api.getMenu(null, "\"stale\", W/\"other\"").getStatusCode());
+    }
+
+    @Test
+    void eachCategoryHasItsOwnEtag() {
+        String all = api.getMenu(null, null).getHeaders().getETag();
+        String pizza = api.getMenu("pizza", null).getHeaders().getETag();
+        assertNotEquals(all, pizza);
+        assertEquals(HttpStatus.OK, api.getMenu("pizza", all).getStatusCode());
+        assertEquals(HttpStatus.NOT_MODIFIED, api.getMenu("pizza", pizza).getStatusCode());
+    }
+
+    @Test
+    void aMenuChangeGivesANewEtagOnlyWhereTheContentChanged() throws Exception {
+        String all = api.getMenu(null, null).getHeaders().getETag();
+        String sides = api.getMenu("sides", null).getHeaders().getETag();
+
+        rows.set(0, item(1, "Pizza", 11.00, "pizza"));
+        catalog.refresh();
+
+        assertNotEquals(all, api.getMenu(null, null).getHeaders().getETag());
+        assertEquals(HttpStatus.OK, api.getMenu(null, all).getStatusCode());
+        // Content-derived: an unchanged category keeps its ETag across menu versions.
+        assertEquals(HttpStatus.NOT_MODIFIED, api.getMenu("sides", sides).getStatusCode());
+    }
+
+    private static RestaurantApplication.MenuItem item(long id, String name, double price, String category) throws Exception {
+        Field field = RestaurantApplication.MenuItem.class.getDeclaredField("id");
+        field.setAccessible(true);
+        RestaurantApplication.MenuItem mi = new RestaurantApplication.MenuItem(name, name, price, category);
+        field.set(mi, id);
+        return mi;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderAdmissionTest {
+    private static final long PIZZA = 1;
+
+    private final KitchenSimulation.VirtualClock clock = new KitchenSimulation.VirtualClock();
+    private final RestaurantApplication.KitchenStations stations = new RestaurantApplication.KitchenStations(
+            "pizza:10:1", "pizza:100", "", 0, false, true, id -> "pizza", clock);
+    private final RestaurantApplication.PreparationQueue queue = new RestaurantApplication.InMemoryPreparationQueue(10);
+    private final RestaurantApplication.OrderAdmission admission = new RestaurantApplication.OrderAdmission(
+            stations, queue, new RestaurantApplication.Metrics(), true, 600, 0.8, false, 1000, 100, 1000, 100, 4, 1000);
+
+    @Test
+    void ordersCookingOnTheStationsCountTowardsTheQueueFill() {
+        // The dispatcher has drained the queue: seven orders cook, one waits.
+        for (int i = 0; i < 7; i++) stations.submit("C" + i, new long[]{PIZZA}, new int[]{1}, () -> {});
+        assertTrue(queue.offer("Q0"));
+        assertEquals(1, queue.size());
+        assertFalse(admit().admitted());
+
+        clock.runAll(); // every bake finishes
+        assertTrue(admit().admitted());
+    }
+
+    @Test
+    void belowTheFillOrdersAreAdmittedWithTheirQuote() {
+        for (int i = 0; i < 7; i++) stations.submit("C" + i, new long[]{PIZZA}, new int[]{1}, () -> {});
+        RestaurantApplication.OrderAdmission.Decision d = admit();
+        assertTrue(d.admitted());
+        assertEquals(170, d.quotedWaitSeconds()); // seven bakes spread over ten ovens, then its own
+    }
+
+    private RestaurantApplication.OrderAdmission.Decision admit() {
+        RestaurantApplication.PlaceOrderRequest.ItemRequest item = new RestaurantApplication.PlaceOrderRequest.ItemRequest();
+        item.menuItemId = PIZZA;
+        item.quantity = 1;
+        RestaurantApplication.PlaceOrderRequest req = new RestaurantApplication.PlaceOrderRequest();
+        req.customerName = "Test";
+        req.items = List.of(item);
+        return admission.admit(req, new MockHttpServletRequest());
+    }
+}
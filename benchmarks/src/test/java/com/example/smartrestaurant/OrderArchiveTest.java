@@ -0,0 +1,184 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// Runs the archive against the real schema on a private in-memory database; a reopen is a new
+// context (and database) over the same archive directory.
+class OrderArchiveTest {
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    // Two days ago, on an hour boundary, so every order is past archive.after-minutes=0 and in whole buckets.
+    private static final long H = (System.currentTimeMillis() / HOUR - 48) * HOUR;
+
+    @TempDir
+    Path dir;
+    private ConfigurableApplicationContext context;
+    private RestaurantApplication.OrderArchive archive;
+    private int seq;
+
+    @AfterEach
+    void stop() {
+        if (context != null) context.close();
+    }
+
+    @Test
+    void archivedOrdersScanAndFindAsTheyWereWritten() throws IOException {
+        open();
+        String delivered = insert(H + 1_000, "DELIVERED", new long[]{1, 2}, new int[]{2, 1});
+        String cancelled = insert(H + 2_000, "CANCELLED", new long[]{3}, new int[]{1});
+        String open = insert(H + 3_000, "PREPARING", new long[]{1}, new int[]{1});
+
+        assertEquals(2, archive.archiveBatch());
+        assertEquals(List.of(open), jdbc().queryForList("select id from orders", String.class));
+        assertEquals(0, (int) jdbc().queryForObject("select count(*) from order_items where order_id <> ?", Integer.class, open));
+
+        List<RestaurantApplication.ArchivedOrder> scanned = new ArrayList<>();
+        archive.scan(H, H + HOUR, true, scanned::add);
+        scanned.sort((a, b) -> Long.compare(a.createdAtMillis, b.createdAtMillis));
+        assertEquals(2, scanned.size());
+        RestaurantApplication.ArchivedOrder d = scanned.get(0);
+        assertEquals(delivered, d.id);
+        assertEquals(H + 1_000, d.createdAtMillis);
+        assertEquals("customer " + delivered, d.customerName);
+        assertEquals(RestaurantApplication.FoodOrder.Status.DELIVERED, d.status);
+        assertEquals(1234, d.totalCents);
+        assertEquals(2, d.itemIds.length);
+        assertEquals(3, d.quantities[0] + d.quantities[1]);
+        assertEquals(H + 1_000 + 60_000, d.stageAt[0]);
+        assertEquals(RestaurantApplication.FoodOrder.Status.CANCELLED, scanned.get(1).status);
+
+        RestaurantApplication.OrderView view = archive.find(cancelled);
+        assertNotNull(view);
+        assertEquals(cancelled, view.getId());
+        assertEquals(1, view.getItems().size());
+        assertEquals(3L, view.getItems().get(0).getMenuItemId());
+        assertNull(archive.find(open));
+    }
+
+    @Test
+    void aTornOrCorruptTailIsCutOffOnReopen() throws IOException {
+        open();
+        String first = insert(H + 1_000, "DELIVERED", new long[]{1}, new int[]{1});
+        archive.archiveBatch();
+        Path segment = segment();
+        long firstGroupEnd = Files.size(segment);
+        insert(H + 2_000, "DELIVERED", new long[]{2}, new int[]{1});
+        archive.archiveBatch();
+        long secondGroupEnd = Files.size(segment);
+
+        // A crash mid-append leaves part of a group behind the last complete one.
+        reopen(segment, ch -> ch.write(ByteBuffer.allocate(64).putInt(0x4f524731).putInt(4096).rewind(), secondGroupEnd));
+        assertEquals(secondGroupEnd, Files.size(segment));
+        assertEquals(2, count(H, H + HOUR));
+
+        // A flipped byte inside the last group fails its CRC: the group goes, the one before stays.
+        reopen(segment, ch -> {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, secondGroupEnd - 10);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            ch.write(b, secondGroupEnd - 10);
+        });
+        assertEquals(firstGroupEnd, Files.size(segment));
+        assertEquals(1, count(H, H + HOUR));
+        assertNotNull(archive.find(first));
+
+        // The cut segment takes new groups again.
+        insert(H + 3_000, "DELIVERED", new long[]{3}, new int[]{1});
+        archive.archiveBatch();
+        assertEquals(2, count(H, H + HOUR));
+    }
+
+    @Test
+    void salesCountEachOrderOnceAcrossWholeAndPartialBuckets() throws IOException {
+        open();
+        long[] at = {H, H + HOUR / 2, H + HOUR - 1, H + HOUR, H + HOUR + HOUR / 2, H + 2 * HOUR};
+        for (long t : at) insert(t, "DELIVERED", new long[]{1}, new int[]{1});
+        assertEquals(at.length, archive.archiveBatch());
+
+        assertEquals(HOUR, archive.bucketMillis());
+        assertEquals(3, archive.sales(H, H + HOUR).delivered);                          // one whole bucket
+        assertEquals(5, archive.sales(H, H + 2 * HOUR).delivered);                      // two whole buckets, end exclusive
+        assertEquals(4, archive.sales(H + HOUR / 2, H + 2 * HOUR).delivered);           // partial head
+        assertEquals(6, archive.sales(H, H + 2 * HOUR + 1).delivered);                  // partial tail of one millisecond
+        assertEquals(5, archive.sales(H + HOUR / 2, H + 2 * HOUR + HOUR / 2).delivered); // partial, whole, partial
+        assertEquals(3, archive.sales(H + HOUR / 2, H + HOUR + HOUR / 2).delivered);    // both edges partial, no whole bucket
+        assertEquals(2, archive.sales(H + HOUR - 1, H + HOUR + 1).delivered);           // straddles one boundary
+        assertEquals(0, archive.sales(H + 1, H + HOUR / 2).delivered);
+        assertEquals(6, archive.sales(H - HOUR, H + 3 * HOUR).units);
+
+        // After a reopen the aggregates are rebuilt from the segment.
+        reopen(segment(), ch -> { });
+        assertEquals(3, archive.sales(H, H + HOUR).delivered);
+        assertEquals(3, archive.sales(H + HOUR / 2, H + HOUR + HOUR / 2).delivered);
+    }
+
+    private interface SegmentEdit {
+        void apply(FileChannel ch) throws IOException;
+    }
+
+    private void open() {
+        context = BenchContext.start(WebApplicationType.NONE, "archive.enabled=true", "archive.dir=" + dir,
+                "archive.after-minutes=0", "archive.interval-seconds=86400", "archive.bucket-minutes=60");
+        archive = context.getBean(RestaurantApplication.OrderArchive.class);
+    }
+
+    // Closes the context, edits the segment while nothing has it open, and starts a new one.
+    private void reopen(Path segment, SegmentEdit edit) throws IOException {
+        context.close();
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            edit.apply(ch);
+        }
+        open();
+    }
+
+    private Path segment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.filter(p -> p.getFileName().toString().endsWith(".seg")).toList();
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private int count(long from, long to) {
+        int[] n = new int[1];
+        archive.scan(from, to, false, o -> n[0]++);
+        return n[0];
+    }
+
+    private JdbcTemplate jdbc() { return context.getBean(JdbcTemplate.class); }
+
+    // A finished order as the lifecycle leaves it: entered PREPARING a minute in, done ten minutes in.
+    private String insert(long createdAt, String status, long[] itemIds, int[] quantities) {
+        String id = RestaurantApplication.OrderIdGenerator.format(
+                (createdAt - RestaurantApplication.OrderIdGenerator.EPOCH) << 22 | seq++);
+        jdbc().update("insert into orders (id, created_at, customer_name, customer_phone, total_amount, discount_amount, status,"
+                        + " preparing_at, finished_at) values (?,?,?,?,?,?,?,?,?)",
+                id, new Timestamp(createdAt), "customer " + id, "9000000000", 12.34, 0.0, status,
+                new Timestamp(createdAt + 60_000), "PREPARING".equals(status) ? null : new Timestamp(createdAt + 600_000));
+        for (int i = 0; i < itemIds.length; i++) {
+            jdbc().update("insert into order_items (id, order_id, menu_item_id, name, quantity, unit_price) values (?,?,?,?,?,?)",
+                    (long) seq * 100 + i, id, itemIds[i], "item " + itemIds[i], quantities[i], 4.00);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.smartrestaurant;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OrderEventHubTest {
+    // Zero retention: any topic without subscribers is idle at the next sweep.
+    private final RestaurantApplication.OrderEventHub hub =
+            new RestaurantApplication.OrderEventHub(new ObjectMapper(), 1, 8, 4, "disconnect", 3600, 0);
+
+    @AfterEach
+    void stop() { hub.shutdown(); }
+
+    @Test
+    void idleTopicsWithoutSubscribersAreEvicted() {
+        hub.publishLocal("ORD1", "status", "PREPARING");
+        hub.resumeAt("ORD2", 7);
+        assertEquals(2, hub.topicCount());
+        hub.evictIdle();
+        assertEquals(0, hub.topicCount());
+        // A topic opened again starts a fresh sequence.
+        hub.publishLocal("ORD1", "status", "READY");
+        assertEquals(1, hub.lastEventId("ORD1"));
+    }
+
+    @Test
+    void topicsWithSubscribersAreKept() {
+        hub.subscribe("ORD1", null, "RECEIVED", false);
+        hub.evictIdle();
+        assertEquals(1, hub.topicCount());
+        assertEquals(1, hub.subscriberCount());
+    }
+}
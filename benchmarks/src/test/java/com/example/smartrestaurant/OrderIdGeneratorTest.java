@@ -0,0 +1,38 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderIdGeneratorTest {
+    @Test
+    void nodeIdIsRequiredForAMultiMemberCluster() {
+        assertThrows(IllegalStateException.class,
+                () -> new RestaurantApplication.OrderIdGenerator(null, true, "1=127.0.0.1:7701,2=127.0.0.1:7702"));
+        assertDoesNotThrow(() -> new RestaurantApplication.OrderIdGenerator(null, false, ""));
+        assertDoesNotThrow(() -> new RestaurantApplication.OrderIdGenerator(null, true, "1"));
+        assertDoesNotThrow(() -> new RestaurantApplication.OrderIdGenerator(2L, true, "1=127.0.0.1:7701,2=127.0.0.1:7702"));
+    }
+
+    @Test
+    void distinctNodesNeverCollideAndIdsSortByTime() {
+        RestaurantApplication.OrderIdGenerator a = new RestaurantApplication.OrderIdGenerator(1L, false, "");
+        RestaurantApplication.OrderIdGenerator b = new RestaurantApplication.OrderIdGenerator(2L, false, "");
+        Set<String> seen = new HashSet<>();
+        String previous = "";
+        for (int i = 0; i < 50_000; i++) {
+            String id = a.nextOrderId();
+            assertTrue(id.compareTo(previous) > 0, id + " after " + previous);
+            previous = id;
+            assertTrue(seen.add(id));
+            assertTrue(seen.add(b.nextOrderId()));
+        }
+        assertEquals(2, RestaurantApplication.OrderIdGenerator.node(RestaurantApplication.OrderIdGenerator.parse(b.nextOrderId())));
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+class OrderReadModelTest {
+    private static final Instant T0 = Instant.parse("2026-01-01T12:00:00Z");
+
+    // The mocked JdbcTemplate returns no rows, so every model starts empty.
+    private final List<RestaurantApplication.OrderReadModel> models = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        models.forEach(RestaurantApplication.OrderReadModel::shutdown);
+    }
+
+    @Test
+    void pagesWalkAStatusOldestFirstWithoutGapsOrRepeats() {
+        RestaurantApplication.OrderReadModel model = model(24);
+        put(model, "ORD3", T0.plusMillis(2), RestaurantApplication.FoodOrder.Status.RECEIVED);
+        put(model, "ORD1", T0, RestaurantApplication.FoodOrder.Status.RECEIVED);
+        put(model, "ORD2b", T0.plusMillis(1), RestaurantApplication.FoodOrder.Status.RECEIVED);
+        put(model, "ORD2a", T0.plusMillis(1), RestaurantApplication.FoodOrder.Status.RECEIVED); // same millisecond: id breaks the tie
+        put(model, "ORD4", T0.plusMillis(3), RestaurantApplication.FoodOrder.Status.RECEIVED);
+        put(model, "ORD9", T0, RestaurantApplication.FoodOrder.Status.PREPARING);
+
+        List<String> seen = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            RestaurantApplication.OrderReadModel.Page page = model.byStatus(RestaurantApplication.FoodOrder.Status.RECEIVED, cursor, 2);
+            page.orders().forEach(v -> seen.add(v.getId()));
+            cursor = page.nextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(List.of("ORD1", "ORD2a", "ORD2b", "ORD3", "ORD4"), seen);
+        assertEquals(3, pages); // the partial last page carries no cursor
+    }
+
+    @Test
+    void cursorsEncodeCreatedAtAndIdAndRejectGarbage() {
+        RestaurantApplication.OrderReadModel model = model(24);
+        put(model, "ORD_a", T0, RestaurantApplication.FoodOrder.Status.RECEIVED);
+        put(model, "ORD_b", T0, RestaurantApplication.FoodOrder.Status.RECEIVED);
+
+        RestaurantApplication.OrderReadModel.Page first = model.byStatus(RestaurantApplication.FoodOrder.Status.RECEIVED, null, 1);
+        assertEquals(T0.toEpochMilli() + "_ORD_a", first.nextCursor());
+        // The id may itself contain the separator.
+        RestaurantApplication.OrderReadModel.Page second = model.byStatus(RestaurantApplication.FoodOrder.Status.RECEIVED, first.nextCursor(), 1);
+        assertEquals("ORD_b", second.orders().get(0).getId());
+
+        for (String bad : List.of("ORD_a", "_ORD_a", "12x_ORD_a", "1234")) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> model.byStatus(RestaurantApplication.FoodOrder.Status.RECEIVED, bad, 1), bad);
+        }
+    }
+
+    @Test
+    void aStatusChangeMovesTheOrderBetweenIndexes() {
+        RestaurantApplication.OrderReadModel model = model(24);
+        put(model, "ORD1", T0, RestaurantApplication.FoodOrder.Status.RECEIVED);
+        put(model, "ORD2", T0.plusMillis(1), RestaurantApplication.FoodOrder.Status.RECEIVED);
+
+        model.status("ORD1", RestaurantApplication.FoodOrder.Status.PREPARING);
+
+        assertEquals(List.of("ORD2"), ids(model, RestaurantApplication.FoodOrder.Status.RECEIVED));
+        assertEquals(List.of("ORD1"), ids(model, RestaurantApplication.FoodOrder.Status.PREPARING));
+        assertEquals(RestaurantApplication.FoodOrder.Status.PREPARING, model.get("ORD1").getStatus());
+    }
+
+    @Test
+    void finishedOrdersAreKeptForTheRetentionAfterTheyFinishNotAfterTheyWereCreated() {
+        RestaurantApplication.OrderReadModel model = model(1);
+        Instant twoDaysAgo = Instant.now().minus(2, ChronoUnit.DAYS);
+        put(model, "ORD1", twoDaysAgo, RestaurantApplication.FoodOrder.Status.OUT_FOR_DELIVERY);
+        put(model, "ORD2", twoDaysAgo, RestaurantApplication.FoodOrder.Status.RECEIVED);
+        model.status("ORD1", RestaurantApplication.FoodOrder.Status.DELIVERED);
+
+        model.evictExpired();
+
+        assertNotNull(model.get("ORD1"));
+        assertEquals(List.of("ORD1"), ids(model, RestaurantApplication.FoodOrder.Status.DELIVERED));
+    }
+
+    @Test
+    void finishedOrdersPastTheRetentionLeaveEveryIndex() throws Exception {
+        RestaurantApplication.OrderReadModel model = model(0);
+        put(model, "ORD1", Instant.now(), RestaurantApplication.FoodOrder.Status.OUT_FOR_DELIVERY);
+        put(model, "ORD2", Instant.now(), RestaurantApplication.FoodOrder.Status.READY);
+        model.status("ORD1", RestaurantApplication.FoodOrder.Status.CANCELLED);
+        Thread.sleep(5);
+
+        model.evictExpired();
+
+        assertNull(model.get("ORD1"));
+        assertEquals(List.of(), ids(model, RestaurantApplication.FoodOrder.Status.CANCELLED));
+        assertNotNull(model.get("ORD2")); // still in progress, however old
+        assertEquals(1, model.size());
+    }
+
+    private RestaurantApplication.OrderReadModel model(long retentionHours) {
+        RestaurantApplication.OrderReadModel model = new RestaurantApplication.OrderReadModel(
+                mock(JdbcTemplate.class), new RestaurantApplication.Metrics(), retentionHours);
+        models.add(model);
+        return model;
+    }
+
+    private static void put(RestaurantApplication.OrderReadModel model, String id, Instant createdAt, RestaurantApplication.FoodOrder.Status status) {
+        model.applyPut(new RestaurantApplication.OrderView(id, createdAt, "Test", "555", List.of(), 10.0, 0.0, status, null, null, null));
+    }
+
+    private static List<String> ids(RestaurantApplication.OrderReadModel model, RestaurantApplication.FoodOrder.Status status) {
+        List<String> out = new ArrayList<>();
+        model.byStatus(status, null, 100).orders().forEach(v -> out.add(v.getId()));
+        return out;
+    }
+}
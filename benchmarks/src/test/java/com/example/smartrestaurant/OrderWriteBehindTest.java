@@ -0,0 +1,98 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OrderWriteBehindTest {
+    private final RecordingJdbc jdbc = new RecordingJdbc();
+    // The scheduled flush never fires during a test; the test calls flush() itself.
+    private final RestaurantApplication.OrderWriteBehind writeBehind =
+            new RestaurantApplication.OrderWriteBehind(jdbc, 3_600_000, 1_000);
+
+    @AfterEach
+    void stop() {
+        writeBehind.shutdown();
+    }
+
+    @Test
+    void repeatedChangesToOneOrderBecomeOneRowPerStatement() {
+        writeBehind.status("A", RestaurantApplication.FoodOrder.Status.PREPARING);
+        writeBehind.location("A", 1.0, 2.0, 300);
+        writeBehind.status("A", RestaurantApplication.FoodOrder.Status.READY);
+        writeBehind.location("A", 1.5, 2.5, 120);
+        writeBehind.status("B", RestaurantApplication.FoodOrder.Status.PREPARING);
+        assertEquals(2, writeBehind.pendingOrders());
+
+        writeBehind.flush();
+
+        List<Object[]> statusRows = jdbc.rows("update orders set status");
+        assertEquals(2, statusRows.size());
+        Object[] a = row(statusRows, "A");
+        assertEquals("READY", a[0]);
+        assertNotNull(a[1]); // preparing_at from the first change survives the second
+        assertNotNull(a[2]);
+        assertArrayEquals(new Object[]{1.5, 2.5, 120L, "A"}, row(jdbc.rows("update orders set delivery_lat"), "A"));
+        assertEquals(3, writeBehind.flushedRows());
+        assertEquals(0, writeBehind.pendingOrders());
+    }
+
+    @Test
+    void aFailedFlushKeepsItsRowsWithoutOverwritingNewerChanges() {
+        writeBehind.status("A", RestaurantApplication.FoodOrder.Status.PREPARING);
+        writeBehind.location("A", 1.0, 2.0, 300);
+        // The store fails after a newer status for A arrived mid-flush.
+        jdbc.failNext = () -> writeBehind.status("A", RestaurantApplication.FoodOrder.Status.READY);
+        assertThrows(DataAccessResourceFailureException.class, writeBehind::flush);
+        assertEquals(1, writeBehind.pendingOrders());
+        assertEquals(0, writeBehind.flushedRows());
+
+        writeBehind.flush();
+
+        Object[] a = row(jdbc.rows("update orders set status"), "A");
+        assertEquals("READY", a[0]);
+        assertNotNull(a[1]); // preparing_at from the failed batch
+        assertNotNull(a[2]);
+        assertArrayEquals(new Object[]{1.0, 2.0, 300L, "A"}, row(jdbc.rows("update orders set delivery_lat"), "A"));
+        assertEquals(0, writeBehind.pendingOrders());
+    }
+
+    private static Object[] row(List<Object[]> rows, String id) {
+        for (Object[] r : rows) if (id.equals(r[r.length - 1])) return r;
+        throw new AssertionError("no row for " + id);
+    }
+
+    // Records batches; failNext runs once and then makes the call fail.
+    private static final class RecordingJdbc extends JdbcTemplate {
+        final List<String> sql = new ArrayList<>();
+        final List<List<Object[]>> batches = new ArrayList<>();
+        Runnable failNext;
+
+        @Override
+        public int[] batchUpdate(String statement, List<Object[]> args) {
+            if (failNext != null) {
+                Runnable r = failNext;
+                failNext = null;
+                r.run();
+                throw new DataAccessResourceFailureException("store down");
+            }
+            sql.add(statement);
+            batches.add(new ArrayList<>(args));
+            return new int[args.size()];
+        }
+
+        List<Object[]> rows(String prefix) {
+            for (int i = batches.size() - 1; i >= 0; i--) if (sql.get(i).startsWith(prefix)) return batches.get(i);
+            throw new AssertionError("no batch for " + prefix);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PaymentServiceTest {
+    private static final long TIMEOUT_MS = 50;
+
+    private final FakeGateway gateway = new FakeGateway();
+    private final RestaurantApplication.PaymentService payments =
+            new RestaurantApplication.PaymentService(List.of(gateway), "fake", 8, TIMEOUT_MS, 60);
+
+    @Test
+    void retryAfterTimeoutSeesTheLateSuccessInsteadOfCapturingAgain() {
+        RestaurantApplication.FoodOrder order = order("ORD1");
+        assertEquals(RestaurantApplication.PaymentResult.Status.TIMEOUT, pay(order, null));
+        // Still in flight: the retry waits on the same capture and times out again.
+        assertEquals(RestaurantApplication.PaymentResult.Status.TIMEOUT, pay(order, null));
+        assertEquals(1, gateway.calls.size());
+
+        gateway.calls.get(0).complete(RestaurantApplication.PaymentResult.paid("ref-1"));
+        assertEquals(RestaurantApplication.PaymentResult.Status.PAID, pay(order, null));
+        assertEquals(RestaurantApplication.PaymentResult.Status.PAID, pay(order, "another-key"));
+        assertEquals(1, gateway.calls.size());
+    }
+
+    @Test
+    void keyedRetryAfterTimeoutReplaysTheLateOutcome() {
+        RestaurantApplication.FoodOrder order = order("ORD2");
+        assertEquals(RestaurantApplication.PaymentResult.Status.TIMEOUT, pay(order, "k1"));
+        gateway.calls.get(0).complete(RestaurantApplication.PaymentResult.declined());
+        assertEquals(RestaurantApplication.PaymentResult.Status.DECLINED, pay(order, "k1"));
+        assertEquals(1, gateway.calls.size());
+        // Without the key, a decline leaves the order free for a fresh capture.
+        CompletableFuture<RestaurantApplication.PaymentResult> retry = payments.capturePayment(order, "tok", null);
+        assertEquals(2, gateway.calls.size());
+        gateway.calls.get(1).complete(RestaurantApplication.PaymentResult.paid("ref-2"));
+        assertEquals(RestaurantApplication.PaymentResult.Status.PAID, retry.join().getStatus());
+    }
+
+    @Test
+    void concurrentCallsWithDifferentKeysShareOneCapture() {
+        RestaurantApplication.FoodOrder order = order("ORD3");
+        CompletableFuture<RestaurantApplication.PaymentResult> a = payments.capturePayment(order, "tok", "a");
+        CompletableFuture<RestaurantApplication.PaymentResult> b = payments.capturePayment(order, "tok", "b");
+        CompletableFuture<RestaurantApplication.PaymentResult> c = payments.capturePayment(order, "tok", null);
+        assertEquals(1, gateway.calls.size());
+        RestaurantApplication.PaymentResult paid = RestaurantApplication.PaymentResult.paid("ref-3");
+        gateway.calls.get(0).complete(paid);
+        assertSame(paid, a.join());
+        assertSame(paid, b.join());
+        assertSame(paid, c.join());
+    }
+
+    @Test
+    void sameKeyOnTwoOrdersCapturesBoth() {
+        CompletableFuture<RestaurantApplication.PaymentResult> first = payments.capturePayment(order("ORD4"), "tok", "shared");
+        CompletableFuture<RestaurantApplication.PaymentResult> second = payments.capturePayment(order("ORD5"), "tok", "shared");
+        assertEquals(2, gateway.calls.size());
+        gateway.calls.get(0).complete(RestaurantApplication.PaymentResult.declined());
+        gateway.calls.get(1).complete(RestaurantApplication.PaymentResult.paid("ref-5"));
+        assertEquals(RestaurantApplication.PaymentResult.Status.DECLINED, first.join().getStatus());
+        assertEquals(RestaurantApplication.PaymentResult.Status.PAID, second.join().getStatus());
+    }
+
+    private RestaurantApplication.PaymentResult.Status pay(RestaurantApplication.FoodOrder order, String key) {
+        return payments.capturePayment(order, "tok", key).join().getStatus();
+    }
+
+    private static RestaurantApplication.FoodOrder order(String id) {
+        return new RestaurantApplication.FoodOrder(id, "Test", "555", new ArrayList<>(), 12.5, 0);
+    }
+
+    // Answers only when the test completes the call's future.
+    private static final class FakeGateway implements RestaurantApplication.PaymentGateway {
+        final List<CompletableFuture<RestaurantApplication.PaymentResult>> calls = new ArrayList<>();
+
+        @Override
+        public String name() { return "fake"; }
+
+        @Override
+        public synchronized CompletableFuture<RestaurantApplication.PaymentResult> capture(String orderId, double amount,
+                                                                                            String token, String idempotencyKey) {
+            CompletableFuture<RestaurantApplication.PaymentResult> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        }
+    }
+}
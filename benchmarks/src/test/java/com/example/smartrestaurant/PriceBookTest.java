@@ -0,0 +1,69 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PriceBookTest {
+    private static final long PIZZA = 1, BURGER = 2, SIDES = 3;
+
+    @Test
+    void bulkRuleBelowItsThresholdGivesNothing() throws Exception {
+        RestaurantApplication.PriceBook book = book("bulk:pizza:3:50");
+        assertEquals(0, book.quote(cart(PIZZA, 2)).discountCents());
+        assertEquals(1500, book.quote(cart(PIZZA, 3)).discountCents()); // 50% of 3 x 10.00
+    }
+
+    @Test
+    void percentRuleAppliesWithoutAThreshold() throws Exception {
+        assertEquals(200, book("percent:pizza:10").quote(cart(PIZZA, 2)).discountCents());
+    }
+
+    @Test
+    void aComboThatEarnsNothingLeavesItsUnitsForTheNextOne() throws Exception {
+        RestaurantApplication.PriceBook book = book("combo:burger+sides:0,combo:burger+sides:150");
+        assertEquals(300, book.quote(cart(BURGER, 2, SIDES, 2)).discountCents());
+    }
+
+    @Test
+    void discountsNeverExceedTheSubtotal() throws Exception {
+        // A 100% burger rule leaves 5.00 of the 23.00 subtotal, which the 4.00 combo uses up on its second set.
+        RestaurantApplication.PriceBook book = book("percent:burger:100,combo:burger+sides:400,combo:burger+sides:50");
+        RestaurantApplication.Quote q = book.quote(cart(BURGER, 3, SIDES, 2));
+        assertEquals(1800 + 500, q.subtotalCents());
+        assertEquals(q.subtotalCents(), q.discountCents());
+        assertEquals(0, q.totalCents());
+    }
+
+    private static RestaurantApplication.PriceBook book(String rules) throws Exception {
+        Field id = RestaurantApplication.MenuItem.class.getDeclaredField("id");
+        id.setAccessible(true);
+        List<RestaurantApplication.MenuItem> menu = new ArrayList<>();
+        menu.add(item(id, PIZZA, "Pizza", 10.00, "pizza"));
+        menu.add(item(id, BURGER, "Burger", 6.00, "burger"));
+        menu.add(item(id, SIDES, "Fries", 2.50, "sides"));
+        return RestaurantApplication.PriceBook.build(1, menu, RestaurantApplication.PriceBook.parseRules(rules));
+    }
+
+    private static RestaurantApplication.MenuItem item(Field id, long value, String name, double price, String category) throws Exception {
+        RestaurantApplication.MenuItem mi = new RestaurantApplication.MenuItem(name, name, price, category);
+        id.set(mi, value);
+        return mi;
+    }
+
+    // menuItemId, quantity pairs
+    private static List<RestaurantApplication.PlaceOrderRequest.ItemRequest> cart(long... pairs) {
+        List<RestaurantApplication.PlaceOrderRequest.ItemRequest> out = new ArrayList<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            RestaurantApplication.PlaceOrderRequest.ItemRequest it = new RestaurantApplication.PlaceOrderRequest.ItemRequest();
+            it.menuItemId = pairs[i];
+            it.quantity = (int) pairs[i + 1];
+            out.add(it);
+        }
+        return out;
+    }
+}
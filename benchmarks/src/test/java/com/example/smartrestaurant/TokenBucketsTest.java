@@ -0,0 +1,28 @@
+package com.example.smartrestaurant;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketsTest {
+    @Test
+    void nonPositiveRatesAreRejectedAtConstruction() {
+        assertThrows(IllegalArgumentException.class, () -> new RestaurantApplication.TokenBuckets(0, 3, 4, 100));
+        assertThrows(IllegalArgumentException.class, () -> new RestaurantApplication.TokenBuckets(-1, 3, 4, 100));
+        assertThrows(IllegalArgumentException.class, () -> new RestaurantApplication.TokenBuckets(Double.NaN, 3, 4, 100));
+        assertThrows(IllegalArgumentException.class, () -> new RestaurantApplication.TokenBuckets(6, 0, 4, 100));
+    }
+
+    @Test
+    void burstIsSpentThenTheWaitIsOneRefill() {
+        // 6 per minute: a token every 10 s.
+        RestaurantApplication.TokenBuckets buckets = new RestaurantApplication.TokenBuckets(6, 3, 4, 100);
+        for (int i = 0; i < 3; i++) assertEquals(0, buckets.tryAcquire("555-0100"));
+        long wait = buckets.tryAcquire("555-0100");
+        assertTrue(wait > 9_000 && wait <= 10_000, "wait " + wait);
+        assertEquals(0, buckets.tryAcquire("555-0199"));
+        assertEquals(2, buckets.size());
+    }
+}